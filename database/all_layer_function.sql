@@ -1,9 +1,13 @@
 /* Using ::geography to calculate the distance in metres is *very* slow, but is included anyway.
  * (The PostGIS layers are only for verification.)
+ *
+ * With q_geography false, distanceMeters is null and nearest is instead the point of the geometry nearest the query,
+ * so the caller can calculate the distance in metres itself.
  */
 DROP FUNCTION IF EXISTS query_layers(q_lng float, q_lat float, q_unc float, q_layers text[]);
-CREATE OR REPLACE FUNCTION query_layers(q_lng float, q_lat float, q_unc float, q_layers text[])
-RETURNS TABLE(layer text, id text, source text, title text, isoCountryCode2Digit character, distance float, distanceMeters float) AS $$
+DROP FUNCTION IF EXISTS query_layers(q_lng float, q_lat float, q_unc float, q_layers text[], q_geography boolean);
+CREATE OR REPLACE FUNCTION query_layers(q_lng float, q_lat float, q_unc float, q_layers text[], q_geography boolean DEFAULT true)
+RETURNS TABLE(layer text, id text, source text, title text, isoCountryCode2Digit character, distance float, distanceMeters float, nearest geometry) AS $$
     (
       SELECT DISTINCT
         'Continent' AS type,
@@ -12,7 +16,9 @@ RETURNS TABLE(layer text, id text, source text, title text, isoCountryCode2Digit
         continent AS title,
         NULL AS isoCountryCode2Digit,
         MIN(ST_Distance(geom, ST_SetSRID(ST_Point(q_lng, q_lat), 4326))) AS distance,
-        MIN(ST_Distance(geom::geography, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)::geography)) AS distanceMeters
+        MIN(CASE WHEN q_geography THEN ST_Distance(geom::geography, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)::geography) END) AS distanceMeters,
+        (array_agg(CASE WHEN NOT q_geography THEN ST_ClosestPoint(geom, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)) END
+          ORDER BY ST_Distance(geom, ST_SetSRID(ST_Point(q_lng, q_lat), 4326))))[1] AS nearest
       FROM continent
       WHERE ST_DWithin(geom, ST_SetSRID(ST_Point(q_lng, q_lat), 4326), q_unc)
         AND 'Continent' = ANY(q_layers)
@@ -33,7 +39,8 @@ RETURNS TABLE(layer text, id text, source text, title text, isoCountryCode2Digit
           "union" AS geoname,
           im1.iso2 AS iso2_ter1, im2.iso2 AS iso2_ter2, im3.iso2 AS iso2_ter3,
           ST_Distance(geom, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)) AS distance,
-          ST_Distance(geom::geography, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)::geography) AS distanceMeters
+          CASE WHEN q_geography THEN ST_Distance(geom::geography, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)::geography) END AS distanceMeters,
+          CASE WHEN NOT q_geography THEN ST_ClosestPoint(geom, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)) END AS nearest
         FROM political
         LEFT OUTER JOIN iso_map im1 ON political.iso_ter1 = im1.iso3
         LEFT OUTER JOIN iso_map im2 ON political.iso_ter2 = im2.iso3
@@ -48,7 +55,8 @@ RETURNS TABLE(layer text, id text, source text, title text, isoCountryCode2Digit
         title,
         isoCountryCode2Digit,
         distance,
-        distanceMeters
+        distanceMeters,
+        nearest
       FROM (
         SELECT
           'http://marineregions.org/mrgid/' || mrgid AS id,
@@ -56,6 +64,7 @@ RETURNS TABLE(layer text, id text, source text, title text, isoCountryCode2Digit
           iso2_ter1 AS isoCountryCode2Digit,
           distance,
           distanceMeters,
+          nearest,
           1 AS ordinal
         FROM political_expanded
         WHERE iso2_ter1 IS NOT NULL
@@ -66,6 +75,7 @@ RETURNS TABLE(layer text, id text, source text, title text, isoCountryCode2Digit
           iso2_ter2 AS isoCountryCode2Digit,
           distance,
           distanceMeters,
+          nearest,
           2 AS ordinal
         FROM political_expanded
         WHERE iso2_ter2 IS NOT NULL
@@ -76,6 +86,7 @@ RETURNS TABLE(layer text, id text, source text, title text, isoCountryCode2Digit
           iso2_ter3 AS isoCountryCode2Digit,
           distance,
           distanceMeters,
+          nearest,
           3 AS ordinal
         FROM political_expanded
         WHERE iso2_ter3 IS NOT NULL
@@ -91,7 +102,8 @@ RETURNS TABLE(layer text, id text, source text, title text, isoCountryCode2Digit
           name_0, name_1, name_2, name_3,
           iso_map.iso2 AS isoCountryCode2Digit,
           ST_Distance(gadm3.geom, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)) AS distance,
-          ST_Distance(geom::geography, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)::geography) AS distanceMeters
+          CASE WHEN q_geography THEN ST_Distance(geom::geography, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)::geography) END AS distanceMeters,
+          CASE WHEN NOT q_geography THEN ST_ClosestPoint(geom, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)) END AS nearest
         FROM gadm3 LEFT OUTER JOIN iso_map ON gadm3.gid_0 = iso_map.iso3
         WHERE ST_DWithin(gadm3.geom, ST_SetSRID(ST_Point(q_lng, q_lat), 4326), q_unc)
       )
@@ -102,7 +114,8 @@ RETURNS TABLE(layer text, id text, source text, title text, isoCountryCode2Digit
         name_0 AS title,
         isoCountryCode2Digit,
         MIN(distance) AS distance,
-        MIN(distanceMeters) AS distanceMeters
+        MIN(distanceMeters) AS distanceMeters,
+        (array_agg(nearest ORDER BY distance))[1] AS nearest
       FROM gadm
       WHERE 'GADM' = ANY(q_layers) AND gid_0 IS NOT NULL
       GROUP BY gid_0, name_0, isoCountryCode2Digit
@@ -114,7 +127,8 @@ RETURNS TABLE(layer text, id text, source text, title text, isoCountryCode2Digit
         name_1 AS title,
         isoCountryCode2Digit,
         MIN(distance) AS distance,
-        MIN(distanceMeters) AS distanceMeters
+        MIN(distanceMeters) AS distanceMeters,
+        (array_agg(nearest ORDER BY distance))[1] AS nearest
       FROM gadm
       WHERE 'GADM' = ANY(q_layers) AND gid_1 IS NOT NULL
       GROUP BY gid_1, name_1, isoCountryCode2Digit
@@ -126,7 +140,8 @@ RETURNS TABLE(layer text, id text, source text, title text, isoCountryCode2Digit
         name_2 AS title,
         isoCountryCode2Digit,
         MIN(distance) AS distance,
-        MIN(distanceMeters) AS distanceMeters
+        MIN(distanceMeters) AS distanceMeters,
+        (array_agg(nearest ORDER BY distance))[1] AS nearest
       FROM gadm
       WHERE 'GADM' = ANY(q_layers) AND gid_2 IS NOT NULL
       GROUP BY gid_2, name_2, isoCountryCode2Digit
@@ -138,7 +153,8 @@ RETURNS TABLE(layer text, id text, source text, title text, isoCountryCode2Digit
         name_3 AS title,
         isoCountryCode2Digit,
         MIN(distance) AS distance,
-        MIN(distanceMeters) AS distanceMeters
+        MIN(distanceMeters) AS distanceMeters,
+        (array_agg(nearest ORDER BY distance))[1] AS nearest
       FROM gadm
       WHERE 'GADM' = ANY(q_layers) AND gid_3 IS NOT NULL
       GROUP BY gid_3, name_3, isoCountryCode2Digit
@@ -153,7 +169,8 @@ RETURNS TABLE(layer text, id text, source text, title text, isoCountryCode2Digit
         name AS title,
         NULL,
         ST_Distance(geom, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)) AS distance,
-        ST_Distance(geom::geography, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)::geography) AS distanceMeters
+        CASE WHEN q_geography THEN ST_Distance(geom::geography, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)::geography) END AS distanceMeters,
+        CASE WHEN NOT q_geography THEN ST_ClosestPoint(geom, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)) END AS nearest
       FROM iho
       WHERE ST_DWithin(geom, ST_SetSRID(ST_Point(q_lng, q_lat), 4326), q_unc)
         AND 'IHO' = ANY(q_layers)
@@ -168,7 +185,8 @@ RETURNS TABLE(layer text, id text, source text, title text, isoCountryCode2Digit
         CONCAT_WS(' ', sci_name, subspecies, subpop, island) AS title,
         NULL,
         ST_Distance(geom, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)) AS distance,
-        ST_Distance(geom::geography, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)::geography) AS distanceMeters
+        CASE WHEN q_geography THEN ST_Distance(geom::geography, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)::geography) END AS distanceMeters,
+        CASE WHEN NOT q_geography THEN ST_ClosestPoint(geom, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)) END AS nearest
       FROM iucn
       WHERE ST_DWithin(geom, ST_SetSRID(ST_Point(q_lng, q_lat), 4326), q_unc)
         AND 'IUCN' = ANY(q_layers)
@@ -183,7 +201,8 @@ RETURNS TABLE(layer text, id text, source text, title text, isoCountryCode2Digit
         level_4_na AS title,
         iso_code,
         ST_Distance(geom, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)) AS distance,
-        ST_Distance(geom::geography, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)::geography) AS distanceMeters
+        CASE WHEN q_geography THEN ST_Distance(geom::geography, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)::geography) END AS distanceMeters,
+        CASE WHEN NOT q_geography THEN ST_ClosestPoint(geom, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)) END AS nearest
       FROM wgsrpd_level4
       WHERE ST_DWithin(geom, ST_SetSRID(ST_Point(q_lng, q_lat), 4326), q_unc)
         AND 'WGSRPD' = ANY(q_layers)
@@ -198,7 +217,8 @@ RETURNS TABLE(layer text, id text, source text, title text, isoCountryCode2Digit
         isoCountryCode2Digit AS title,
         isoCountryCode2Digit,
         ST_Distance(geom, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)) AS distance,
-        ST_Distance(geom::geography, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)::geography) AS distanceMeters
+        CASE WHEN q_geography THEN ST_Distance(geom::geography, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)::geography) END AS distanceMeters,
+        CASE WHEN NOT q_geography THEN ST_ClosestPoint(geom, ST_SetSRID(ST_Point(q_lng, q_lat), 4326)) END AS nearest
       FROM centroids
       WHERE ST_DWithin(geom, ST_SetSRID(ST_Point(q_lng, q_lat), 4326), q_unc)
         AND 'Centroids' = ANY(q_layers)
@@ -221,3 +241,5 @@ ORDER BY ST_Distance(geom, ST_SetSRID(ST_Point(4.02, 50.02), 4326)) ASC;
 SELECT * FROM query_layers(4.02, 50.02, 0.05, ARRAY['IHO', 'Political', 'Continent', 'GADM', 'Centroids', 'WGSRPD', 'IUCN']);
 
 SELECT * FROM query_layers(-34.2, -53.1, 0.05, ARRAY['Political']);
+
+SELECT *, ST_AsText(nearest) FROM query_layers(4.02, 50.02, 0.05, ARRAY['IHO', 'Political', 'Continent', 'GADM', 'Centroids', 'WGSRPD', 'IUCN'], false);
@@ -810,6 +810,7 @@ EOF
 function create_combined_function() {
     cd $START_DIR
     exec_psql_file $SCRIPT_DIR/all_layer_function.sql
+    exec_psql_file $SCRIPT_DIR/layer_features_function.sql
 }
 
 function create_gadm_indices() {
@@ -0,0 +1,107 @@
+/* Every polygon of a layer, for the web service to load into memory and query itself.
+ *
+ * Polygons are subdivided into pieces of at most 1024 points, so a query need only measure the distance to a few small
+ * pieces.  Each row is a piece as well-known binary, and the Locations it gives, as parallel arrays: a piece of a GADM
+ * level 3 region is also in its level 0, 1 and 2 regions, and a Political polygon may have up to three claims.  The
+ * Locations are as given by query_layers.
+ */
+DROP FUNCTION IF EXISTS layer_features(q_layer text);
+CREATE OR REPLACE FUNCTION layer_features(q_layer text)
+RETURNS TABLE(geom bytea, source text, types text[], ids text[], titles text[], isoCountryCode2Digits text[]) AS $$
+    (
+      SELECT
+        ST_AsBinary(ST_Subdivide(geom, 1024), 'NDR') AS geom,
+        'https://github.com/gbif/continents' AS source,
+        ARRAY['Continent'] AS types,
+        ARRAY[continent::text] AS ids,
+        ARRAY[continent::text] AS titles,
+        ARRAY[NULL::text] AS isoCountryCode2Digits
+      FROM continent
+      WHERE 'Continent' = q_layer
+    )
+  UNION ALL
+    (
+      /* Political: a row for each of the polygon's claims or JRAs (joint regime areas), in the order of the Marine
+       *            Regions database.
+       */
+      SELECT
+        ST_AsBinary(ST_Subdivide(geom, 1024), 'NDR') AS geom,
+        'https://www.marineregions.org/' AS source,
+        array_fill('Political'::text, ARRAY[cardinality(claims.iso2)]) AS types,
+        array_fill('http://marineregions.org/mrgid/' || COALESCE(mrgid_eez, mrgid_ter1), ARRAY[cardinality(claims.iso2)]) AS ids,
+        array_fill("union"::text, ARRAY[cardinality(claims.iso2)]) AS titles,
+        claims.iso2 AS isoCountryCode2Digits
+      FROM political
+      LEFT OUTER JOIN iso_map im1 ON political.iso_ter1 = im1.iso3
+      LEFT OUTER JOIN iso_map im2 ON political.iso_ter2 = im2.iso3
+      LEFT OUTER JOIN iso_map im3 ON political.iso_ter3 = im3.iso3
+      CROSS JOIN LATERAL (
+        SELECT COALESCE(array_agg(iso2::text ORDER BY ordinal), ARRAY[]::text[]) AS iso2
+        FROM unnest(ARRAY[im1.iso2, im2.iso2, im3.iso2]) WITH ORDINALITY AS claim(iso2, ordinal)
+        WHERE iso2 IS NOT NULL
+      ) claims
+      WHERE 'Political' = q_layer
+    )
+  UNION ALL
+    (
+      /* GADM: a row for each level the region is part of. */
+      SELECT
+        ST_AsBinary(ST_Subdivide(geom, 1024), 'NDR') AS geom,
+        'http://gadm.org/' AS source,
+        levels.types,
+        levels.ids,
+        levels.titles,
+        array_fill(iso_map.iso2::text, ARRAY[cardinality(levels.ids)]) AS isoCountryCode2Digits
+      FROM gadm3
+      LEFT OUTER JOIN iso_map ON gadm3.gid_0 = iso_map.iso3
+      CROSS JOIN LATERAL (
+        SELECT
+          array_agg('GADM' || (level - 1) ORDER BY level) AS types,
+          array_agg(gid::text ORDER BY level) AS ids,
+          array_agg(name::text ORDER BY level) AS titles
+        FROM unnest(ARRAY[gid_0, gid_1, gid_2, gid_3], ARRAY[name_0, name_1, name_2, name_3])
+          WITH ORDINALITY AS region(gid, name, level)
+        WHERE gid IS NOT NULL
+      ) levels
+      WHERE 'GADM' = q_layer AND gid_0 IS NOT NULL
+    )
+  UNION ALL
+    (
+      SELECT
+        ST_AsBinary(ST_Subdivide(geom, 1024), 'NDR') AS geom,
+        'http://marineregions.org/' AS source,
+        ARRAY['IHO'] AS types,
+        ARRAY['http://marineregions.org/mrgid/' || mrgid] AS ids,
+        ARRAY[name::text] AS titles,
+        ARRAY[NULL::text] AS isoCountryCode2Digits
+      FROM iho
+      WHERE 'IHO' = q_layer
+    )
+  UNION ALL
+    (
+      SELECT
+        ST_AsBinary(ST_Subdivide(geom, 1024), 'NDR') AS geom,
+        'https://iucnredlist.org/' AS source,
+        ARRAY['IUCN'] AS types,
+        ARRAY[id_no::text] AS ids,
+        ARRAY[CONCAT_WS(' ', sci_name, subspecies, subpop, island)] AS titles,
+        ARRAY[NULL::text] AS isoCountryCode2Digits
+      FROM iucn
+      WHERE 'IUCN' = q_layer
+    )
+  UNION ALL
+    (
+      SELECT
+        ST_AsBinary(ST_Subdivide(geom, 1024), 'NDR') AS geom,
+        'http://www.tdwg.org/standards/109' AS source,
+        ARRAY['WGSRPD'] AS types,
+        ARRAY['WGSRPD:' || level4_cod] AS ids,
+        ARRAY[level_4_na::text] AS titles,
+        ARRAY[iso_code::text] AS isoCountryCode2Digits
+      FROM wgsrpd_level4
+      WHERE 'WGSRPD' = q_layer
+    )
+$$ LANGUAGE SQL STABLE;
+
+-- Examples / tests
+SELECT types, ids, titles, isoCountryCode2Digits, length(geom) FROM layer_features('IHO') LIMIT 10;
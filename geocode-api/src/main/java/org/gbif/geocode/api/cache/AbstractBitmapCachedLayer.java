@@ -2,13 +2,20 @@ package org.gbif.geocode.api.cache;
 
 import org.gbif.geocode.api.model.Location;
 
-import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 import javax.imageio.ImageIO;
@@ -22,36 +29,152 @@ import org.slf4j.LoggerFactory;
 public abstract class AbstractBitmapCachedLayer {
   private Logger LOG = LoggerFactory.getLogger(getClass());
 
-  // Bitmap image cache
-  private final BufferedImage img;
-  // Border colour must be queried
-  private final static int BORDER = 0x000000;
-  // Empty colour is not part of this layer (e.g. ocean for a land layer)
-  private final static int EMPTY = 0xFFFFFF;
+  // Bitmap image cache, decoded to palette indices.
+  // Border colour (palette index 0) must be queried.
+  // Empty colour (palette index 1) is not part of this layer (e.g. ocean for a land layer).
+  private final PaletteRaster raster;
   private final int imgWidth;
   private final int imgHeight;
   // Maximum number of locations in a coloured part of the map
   private final int maxLocations;
-  private final Map<Integer, List<Location>> colourKey = new HashMap<>();
-  public long queries = 0, border = 0, empty = 0, miss = 0, hit = 0;
+  // Locations for each palette index, null until learned.  Each entry is published once and never replaced.
+  private final AtomicReferenceArray<List<Location>> colourKey;
+  // Distance from each pixel to the nearest border, or null if there isn't one for this bitmap.
+  private final BorderDistanceRaster borderDistance;
+  // Refined cells within border pixels, classified on demand.
+  private final BorderCells borderCells;
+  // Datasource results for queries the bitmap can't answer.
+  private final ResultCache resultCache;
+  // Datasource queries in progress, which identical queries wait for rather than repeating.
+  private final ConcurrentHashMap<ResultCache.Key, CompletableFuture<List<Location>>> inFlight =
+    new ConcurrentHashMap<>();
+  public final LongAdder queries = new LongAdder(), border = new LongAdder(), empty = new LongAdder(),
+    miss = new LongAdder(), hit = new LongAdder(), borderHit = new LongAdder(), coalesced = new LongAdder();
 
   private static final double BITMAP_UNCERTAINTY_DEGREES = 0.05d;
 
+  // Memory budget for the refined border cells of each layer.
+  private static final long BORDER_CELLS_BYTES = 16L * 1024 * 1024;
+
+  // Memory budget for the cached datasource results of each layer.
+  private static final long RESULT_CACHE_BYTES = 8L * 1024 * 1024;
+
+  /**
+   * Resolution for {@link #resultCacheResolution()} to cache results by exact coordinates.
+   */
+  protected static final double EXACT_COORDINATES = 0d;
+
   public AbstractBitmapCachedLayer(InputStream bitmap) {
     this(bitmap, 1);
   }
 
   public AbstractBitmapCachedLayer(InputStream bitmap, int maxLocations) {
+    this(bitmap, null, maxLocations);
+  }
+
+  /**
+   * @param colourKey precomputed colour key generated alongside the bitmap (see {@link ColourKeyFile}), or null
+   *                  to learn each colour from the datasource on first use.
+   */
+  public AbstractBitmapCachedLayer(InputStream bitmap, InputStream colourKey, int maxLocations) {
+    this(bitmap, colourKey, null, maxLocations);
+  }
+
+  /**
+   * @param colourKey precomputed colour key generated alongside the bitmap (see {@link ColourKeyFile}), or null
+   *                  to learn each colour from the datasource on first use.
+   * @param borderDistance border distance image generated alongside the bitmap (see {@link BorderDistanceRaster}),
+   *                       or null to only use the bitmap for queries with a small uncertainty.
+   */
+  public AbstractBitmapCachedLayer(InputStream bitmap, InputStream colourKey, InputStream borderDistance,
+                                   int maxLocations) {
+    this(decode(bitmap), colourKey, borderDistance, maxLocations);
+  }
+
+  /**
+   * @param raster bitmap already decoded, or mapped from a {@link PaletteRasterFile}.
+   * @param colourKey precomputed colour key generated alongside the bitmap (see {@link ColourKeyFile}), or null
+   *                  to learn each colour from the datasource on first use.
+   * @param borderDistance border distance image generated alongside the bitmap (see {@link BorderDistanceRaster}),
+   *                       or null to only use the bitmap for queries with a small uncertainty.
+   */
+  public AbstractBitmapCachedLayer(PaletteRaster raster, InputStream colourKey, InputStream borderDistance,
+                                   int maxLocations) {
+    this.raster = raster;
+    imgHeight = raster.getHeight();
+    imgWidth = raster.getWidth();
+    this.colourKey = new AtomicReferenceArray<>(raster.getPaletteSize());
+    this.maxLocations = maxLocations;
+    this.borderCells = new BorderCells(imgWidth, imgHeight, BORDER_CELLS_BYTES);
+    this.resultCache = new ResultCache(RESULT_CACHE_BYTES);
+
+    if (colourKey != null) {
+      try {
+        loadColourKey(ColourKeyFile.read(colourKey));
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to load map colour key", e);
+      }
+    }
+
+    if (borderDistance != null) {
+      try {
+        this.borderDistance = loadBorderDistance(BorderDistanceRaster.fromImage(ImageIO.read(borderDistance)));
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to load map border distance image", e);
+      }
+    } else {
+      this.borderDistance = null;
+    }
+  }
+
+  /**
+   * Use a precomputed border distance raster, if it was generated from this bitmap.
+   */
+  private BorderDistanceRaster loadBorderDistance(BorderDistanceRaster distance) {
+    if (!distance.isConsistentWith(raster)) {
+      LOG.warn("Border distance image was generated from a different bitmap, ignoring it. Regenerate it with BitmapGenerator.");
+      return null;
+    }
+    LOG.info("Loaded border distance image");
+    return distance;
+  }
+
+  private static PaletteRaster decode(InputStream bitmap) {
     try {
-      img = ImageIO.read(bitmap);
-      imgHeight = img.getHeight();
-      imgWidth = img.getWidth();
-      this.maxLocations = maxLocations;
+      return PaletteRaster.fromImage(ImageIO.read(bitmap));
     } catch (IOException e) {
       throw new RuntimeException("Unable to load map image", e);
     }
   }
 
+  /**
+   * Fill the cache from a precomputed colour key, if it was generated from this bitmap.  Colours already known are
+   * kept, so this may also be used to add the colours learned by an earlier run (see {@link #learnedColourKey()}).
+   */
+  public void loadColourKey(ColourKeyFile colourKeyFile) {
+    if (colourKeyFile.getBitmapFingerprint() != raster.fingerprint()) {
+      LOG.warn("Colour key was generated from a different bitmap, ignoring it. Regenerate it with BitmapGenerator.");
+      return;
+    }
+
+    Map<Integer, List<Location>> key = colourKeyFile.getColourKey();
+    Map<Integer, Integer> indexOf = new HashMap<>();
+    for (int i = 0; i < raster.getPaletteSize(); i++) {
+      indexOf.put(raster.colour(i), i);
+    }
+
+    int loaded = 0;
+    for (Map.Entry<Integer, List<Location>> entry : key.entrySet()) {
+      Integer index = indexOf.get(entry.getKey());
+      if (index == null || index == PaletteRaster.BORDER_INDEX || index == PaletteRaster.EMPTY_INDEX) {
+        LOG.warn("Colour key has colour {} which is not usable in the bitmap", String.format("#%06x", entry.getKey()));
+      } else if (store(index, entry.getValue())) {
+        loaded++;
+      }
+    }
+    LOG.info("Loaded {} of {} colours from colour key", loaded, raster.getPaletteSize() - 2);
+  }
+
   /**
    * Layer name, used in API responses and logging.
    */
@@ -71,13 +194,38 @@ public abstract class AbstractBitmapCachedLayer {
    * Query the layer, using the bitmap cache first if the uncertainty allows it.
    */
   public final List<Location> query(double latitude, double longitude, double uncertaintyDegrees) {
-    List<Location> found = null;
+    List<Location> found = queryCache(latitude, longitude, uncertaintyDegrees);
+    if (found == null) {
+      found = queryUncached(latitude, longitude, uncertaintyDegrees);
+    }
+    return found;
+  }
+
+  /**
+   * The first half of {@link #query}: check the bitmap cache only.  This is fast enough to always run on the
+   * calling thread.
+   * @return Locations or null if the bitmap can't answer.
+   */
+  public final List<Location> queryCache(double latitude, double longitude, double uncertaintyDegrees) {
     if (uncertaintyDegrees <= BITMAP_UNCERTAINTY_DEGREES) { // TODO per layer
-      found = checkBitmap(latitude, longitude);
+      return checkBitmap(latitude, longitude);
+    } else {
+      return checkBitmap(latitude, longitude, adjustUncertainty(uncertaintyDegrees, latitude));
+    }
+  }
+
+  /**
+   * The second half of {@link #query}, for when the bitmap can't answer: check the refined border cells, then
+   * query the datasource and learn the result.
+   */
+  public final List<Location> queryUncached(double latitude, double longitude, double uncertaintyDegrees) {
+    List<Location> found = null;
+    if (uncertaintyDegrees <= BITMAP_UNCERTAINTY_DEGREES && refineBorders() && isBorder(latitude, longitude)) {
+      found = checkBorderCells(latitude, longitude);
     }
 
     if (found == null) {
-      found = queryDatasource(latitude, longitude, adjustUncertainty(uncertaintyDegrees, latitude));
+      found = queryResultCache(latitude, longitude, adjustUncertainty(uncertaintyDegrees, latitude));
 
       if (uncertaintyDegrees <= BITMAP_UNCERTAINTY_DEGREES) {
         putBitmap(latitude, longitude, found);
@@ -87,6 +235,186 @@ public abstract class AbstractBitmapCachedLayer {
     return found;
   }
 
+  /**
+   * Query the datasource through the result cache.  With a coarser {@link #resultCacheResolution()}, the datasource
+   * is queried at the centre of the quantized cell, so every query in the cell gets the same result.
+   * <br/>
+   * Concurrent identical queries are coalesced: the first queries the datasource, and the others wait for its result.
+   */
+  private List<Location> queryResultCache(double latitude, double longitude, double uncertainty) {
+    double resolution = resultCacheResolution();
+    ResultCache.Key key = ResultCache.key(latitude, longitude, uncertainty, resolution);
+    List<Location> found = resultCache.get(key);
+    if (found != null) {
+      return found;
+    }
+
+    CompletableFuture<List<Location>> flight = new CompletableFuture<>();
+    CompletableFuture<List<Location>> existing = inFlight.putIfAbsent(key, flight);
+    if (existing != null) {
+      coalesced.increment();
+      return await(existing);
+    }
+
+    try {
+      // Another query may have finished between checking the cache and taking the flight.
+      found = resultCache.peek(key);
+      if (found == null) {
+        if (resolution > 0) {
+          latitude = Math.round(latitude / resolution) * resolution;
+          longitude = Math.round(longitude / resolution) * resolution;
+          uncertainty = Math.round(uncertainty / resolution) * resolution;
+        }
+        found = Collections.unmodifiableList(queryDatasource(latitude, longitude, uncertainty));
+        resultCache.put(key, found);
+      }
+      flight.complete(found);
+      return found;
+    } catch (RuntimeException | Error e) {
+      flight.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, flight);
+    }
+  }
+
+  private static List<Location> await(CompletableFuture<List<Location>> flight) {
+    try {
+      return flight.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Resolution in degrees to which coordinates and uncertainty are rounded for the result cache, by default
+   * {@link #EXACT_COORDINATES}.
+   * <br/>
+   * A coarser resolution answers every query in a cell as if it were at the centre of the cell, so a point up to half
+   * a cell inside a border can be given the neighbouring region too, or not be given its own.  Only a layer whose
+   * answers can't change within such a cell should use one.
+   */
+  protected double resultCacheResolution() {
+    return EXACT_COORDINATES;
+  }
+
+  /**
+   * The cache of datasource results, for metrics.
+   */
+  public ResultCache getResultCache() {
+    return resultCache;
+  }
+
+  /**
+   * Query the underlying datasource once for every colour in the bitmap, at the first pixel found with that colour.
+   * <br/>
+   * Used to generate the colour key stored alongside the bitmap, so the cache can start warm.
+   */
+  public ColourKeyFile generateColourKey() {
+    int[] firstPixel = new int[raster.getPaletteSize()];
+    Arrays.fill(firstPixel, -1);
+    for (int y = 0; y < imgHeight; y++) {
+      for (int x = 0; x < imgWidth; x++) {
+        int index = raster.index(x, y);
+        if (firstPixel[index] < 0) {
+          firstPixel[index] = y * imgWidth + x;
+        }
+      }
+    }
+
+    Map<Integer, List<Location>> key = new HashMap<>();
+    for (int index = 0; index < firstPixel.length; index++) {
+      if (index == PaletteRaster.BORDER_INDEX || index == PaletteRaster.EMPTY_INDEX || firstPixel[index] < 0) {
+        continue;
+      }
+
+      // The inverse of the conversion in checkBitmap.
+      int x = firstPixel[index] % imgWidth;
+      int y = firstPixel[index] / imgWidth;
+      double lng = x * 360d / (imgWidth - 1) - 180d;
+      double lat = (imgHeight - 1 - y) * 180d / (imgHeight - 1) - 90d;
+
+      List<Location> locations = queryDatasource(lat, lng, adjustUncertainty(BITMAP_UNCERTAINTY_DEGREES, lat));
+      if (locations.isEmpty() || locations.size() > maxLocations) {
+        LOG.warn("{} (max {}) locations for colour {} (LL {},{}; pixel {},{}), not adding it to the colour key",
+          locations.size(), maxLocations, hex(index), lat, lng, x, y);
+      } else {
+        key.put(raster.colour(index), locations);
+      }
+    }
+
+    return new ColourKeyFile(raster.fingerprint(), key);
+  }
+
+  /**
+   * The colours known so far, whether loaded from a colour key or learned from datasource queries.
+   * <br/>
+   * Unlike {@link #generateColourKey()} this makes no queries, so it can be saved when shutting down and loaded with
+   * {@link #loadColourKey(ColourKeyFile)} at the next start.
+   */
+  public ColourKeyFile learnedColourKey() {
+    Map<Integer, List<Location>> key = new HashMap<>();
+    for (int index = 0; index < colourKey.length(); index++) {
+      List<Location> locations = colourKey.get(index);
+      if (locations != null) {
+        key.put(raster.colour(index), locations);
+      }
+    }
+    return new ColourKeyFile(raster.fingerprint(), key);
+  }
+
+  /**
+   * Whether to refine border pixels into smaller cells, see {@link #classifyCell}.  Layers whose results aren't
+   * regions (e.g. distances to points) should return false.
+   */
+  protected boolean refineBorders() {
+    return true;
+  }
+
+  /**
+   * Classify a cell within a border pixel, by querying the datasource at its centre with the uncertainty extended
+   * by the cell's half diagonal.  If every location found contains the centre, the cell is within those locations
+   * (or if none are found, within none).
+   * <br/>
+   * The locations are then correct for any point in the cell, but if a location's edge crosses the cell a point
+   * outside it is given a distance of zero rather than at most the half diagonal.
+   * @return Locations for the whole cell, or null if it is mixed.
+   */
+  protected List<Location> classifyCell(double latitude, double longitude, double halfDiagonalDegrees) {
+    double uncertainty = adjustUncertainty(BITMAP_UNCERTAINTY_DEGREES, latitude) + halfDiagonalDegrees;
+    List<Location> locations = queryDatasource(latitude, longitude, uncertainty);
+    if (locations.size() > maxLocations) {
+      return null;
+    }
+    for (Location l : locations) {
+      if (l.getDistance() == null || l.getDistance() != 0d) {
+        return null;
+      }
+    }
+    return locations;
+  }
+
+  /**
+   * Check the refined cells of a border pixel, classifying a new cell if needed.
+   * @return Locations or null if the cells can't answer.
+   */
+  List<Location> checkBorderCells(double lat, double lng) {
+    List<Location> locations = borderCells.find(lat, lng, this::classifyCell);
+    if (locations != null) {
+      borderHit.increment();
+      if (LOG.isTraceEnabled()) {
+        LOG.trace("LatLong {},{} is in a refined border cell (HIT)", lat, lng);
+      }
+    }
+    return locations;
+  }
+
   /**
    * Query the underlying datasource (PostGIS, shapefile etc).
    */
@@ -102,47 +430,86 @@ public abstract class AbstractBitmapCachedLayer {
     int x = (int) (Math.round((lng + 180d) / 360d * (imgWidth - 1)));
     int y = imgHeight - 1 - (int) (Math.round((lat + 90d) / 180d * (imgHeight - 1)));
 
-    int colour = img.getRGB(x, y) & 0x00FFFFFF; // Ignore possible transparency.
-
-    String hex = String.format("#%06x", colour);
+    int index = raster.index(x, y);
 
     List<Location> locations;
 
-    switch (colour) {
-      case BORDER:
-        border++;
-        LOG.trace("LatLong {},{} has pixel {},{} with colour {} (BORDER)", lat, lng, x, y, hex);
+    switch (index) {
+      case PaletteRaster.BORDER_INDEX:
+        border.increment();
+        if (LOG.isTraceEnabled()) {
+          LOG.trace("LatLong {},{} has pixel {},{} with colour {} (BORDER)", lat, lng, x, y, hex(index));
+        }
         locations = null;
         break;
 
-      case EMPTY:
-        empty++;
-        LOG.trace("LatLong {},{} has pixel {},{} with colour {} (EMPTY)", lat, lng, x, y, hex);
+      case PaletteRaster.EMPTY_INDEX:
+        empty.increment();
+        if (LOG.isTraceEnabled()) {
+          LOG.trace("LatLong {},{} has pixel {},{} with colour {} (EMPTY)", lat, lng, x, y, hex(index));
+        }
         locations = Collections.EMPTY_LIST;
         break;
 
       default:
-        if (!colourKey.containsKey(colour)) {
-          miss++;
-          LOG.trace("LatLong {},{} has pixel {},{} with colour {} (MISS)", lat, lng, x, y, hex);
-          locations = null;
+        locations = colourKey.get(index);
+        if (locations == null) {
+          miss.increment();
+          if (LOG.isTraceEnabled()) {
+            LOG.trace("LatLong {},{} has pixel {},{} with colour {} (MISS)", lat, lng, x, y, hex(index));
+          }
         } else {
-          hit++;
-          locations = colourKey.get(colour);
-          LOG.trace("LatLong {},{} has pixel {},{} with colour {} (HIT)", lat, lng, x, y, hex);
+          hit.increment();
+          if (LOG.isTraceEnabled()) {
+            LOG.trace("LatLong {},{} has pixel {},{} with colour {} (HIT)", lat, lng, x, y, hex(index));
+          }
         }
     }
 
-    if ((++queries % 10_000) == 0) {
-      LOG.info("{} did {} cache lookups: {} border, {} empty, {} hit, {} miss.",
-        name(), queries, border, empty, hit, miss);
+    queries.increment();
+    // Log roughly every 10,000 lookups, without a shared counter to contend on.
+    if (ThreadLocalRandom.current().nextInt(10_000) == 0) {
+      LOG.info("{} did {} cache lookups: {} border ({} answered by {} refined cells), {} empty, {} hit, {} miss. " +
+          "Result cache has {} results, {} hit, {} miss, {} evicted; {} datasource queries coalesced.",
+        name(), queries.sum(), border.sum(), borderHit.sum(), borderCells.size(), empty.sum(), hit.sum(), miss.sum(),
+        resultCache.size(), resultCache.hitCount(), resultCache.missCount(), resultCache.evictionCount(),
+        coalesced.sum());
     }
 
     return locations;
   }
 
+  /**
+   * Check the bitmap for a query with a larger uncertainty, which can only be answered if the whole uncertainty
+   * circle lies within one colour region.
+   * @return Locations or null if the bitmap can't answer.
+   */
+  List<Location> checkBitmap(double lat, double lng, double uncertaintyDegrees) {
+    if (borderDistance == null) {
+      return null;
+    }
+
+    int x = (int) (Math.round((lng + 180d) / 360d * (imgWidth - 1)));
+    int y = imgHeight - 1 - (int) (Math.round((lat + 90d) / 180d * (imgHeight - 1)));
+
+    // The distance is a lower bound, so the uncertainty circle must be strictly inside it.
+    if (borderDistance.distanceKm(x, y) <= BorderDistanceRaster.uncertaintyKm(uncertaintyDegrees)) {
+      return null;
+    }
+
+    return checkBitmap(lat, lng);
+  }
+
+  private boolean isBorder(double lat, double lng) {
+    int x = (int) (Math.round((lng + 180d) / 360d * (imgWidth - 1)));
+    int y = imgHeight - 1 - (int) (Math.round((lat + 90d) / 180d * (imgHeight - 1)));
+    return raster.index(x, y) == PaletteRaster.BORDER_INDEX;
+  }
+
   /**
    * Store a result in the bitmap cache, if it's not a border region.
+   * <br/>
+   * The first result stored for a colour wins; concurrent stores for the same colour are discarded.
    */
   void putBitmap(double lat, double lng, List<Location> locations) {
     // Convert the latitude and longitude to x,y coordinates on the image.
@@ -150,30 +517,45 @@ public abstract class AbstractBitmapCachedLayer {
     int x = (int) (Math.round ((lng+180d)/360d*(imgWidth -1)));
     int y = imgHeight -1 - (int) (Math.round ((lat+90d)/180d*(imgHeight -1)));
 
-    int colour = img.getRGB(x, y) & 0x00FFFFFF; // Ignore possible transparency.
+    int index = raster.index(x, y);
 
-    switch (colour) {
-      case BORDER:
-      case EMPTY:
+    switch (index) {
+      case PaletteRaster.BORDER_INDEX:
+      case PaletteRaster.EMPTY_INDEX:
         return;
 
       default:
-        String hex = String.format("#%06x", colour);
-
-        if (!colourKey.containsKey(colour)) {
+        if (colourKey.get(index) == null) {
           if (locations.isEmpty() || locations.size() > maxLocations) {
             LOG.error("{} (max {}) locations for a colour! {} (LL {},{}; pixel {},{}); locations {}",
-              locations.size(), maxLocations, hex, lat, lng, x, y, joinLocations(locations));
+              locations.size(), maxLocations, hex(index), lat, lng, x, y, joinLocations(locations));
           } else {
             if (LOG.isTraceEnabled()) {
-              LOG.trace("LatLong {},{} has pixel {},{} with colour {} (STORE) {}", lat, lng, x, y, hex, joinLocations(locations));
+              LOG.trace("LatLong {},{} has pixel {},{} with colour {} (STORE) {}", lat, lng, x, y, hex(index), joinLocations(locations));
             }
-            colourKey.put(colour, locations);
+            store(index, locations);
           }
         }
     }
   }
 
+  /**
+   * Publish the locations for a palette index, unless it already has some.
+   */
+  private boolean store(int index, List<Location> locations) {
+    if (locations.isEmpty() || locations.size() > maxLocations) {
+      return false;
+    }
+    return colourKey.compareAndSet(index, null, Collections.unmodifiableList(new ArrayList<>(locations)));
+  }
+
+  /**
+   * Only used for log messages.
+   */
+  private String hex(int index) {
+    return String.format("#%06x", raster.colour(index));
+  }
+
   /**
    * Only used for the log message.
    */
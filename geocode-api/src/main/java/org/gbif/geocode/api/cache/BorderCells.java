@@ -0,0 +1,94 @@
+package org.gbif.geocode.api.cache;
+
+import org.gbif.geocode.api.model.Location;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A lazily refined quadtree over the border pixels of a bitmap.
+ * <br/>
+ * Each border pixel is split into 2×2 cells, then each of those into 2×2 and so on down to {@link #MAX_DEPTH}.  When
+ * a border pixel is queried, the cell containing the query is classified by the layer.  A cell which is entirely
+ * within the same locations is stored, and answers any later query within it; a mixed cell is split further the
+ * next time it is queried.
+ * <br/>
+ * Cells are kept in a {@link ResultCache}, keyed by depth and cell, so lookups don't lock and the cells evicted when
+ * the estimated size of the stored cells exceeds the memory budget are chosen by the same admission policy.
+ */
+class BorderCells {
+  // Cells at depth 4 are 1/16 of a pixel, about 350m for the 0.05° bitmaps.
+  static final int MAX_DEPTH = 4;
+
+  // Stored for cells which are not entirely within the same locations.
+  private static final List<Location> MIXED = Collections.unmodifiableList(new ArrayList<>());
+
+  /**
+   * Classifies a cell for {@link BorderCells}.
+   */
+  interface Classifier {
+    /**
+     * @return the locations for every point within the circle, or null if they aren't the same everywhere.
+     */
+    List<Location> classify(double latitude, double longitude, double radiusDegrees);
+  }
+
+  private final int imgWidth;
+  private final int imgHeight;
+
+  private final ResultCache cells;
+
+  BorderCells(int imgWidth, int imgHeight, long maxBytes) {
+    this.imgWidth = imgWidth;
+    this.imgHeight = imgHeight;
+    this.cells = new ResultCache(maxBytes);
+  }
+
+  /**
+   * Find the locations for a point on a border pixel, classifying at most one new cell.
+   * @return Locations or null if the cell containing the point is mixed or not yet known.
+   */
+  List<Location> find(double lat, double lng, Classifier classifier) {
+    // Continuous pixel coordinates, with pixel x,y covering x-0.5 to x+0.5 as in AbstractBitmapCachedLayer.
+    double px = (lng + 180d) / 360d * (imgWidth - 1) + 0.5d;
+    double py = imgHeight - 1 - (lat + 90d) / 180d * (imgHeight - 1) + 0.5d;
+
+    for (int depth = 1; depth <= MAX_DEPTH; depth++) {
+      int scale = 1 << depth;
+      int gx = (int) Math.floor(px * scale);
+      int gy = (int) Math.floor(py * scale);
+      ResultCache.Key key = new ResultCache.Key(depth, gy, gx);
+
+      List<Location> cell = cells.get(key);
+      if (cell == MIXED) {
+        continue;
+      }
+      if (cell != null) {
+        return cell;
+      }
+
+      // Unknown, so classify it.  The cell's centre and half diagonal, in degrees.
+      double cellLng = 360d / (imgWidth - 1) / scale;
+      double cellLat = 180d / (imgHeight - 1) / scale;
+      double centreLng = (gx + 0.5d) * cellLng - 180d - 0.5d * 360d / (imgWidth - 1);
+      double centreLat = 90d - (gy + 0.5d) * cellLat + 0.5d * 180d / (imgHeight - 1);
+      double halfDiagonal = 0.5d * Math.sqrt(cellLng * cellLng + cellLat * cellLat);
+
+      List<Location> uniform = classifier.classify(centreLat, centreLng, halfDiagonal);
+      if (uniform == null) {
+        cells.putShared(key, MIXED);
+        return null;
+      }
+      uniform = Collections.unmodifiableList(new ArrayList<>(uniform));
+      cells.putShared(key, uniform);
+      return uniform;
+    }
+
+    return null;
+  }
+
+  int size() {
+    return cells.size();
+  }
+}
@@ -0,0 +1,185 @@
+package org.gbif.geocode.api.cache;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * For each pixel of a layer bitmap, a lower bound of the distance in kilometres to the nearest border pixel.
+ * <br/>
+ * A query whose uncertainty circle is smaller than this distance lies entirely within one colour region, so it can
+ * be answered from the bitmap even though it isn't a point query.  Distances are stored in one byte, so anything
+ * beyond {@link #MAX_KM} is recorded as {@link #MAX_KM}.
+ * <br/>
+ * The raster is stored as an 8-bit greyscale PNG alongside the layer bitmap.
+ */
+public class BorderDistanceRaster {
+  public static final int MAX_KM = 255;
+
+  // Shortest and longest lengths of a degree of latitude, to keep the distances conservative.
+  static final double MIN_KM_PER_DEGREE = 110.574;
+  static final double MAX_KM_PER_DEGREE = 111.694;
+
+  private final int width;
+  private final int height;
+  private final byte[] km;
+
+  BorderDistanceRaster(int width, int height, byte[] km) {
+    this.width = width;
+    this.height = height;
+    this.km = km;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Distance in kilometres from the pixel at x,y to the nearest border, at most {@link #MAX_KM}.
+   */
+  public int distanceKm(int x, int y) {
+    return km[y * width + x] & 0xFF;
+  }
+
+  /**
+   * The maximum extent in kilometres of an uncertainty given in degrees.
+   */
+  public static double uncertaintyKm(double uncertaintyDegrees) {
+    return uncertaintyDegrees * MAX_KM_PER_DEGREE;
+  }
+
+  /**
+   * Compute the border distance for a bitmap.  This is slow, so is done when the bitmaps are generated.
+   * <br/>
+   * A border is a border-coloured pixel, or any pixel next to one of a different colour (not every bitmap draws
+   * a border between a region and the empty colour).  The poles are treated as borders, and rows wrap around the
+   * antimeridian.  One pixel diagonal is subtracted from every distance to allow for the rasterization of the
+   * borders and the rounding of a query to a pixel.
+   */
+  public static BorderDistanceRaster compute(PaletteRaster raster) {
+    final int width = raster.getWidth();
+    final int height = raster.getHeight();
+
+    final double kmPerPxY = 180d / (height - 1) * MIN_KM_PER_DEGREE;
+    final double kmPerPxX = 360d / (width - 1) * MIN_KM_PER_DEGREE;
+    final double pixelDiagonalKm = Math.sqrt(kmPerPxX * kmPerPxX + kmPerPxY * kmPerPxY);
+
+    // Cosine of each row's latitude, for the width of a pixel in that row.
+    final double[] cos = new double[height];
+    for (int y = 0; y < height; y++) {
+      cos[y] = Math.max(0, Math.cos(Math.toRadians(90d - y * 180d / (height - 1))));
+    }
+
+    // Horizontal distance in pixels to the nearest border pixel in the same row, wrapping around.
+    final int none = Integer.MAX_VALUE;
+    final int[] rowDistance = new int[width * height];
+    IntStream.range(0, height).parallel().forEach(y -> {
+      int offset = y * width;
+      Arrays.fill(rowDistance, offset, offset + width, none);
+      int last = none;
+      for (int i = 0; i < 2 * width; i++) {
+        int x = i % width;
+        if (isBorder(raster, x, y)) {
+          last = i;
+        }
+        if (last != none) {
+          rowDistance[offset + x] = Math.min(rowDistance[offset + x], i - last);
+        }
+      }
+      last = none;
+      for (int i = 2 * width - 1; i >= 0; i--) {
+        int x = i % width;
+        if (isBorder(raster, x, y)) {
+          last = i;
+        }
+        if (last != none) {
+          rowDistance[offset + x] = Math.min(rowDistance[offset + x], last - i);
+        }
+      }
+    });
+
+    // Combine the row distances of nearby rows.
+    final double maxKm = MAX_KM + pixelDiagonalKm;
+    final byte[] km = new byte[width * height];
+    IntStream.range(0, height).parallel().forEach(y -> {
+      for (int x = 0; x < width; x++) {
+        // The poles count as borders.
+        double best = Math.min(maxKm, Math.min(y, height - 1 - y) * kmPerPxY);
+
+        for (int dy = 0; dy * kmPerPxY < best; dy++) {
+          double dyKm = dy * kmPerPxY;
+          // Rows above and below; the poles mean these are always within the image.
+          for (int y2 = y - dy; y2 <= y + dy; y2 += Math.max(1, 2 * dy)) {
+            int dx = rowDistance[y2 * width + x];
+            if (dx != none) {
+              double dxKm = dx * kmPerPxX * Math.min(cos[y], cos[y2]);
+              best = Math.min(best, Math.sqrt(dyKm * dyKm + dxKm * dxKm));
+            }
+          }
+        }
+
+        km[y * width + x] = (byte) Math.max(0, Math.min(MAX_KM, (int) Math.floor(best - pixelDiagonalKm)));
+      }
+    });
+
+    return new BorderDistanceRaster(width, height, km);
+  }
+
+  private static boolean isBorder(PaletteRaster raster, int x, int y) {
+    int index = raster.index(x, y);
+    return index == PaletteRaster.BORDER_INDEX
+      || index != raster.index((x + 1) % raster.getWidth(), y)
+      || index != raster.index((x + raster.getWidth() - 1) % raster.getWidth(), y)
+      || (y > 0 && index != raster.index(x, y - 1))
+      || (y < raster.getHeight() - 1 && index != raster.index(x, y + 1));
+  }
+
+  /**
+   * Check this was computed from the bitmap: same size, and zero at every border pixel.
+   */
+  public boolean isConsistentWith(PaletteRaster raster) {
+    if (raster.getWidth() != width || raster.getHeight() != height) {
+      return false;
+    }
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        if (raster.index(x, y) == PaletteRaster.BORDER_INDEX && distanceKm(x, y) != 0) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * As a greyscale image, where the grey level is the distance in kilometres.
+   */
+  public BufferedImage toImage() {
+    BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+    byte[] pixels = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+    System.arraycopy(km, 0, pixels, 0, km.length);
+    return img;
+  }
+
+  /**
+   * Read from a greyscale image written by {@link #toImage()}.
+   */
+  public static BorderDistanceRaster fromImage(BufferedImage img) {
+    int width = img.getWidth();
+    int height = img.getHeight();
+    byte[] km = new byte[width * height];
+    int[] row = new int[width];
+    for (int y = 0; y < height; y++) {
+      img.getRaster().getSamples(0, y, width, 1, 0, row);
+      for (int x = 0; x < width; x++) {
+        km[y * width + x] = (byte) row[x];
+      }
+    }
+    return new BorderDistanceRaster(width, height, km);
+  }
+}
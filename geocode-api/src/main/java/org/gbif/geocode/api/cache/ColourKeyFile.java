@@ -0,0 +1,139 @@
+package org.gbif.geocode.api.cache;
+
+import org.gbif.geocode.api.model.Location;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads and writes the precomputed colour → locations key stored alongside a bitmap, so a bitmap cache can start
+ * fully warm rather than learning each colour with a datasource query.
+ * <br/>
+ * The format is a gzipped stream of: magic, version, the fingerprint of the bitmap it was generated from, count,
+ * then for each colour the RGB value, the number of locations and each location's fields.
+ */
+public class ColourKeyFile {
+  private static final int MAGIC = 0x47434B46; // "GCKF"
+  private static final int VERSION = 1;
+
+  private final long bitmapFingerprint;
+  private final Map<Integer, List<Location>> colourKey;
+
+  /**
+   * @param bitmapFingerprint {@link PaletteRaster#fingerprint()} of the bitmap the key was generated from
+   * @param colourKey RGB colour → locations
+   */
+  public ColourKeyFile(long bitmapFingerprint, Map<Integer, List<Location>> colourKey) {
+    this.bitmapFingerprint = bitmapFingerprint;
+    this.colourKey = colourKey;
+  }
+
+  public long getBitmapFingerprint() {
+    return bitmapFingerprint;
+  }
+
+  public Map<Integer, List<Location>> getColourKey() {
+    return colourKey;
+  }
+
+  /**
+   * Write the colour key.  The stream is finished, but not closed.
+   */
+  public void write(OutputStream out) throws IOException {
+    GZIPOutputStream gzip = new GZIPOutputStream(out);
+    DataOutputStream data = new DataOutputStream(new BufferedOutputStream(gzip));
+
+    // Sorted, so regenerating the file from the same data gives an identical file.
+    Map<Integer, List<Location>> sorted = new TreeMap<>(colourKey);
+
+    data.writeInt(MAGIC);
+    data.writeInt(VERSION);
+    data.writeLong(bitmapFingerprint);
+    data.writeInt(sorted.size());
+    for (Map.Entry<Integer, List<Location>> entry : sorted.entrySet()) {
+      data.writeInt(entry.getKey() & 0x00FFFFFF);
+      data.writeInt(entry.getValue().size());
+      for (Location l : entry.getValue()) {
+        writeString(data, l.getId());
+        writeString(data, l.getType());
+        writeString(data, l.getSource());
+        writeString(data, l.getTitle());
+        writeString(data, l.getIsoCountryCode2Digit());
+        writeDouble(data, l.getDistance());
+        writeDouble(data, l.getDistanceMeters());
+      }
+    }
+    data.flush();
+    gzip.finish();
+  }
+
+  /**
+   * Read a colour key written by {@link #write(OutputStream)}.
+   */
+  public static ColourKeyFile read(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in)));
+
+    if (data.readInt() != MAGIC) {
+      throw new IOException("Not a colour key file");
+    }
+    int version = data.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported colour key file version " + version);
+    }
+
+    long bitmapFingerprint = data.readLong();
+    int count = data.readInt();
+    Map<Integer, List<Location>> colourKey = new TreeMap<>();
+    for (int i = 0; i < count; i++) {
+      int colour = data.readInt();
+      int size = data.readInt();
+      List<Location> locations = new ArrayList<>(size);
+      for (int j = 0; j < size; j++) {
+        Location l = new Location();
+        l.setId(readString(data));
+        l.setType(readString(data));
+        l.setSource(readString(data));
+        l.setTitle(readString(data));
+        l.setIsoCountryCode2Digit(readString(data));
+        l.setDistance(readDouble(data));
+        l.setDistanceMeters(readDouble(data));
+        locations.add(l);
+      }
+      colourKey.put(colour, locations);
+    }
+    return new ColourKeyFile(bitmapFingerprint, colourKey);
+  }
+
+  private static void writeString(DataOutputStream data, String s) throws IOException {
+    data.writeBoolean(s != null);
+    if (s != null) {
+      data.writeUTF(s);
+    }
+  }
+
+  private static String readString(DataInputStream data) throws IOException {
+    return data.readBoolean() ? data.readUTF() : null;
+  }
+
+  private static void writeDouble(DataOutputStream data, Double d) throws IOException {
+    data.writeBoolean(d != null);
+    if (d != null) {
+      data.writeDouble(d);
+    }
+  }
+
+  private static Double readDouble(DataInputStream data) throws IOException {
+    return data.readBoolean() ? data.readDouble() : null;
+  }
+}
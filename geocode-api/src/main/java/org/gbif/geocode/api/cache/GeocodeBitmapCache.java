@@ -1,9 +1,12 @@
 package org.gbif.geocode.api.cache;
 
 import org.gbif.geocode.api.model.Location;
+import org.gbif.geocode.api.model.Query;
 import org.gbif.geocode.api.service.GeocodeService;
 
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -16,10 +19,50 @@ public class GeocodeBitmapCache extends AbstractBitmapCachedLayer implements Geo
   public static Logger LOG = LoggerFactory.getLogger(GeocodeBitmapCache.class);
 
   private final GeocodeService geocodeService;
+  // The layers the bitmap was built from, which must be the service's default layers.
+  private final List<String> bitmapLayers;
 
   public GeocodeBitmapCache(GeocodeService geocodeService, InputStream bitmap) {
-    super(bitmap, 500);
+    this(geocodeService, bitmap, null);
+  }
+
+  /**
+   * @param colourKey precomputed colour key for the bitmap, or null to learn colours from the service on first use.
+   */
+  public GeocodeBitmapCache(GeocodeService geocodeService, InputStream bitmap, InputStream colourKey) {
+    this(geocodeService, bitmap, colourKey, null);
+  }
+
+  /**
+   * @param colourKey precomputed colour key for the bitmap, or null to learn colours from the service on first use.
+   * @param borderDistance border distance image for the bitmap, or null to only answer queries with a small
+   *                       uncertainty from the bitmap.
+   */
+  public GeocodeBitmapCache(GeocodeService geocodeService, InputStream bitmap, InputStream colourKey,
+                            InputStream borderDistance) {
+    super(bitmap, colourKey, borderDistance, 500);
+    this.geocodeService = geocodeService;
+    this.bitmapLayers = Collections.emptyList();
+  }
+
+  /**
+   * @param raster bitmap already decoded, or mapped from a {@link PaletteRasterFile}.
+   */
+  public GeocodeBitmapCache(GeocodeService geocodeService, PaletteRaster raster, InputStream colourKey,
+                            InputStream borderDistance) {
+    this(geocodeService, raster, colourKey, borderDistance, Collections.emptyList());
+  }
+
+  /**
+   * @param raster bitmap already decoded, or mapped from a {@link PaletteRasterFile}.
+   * @param layers the layers the bitmap was built from, so queries for any of them can be answered from the cache.
+   *               These must be the service's default layers.
+   */
+  public GeocodeBitmapCache(GeocodeService geocodeService, PaletteRaster raster, InputStream colourKey,
+                            InputStream borderDistance, List<String> layers) {
+    super(raster, colourKey, borderDistance, 500);
     this.geocodeService = geocodeService;
+    this.bitmapLayers = layers;
   }
 
   public GeocodeBitmapCache(InputStream bitmap) {
@@ -47,17 +90,196 @@ public class GeocodeBitmapCache extends AbstractBitmapCachedLayer implements Geo
   }
 
   /**
-   * Simple get candidates by point.  No cache if layers are specified.
+   * Simple get candidates by point.
+   * <br/>
+   * Layers the bitmap was built from are answered from the cache if possible, by filtering the cached locations.
+   * Any other layers are queried from the service.  A point query including all the bitmap's layers is stored for
+   * the colour, as the web service's default queries are.
    */
   @Override
   public List<Location> get(Double lat, Double lng, Double uncertaintyDegrees, Double uncertaintyMeters, List<String> layers) {
     if (layers == null || layers.isEmpty()) {
       // No layers, use the method below
       return get(lat, lng, uncertaintyDegrees, uncertaintyMeters);
-    } else {
+    }
+
+    List<String> outside = new ArrayList<>();
+    List<Location> locations = checkLayers(lat, lng, toDegrees(lat, uncertaintyDegrees, uncertaintyMeters), layers, outside);
+
+    if (locations == null) {
       // Layers, skip the cache and go straight to the database.
-      return geocodeService.get(lat, lng, uncertaintyDegrees, uncertaintyMeters, layers);
+      locations = geocodeService.get(lat, lng, uncertaintyDegrees, uncertaintyMeters, layers);
+      learn(lat, lng, toDegrees(lat, uncertaintyDegrees, uncertaintyMeters), layers, locations);
+      return locations;
+    }
+
+    if (!outside.isEmpty()) {
+      locations.addAll(geocodeService.get(lat, lng, uncertaintyDegrees, uncertaintyMeters, outside));
+      locations.sort(Location.DISTANCE_COMPARATOR);
+    }
+
+    return locations;
+  }
+
+  /**
+   * Get candidates for a batch of points.
+   * <br/>
+   * Each query is answered from the bitmap if possible, as by the methods above.  The rest, and any layers outside
+   * the bitmap, are sent to the service in one batch.
+   */
+  @Override
+  public List<List<Location>> get(List<Query> queries) {
+    List<List<Location>> results = new ArrayList<>(Collections.nCopies(queries.size(), null));
+    List<Query> remaining = new ArrayList<>();
+    List<Integer> remainingIndex = new ArrayList<>();
+
+    for (int i = 0; i < queries.size(); i++) {
+      Query q = queries.get(i);
+      Double degrees = toDegrees(q.getLat(), q.getUncertaintyDegrees(), q.getUncertaintyMeters());
+
+      if (q.getLayer() == null || q.getLayer().isEmpty()) {
+        List<Location> cached = checkBitmapUncertain(q.getLat(), q.getLng(), degrees);
+        if (cached != null) {
+          results.set(i, cached);
+        } else {
+          remaining.add(q);
+          remainingIndex.add(i);
+        }
+      } else {
+        List<String> outside = new ArrayList<>();
+        List<Location> cached = checkLayers(q.getLat(), q.getLng(), degrees, q.getLayer(), outside);
+        if (cached == null) {
+          remaining.add(q);
+          remainingIndex.add(i);
+        } else {
+          results.set(i, cached);
+          if (!outside.isEmpty()) {
+            remaining.add(new Query(q.getLat(), q.getLng(), q.getUncertaintyDegrees(), q.getUncertaintyMeters(), outside));
+            remainingIndex.add(i);
+          }
+        }
+      }
+    }
+
+    if (remaining.isEmpty()) {
+      return results;
+    }
+
+    List<List<Location>> fromService = geocodeService.get(remaining);
+    for (int r = 0; r < remaining.size(); r++) {
+      int i = remainingIndex.get(r);
+      Query q = remaining.get(r);
+      List<Location> cached = results.get(i);
+
+      if (cached != null) {
+        // Cached layers with the layers outside the bitmap.
+        List<Location> locations = new ArrayList<>(cached);
+        locations.addAll(fromService.get(r));
+        locations.sort(Location.DISTANCE_COMPARATOR);
+        results.set(i, locations);
+      } else {
+        results.set(i, fromService.get(r));
+        // As above, only a point query for the default layers is stored for the colour.
+        Double degrees = toDegrees(q.getLat(), q.getUncertaintyDegrees(), q.getUncertaintyMeters());
+        if (q.getLayer() == null || q.getLayer().isEmpty()) {
+          if (degrees == null || degrees <= 0.05d) {
+            putBitmap(q.getLat(), q.getLng(), fromService.get(r));
+          }
+        } else {
+          learn(q.getLat(), q.getLng(), degrees, q.getLayer(), fromService.get(r));
+        }
+      }
+    }
+
+    return results;
+  }
+
+  /**
+   * Check the bitmap for the cached layers of those requested, adding the others to outside.
+   * @return the cached locations in the requested layers, or null if the bitmap can't answer.
+   */
+  private List<Location> checkLayers(Double lat, Double lng, Double degrees, List<String> layers, List<String> outside) {
+    boolean anyCached = false;
+    for (String layer : layers) {
+      if (layerOf(layer) != null) {
+        anyCached = true;
+      } else {
+        outside.add(layer);
+      }
+    }
+
+    // Only the cached layers can be answered from the bitmap; colours are learned by the method below.
+    if (!anyCached) {
+      return null;
+    }
+    List<Location> cached = checkBitmapUncertain(lat, lng, degrees);
+    if (cached == null) {
+      return null;
+    }
+
+    List<Location> locations = new ArrayList<>();
+    for (Location l : cached) {
+      if (layers.contains(layerOf(l.getType()))) {
+        locations.add(l);
+      }
+    }
+    return locations;
+  }
+
+  /**
+   * Store the result of a point query for the colour, if it included all the layers the bitmap was built from.
+   * <br/>
+   * Only the locations in those layers are stored, which is then the same as the result for the default layers.
+   */
+  private void learn(Double lat, Double lng, Double degrees, List<String> layers, List<Location> locations) {
+    if (bitmapLayers.isEmpty() || !layers.containsAll(bitmapLayers) || (degrees != null && degrees > 0.05d)) {
+      return;
+    }
+
+    List<Location> inBitmap = new ArrayList<>();
+    for (Location l : locations) {
+      if (layerOf(l.getType()) != null) {
+        inBitmap.add(l);
+      }
+    }
+    putBitmap(lat, lng, inBitmap);
+  }
+
+  /**
+   * Check the bitmap for a point query, or one with its whole uncertainty circle within one colour.
+   */
+  private List<Location> checkBitmapUncertain(Double lat, Double lng, Double degrees) {
+    if (degrees == null || degrees <= 0.05d) {
+      return checkBitmap(lat, lng);
+    } else {
+      return checkBitmap(lat, lng, degrees);
+    }
+  }
+
+  /**
+   * The bitmap's layer for a layer name or location type, e.g. GADM for GADM1.
+   * @return the layer, or null if the bitmap wasn't built from it.
+   */
+  private String layerOf(String type) {
+    String layer = null;
+    if (type != null) {
+      for (String l : bitmapLayers) {
+        if (type.startsWith(l) && (layer == null || l.length() > layer.length())) {
+          layer = l;
+        }
+      }
+    }
+    return layer;
+  }
+
+  /**
+   * Convert uncertainty in metres to degrees, approximating the Earth as a sphere.
+   */
+  private static Double toDegrees(Double lat, Double uncertaintyDegrees, Double uncertaintyMeters) {
+    if (uncertaintyMeters != null) {
+      return uncertaintyMeters / (111_319.491 * Math.cos(Math.toRadians(lat)));
     }
+    return uncertaintyDegrees;
   }
 
   /**
@@ -71,21 +293,27 @@ public class GeocodeBitmapCache extends AbstractBitmapCachedLayer implements Geo
   public List<Location> get(Double lat, Double lng, Double uncertaintyDegrees, Double uncertaintyMeters) {
     List<Location> locations = null;
 
-    // Convert uncertainty in metres to degrees, approximating the Earth as a sphere.
     if (uncertaintyMeters != null) {
-      uncertaintyDegrees = uncertaintyMeters / (111_319.491 * Math.cos(Math.toRadians(lat)));
+      uncertaintyDegrees = toDegrees(lat, uncertaintyDegrees, uncertaintyMeters);
       LOG.debug("{}m uncertainty converted to {}°", uncertaintyMeters, uncertaintyDegrees);
     }
 
     // Check the image map for a sure location.
-    if (uncertaintyDegrees == null || uncertaintyDegrees <= 0.05d) {
+    boolean pointQuery = uncertaintyDegrees == null || uncertaintyDegrees <= 0.05d;
+    if (pointQuery) {
       locations = checkBitmap(lat, lng);
+    } else {
+      // Only if the whole uncertainty circle is within one colour.
+      locations = checkBitmap(lat, lng, uncertaintyDegrees);
     }
 
     // If that doesn't help, use the database.
     if (locations == null) {
       locations = geocodeService.get(lat, lng, uncertaintyDegrees, uncertaintyMeters);
-      putBitmap(lat, lng, locations);
+      // An uncertain result can include neighbouring regions, so isn't stored for the colour.
+      if (pointQuery) {
+        putBitmap(lat, lng, locations);
+      }
     }
 
     return locations;
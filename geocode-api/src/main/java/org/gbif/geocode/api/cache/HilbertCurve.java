@@ -0,0 +1,68 @@
+package org.gbif.geocode.api.cache;
+
+import java.util.Arrays;
+
+/**
+ * Orders coordinates along a Hilbert curve, so points near each other on the map are usually near each other in the
+ * order.
+ * <br/>
+ * Querying a layer's datasource in this order means consecutive queries use the same shapefile index nodes, database
+ * pages and so on, rather than jumping around the world as a batch in record order does.  Bitmap lookups are cheaper
+ * than the sort, so aren't worth reordering.
+ */
+public class HilbertCurve {
+  // The curve covers a 2^16 × 2^16 grid, about 600m × 300m per cell at the equator.
+  static final int ORDER = 16;
+
+  /**
+   * Batches smaller than this aren't worth sorting.
+   */
+  public static final int SORT_THRESHOLD = 64;
+
+  /**
+   * Position of a coordinate along the curve.
+   */
+  public static long key(double lat, double lng) {
+    int n = 1 << ORDER;
+    int x = (int) Math.max(0, Math.min(n - 1, (lng + 180d) / 360d * n));
+    // From the north, as the rows of the bitmaps.
+    int y = (int) Math.max(0, Math.min(n - 1, (90d - lat) / 180d * n));
+
+    long d = 0;
+    for (int s = n / 2; s > 0; s /= 2) {
+      int rx = (x & s) > 0 ? 1 : 0;
+      int ry = (y & s) > 0 ? 1 : 0;
+      d += (long) s * s * ((3 * rx) ^ ry);
+      // Rotate the quadrant.
+      if (ry == 0) {
+        if (rx == 1) {
+          x = n - 1 - x;
+          y = n - 1 - y;
+        }
+        int t = x;
+        x = y;
+        y = t;
+      }
+    }
+    return d;
+  }
+
+  /**
+   * The order in which to evaluate a batch of coordinates.
+   * @return indices of the coordinates, sorted along the curve.
+   */
+  public static int[] order(double[] lat, double[] lng) {
+    // The key (32 bits) and the index (31 bits) packed into one long, so a primitive sort does the work.
+    long[] packed = new long[lat.length];
+    for (int i = 0; i < lat.length; i++) {
+      packed[i] = key(lat[i], lng[i]) << 31 | i;
+    }
+    Arrays.sort(packed);
+
+    int[] order = new int[lat.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = (int) (packed[i] & Integer.MAX_VALUE);
+    }
+    return order;
+  }
+}
@@ -0,0 +1,187 @@
+package org.gbif.geocode.api.cache;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A bitmap decoded into a flat array of palette indices, so a lookup is an array read rather than a
+ * {@link BufferedImage#getRGB(int, int)} colour model conversion.
+ * <br/>
+ * Index 0 is always the border colour (black) and index 1 is always the empty colour (white), whether or
+ * not they occur in the image.
+ */
+public abstract class PaletteRaster {
+  public static final int BORDER_INDEX = 0;
+  public static final int EMPTY_INDEX = 1;
+
+  static final int BORDER_COLOUR = 0x000000;
+  static final int EMPTY_COLOUR = 0xFFFFFF;
+
+  final int width;
+  final int height;
+  final int[] palette;
+
+  // Computed on first use, unless it was recorded with the raster.
+  private long fingerprint;
+  private boolean fingerprinted;
+
+  PaletteRaster(int width, int height, int[] palette) {
+    this.width = width;
+    this.height = height;
+    this.palette = palette;
+  }
+
+  PaletteRaster(int width, int height, int[] palette, long fingerprint) {
+    this(width, height, palette);
+    this.fingerprint = fingerprint;
+    this.fingerprinted = true;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Number of distinct colours, including the reserved border and empty colours.
+   */
+  public int getPaletteSize() {
+    return palette.length;
+  }
+
+  /**
+   * The RGB colour (without alpha) of a palette index.
+   */
+  public int colour(int index) {
+    return palette[index];
+  }
+
+  /**
+   * The palette index of the pixel at x,y, with the origin at the top left.
+   */
+  public abstract int index(int x, int y);
+
+  /**
+   * A hash of every pixel's colour, used to check a precomputed colour key belongs to this bitmap.
+   * <br/>
+   * It's computed once, as it reads every pixel; a mapped raster has it from its raster file, so isn't read at all.
+   */
+  public synchronized long fingerprint() {
+    if (!fingerprinted) {
+      fingerprint = computeFingerprint();
+      fingerprinted = true;
+    }
+    return fingerprint;
+  }
+
+  private long computeFingerprint() {
+    long hash = 1125899906842597L;
+    hash = 31 * hash + width;
+    hash = 31 * hash + height;
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        hash = 31 * hash + palette[index(x, y)];
+      }
+    }
+    return hash;
+  }
+
+  /**
+   * Decode an image into palette indices.  Images with up to 65,536 colours (all the layers we have so far)
+   * use two bytes per pixel, larger palettes use four.
+   */
+  public static PaletteRaster fromImage(BufferedImage img) {
+    int width = img.getWidth();
+    int height = img.getHeight();
+
+    Map<Integer, Integer> indexOf = new HashMap<>();
+    int[] palette = new int[256];
+    palette[BORDER_INDEX] = BORDER_COLOUR;
+    palette[EMPTY_INDEX] = EMPTY_COLOUR;
+    indexOf.put(BORDER_COLOUR, BORDER_INDEX);
+    indexOf.put(EMPTY_COLOUR, EMPTY_INDEX);
+    int paletteSize = 2;
+
+    short[] shortIndices = new short[width * height];
+    int[] intIndices = null;
+
+    int[] row = new int[width];
+    // Cache the previous pixel's colour, as long runs of one colour are the norm.
+    int lastColour = -1;
+    int lastIndex = -1;
+    for (int y = 0; y < height; y++) {
+      img.getRGB(0, y, width, 1, row, 0, width);
+      for (int x = 0; x < width; x++) {
+        int colour = row[x] & 0x00FFFFFF; // Ignore possible transparency.
+
+        if (colour != lastColour) {
+          Integer index = indexOf.get(colour);
+          if (index == null) {
+            index = paletteSize++;
+            indexOf.put(colour, index);
+            if (index == palette.length) {
+              palette = Arrays.copyOf(palette, palette.length * 2);
+            }
+            palette[index] = colour;
+
+            if (index > 0xFFFF && intIndices == null) {
+              intIndices = new int[width * height];
+              for (int i = 0; i < y * width + x; i++) {
+                intIndices[i] = shortIndices[i] & 0xFFFF;
+              }
+              shortIndices = null;
+            }
+          }
+          lastColour = colour;
+          lastIndex = index;
+        }
+
+        if (intIndices == null) {
+          shortIndices[y * width + x] = (short) lastIndex;
+        } else {
+          intIndices[y * width + x] = lastIndex;
+        }
+      }
+    }
+
+    palette = Arrays.copyOf(palette, paletteSize);
+    if (intIndices == null) {
+      return new ShortPaletteRaster(width, height, palette, shortIndices);
+    } else {
+      return new IntPaletteRaster(width, height, palette, intIndices);
+    }
+  }
+
+  static final class ShortPaletteRaster extends PaletteRaster {
+    private final short[] indices;
+
+    ShortPaletteRaster(int width, int height, int[] palette, short[] indices) {
+      super(width, height, palette);
+      this.indices = indices;
+    }
+
+    @Override
+    public int index(int x, int y) {
+      return indices[y * width + x] & 0xFFFF;
+    }
+  }
+
+  static final class IntPaletteRaster extends PaletteRaster {
+    private final int[] indices;
+
+    IntPaletteRaster(int width, int height, int[] palette, int[] indices) {
+      super(width, height, palette);
+      this.indices = indices;
+    }
+
+    @Override
+    public int index(int x, int y) {
+      return indices[y * width + x];
+    }
+  }
+}
@@ -0,0 +1,217 @@
+package org.gbif.geocode.api.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import javax.imageio.ImageIO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads and writes a {@link PaletteRaster} as an uncompressed file, which is memory mapped rather than decoded.
+ * <br/>
+ * Mapping avoids the PNG decode at startup, keeps the pixels off the heap, and lets several JVMs on one host share
+ * the same pages of the operating system's cache.
+ * <br/>
+ * The format is: magic, version, checksum of the PNG it was decoded from, the raster's
+ * {@link PaletteRaster#fingerprint()}, width, height, palette size, bytes per index (2 or 4), the palette, padding
+ * to a multiple of 8 bytes, then the palette index of each pixel row by row.
+ */
+public class PaletteRasterFile {
+  private static final Logger LOG = LoggerFactory.getLogger(PaletteRasterFile.class);
+
+  private static final int MAGIC = 0x47435052; // "GCPR"
+  private static final int VERSION = 2;
+  private static final int HEADER_BYTES = 4 * 4 + 8 * 2 + 4 * 2;
+
+  /**
+   * Load a bitmap, mapping the raster file if it was decoded from the same PNG.  Otherwise decode the PNG and write
+   * the raster file, so the next start (of this or any other JVM on the host) can map it.
+   * <br/>
+   * If the raster file can't be written, the decoded raster is used from the heap.
+   */
+  public static PaletteRaster cached(InputStream png, Path rasterFile) throws IOException {
+    byte[] pngBytes = png.readAllBytes();
+    long checksum = checksum(pngBytes);
+
+    if (Files.isReadable(rasterFile)) {
+      try {
+        PaletteRaster mapped = map(rasterFile, checksum);
+        if (mapped != null) {
+          LOG.info("Mapped bitmap raster {}", rasterFile);
+          return mapped;
+        }
+        LOG.info("Bitmap raster {} was decoded from a different bitmap, replacing it", rasterFile);
+      } catch (IOException e) {
+        LOG.warn("Unable to map bitmap raster {}, replacing it", rasterFile, e);
+      }
+    }
+
+    PaletteRaster raster = PaletteRaster.fromImage(ImageIO.read(new ByteArrayInputStream(pngBytes)));
+    try {
+      write(raster, checksum, rasterFile);
+      return map(rasterFile, checksum);
+    } catch (IOException e) {
+      LOG.warn("Unable to write bitmap raster {}, keeping the bitmap on the heap", rasterFile, e);
+      return raster;
+    }
+  }
+
+  /**
+   * The checksum of a PNG file, recorded in the raster file decoded from it.
+   */
+  public static long checksum(byte[] png) {
+    CRC32 crc = new CRC32();
+    crc.update(png);
+    return crc.getValue();
+  }
+
+  /**
+   * Write a raster file.  It's written to a temporary file and moved into place, so a concurrent reader never sees
+   * a partial file.
+   */
+  public static void write(PaletteRaster raster, long pngChecksum, Path rasterFile) throws IOException {
+    Path directory = rasterFile.toAbsolutePath().getParent();
+    Files.createDirectories(directory);
+    Path temporary = Files.createTempFile(directory, rasterFile.getFileName().toString(), ".tmp");
+    try {
+      try (OutputStream out = Files.newOutputStream(temporary)) {
+        write(raster, pngChecksum, out);
+      }
+      Files.move(temporary, rasterFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  /**
+   * Write a raster.  The stream is flushed, but not closed.
+   */
+  public static void write(PaletteRaster raster, long pngChecksum, OutputStream out) throws IOException {
+    DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+    int width = raster.getWidth();
+    int height = raster.getHeight();
+    int paletteSize = raster.getPaletteSize();
+    int bytesPerIndex = paletteSize > 0x10000 ? 4 : 2;
+
+    data.writeInt(MAGIC);
+    data.writeInt(VERSION);
+    data.writeLong(pngChecksum);
+    data.writeLong(raster.fingerprint());
+    data.writeInt(width);
+    data.writeInt(height);
+    data.writeInt(paletteSize);
+    data.writeInt(bytesPerIndex);
+    for (int i = 0; i < paletteSize; i++) {
+      data.writeInt(raster.colour(i));
+    }
+    for (int i = 0; i < padding(paletteSize); i++) {
+      data.writeByte(0);
+    }
+
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        if (bytesPerIndex == 2) {
+          data.writeShort(raster.index(x, y));
+        } else {
+          data.writeInt(raster.index(x, y));
+        }
+      }
+    }
+    data.flush();
+  }
+
+  /**
+   * Map a raster file.
+   * @return the raster, or null if it wasn't decoded from the PNG with this checksum.
+   */
+  public static PaletteRaster map(Path rasterFile, long pngChecksum) throws IOException {
+    try (FileChannel channel = FileChannel.open(rasterFile, StandardOpenOption.READ)) {
+      // The mapping remains valid after the channel is closed.
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+      if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC) {
+        throw new IOException("Not a bitmap raster file");
+      }
+      int version = buffer.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported bitmap raster file version " + version);
+      }
+      if (buffer.getLong() != pngChecksum) {
+        return null;
+      }
+
+      long fingerprint = buffer.getLong();
+      int width = buffer.getInt();
+      int height = buffer.getInt();
+      int paletteSize = buffer.getInt();
+      int bytesPerIndex = buffer.getInt();
+
+      long expectedSize = HEADER_BYTES + 4L * paletteSize + padding(paletteSize) + (long) bytesPerIndex * width * height;
+      if (channel.size() != expectedSize || (bytesPerIndex != 2 && bytesPerIndex != 4)) {
+        throw new IOException("Bitmap raster file is truncated or corrupt");
+      }
+
+      int[] palette = new int[paletteSize];
+      buffer.asIntBuffer().get(palette);
+      buffer.position(buffer.position() + 4 * paletteSize + padding(paletteSize));
+
+      ByteBuffer indices = buffer.slice();
+      if (bytesPerIndex == 2) {
+        return new MappedShortPaletteRaster(width, height, palette, fingerprint, indices.asShortBuffer());
+      } else {
+        return new MappedIntPaletteRaster(width, height, palette, fingerprint, indices.asIntBuffer());
+      }
+    }
+  }
+
+  /**
+   * Padding after the palette, so the indices start at a multiple of 8 bytes.
+   */
+  private static int padding(int paletteSize) {
+    return (8 - (HEADER_BYTES + 4 * paletteSize) % 8) % 8;
+  }
+
+  static final class MappedShortPaletteRaster extends PaletteRaster {
+    private final ShortBuffer indices;
+
+    MappedShortPaletteRaster(int width, int height, int[] palette, long fingerprint, ShortBuffer indices) {
+      super(width, height, palette, fingerprint);
+      this.indices = indices;
+    }
+
+    @Override
+    public int index(int x, int y) {
+      return indices.get(y * width + x) & 0xFFFF;
+    }
+  }
+
+  static final class MappedIntPaletteRaster extends PaletteRaster {
+    private final IntBuffer indices;
+
+    MappedIntPaletteRaster(int width, int height, int[] palette, long fingerprint, IntBuffer indices) {
+      super(width, height, palette, fingerprint);
+      this.indices = indices;
+    }
+
+    @Override
+    public int index(int x, int y) {
+      return indices.get(y * width + x);
+    }
+  }
+}
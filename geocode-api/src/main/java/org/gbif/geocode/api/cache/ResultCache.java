@@ -0,0 +1,428 @@
+package org.gbif.geocode.api.cache;
+
+import org.gbif.geocode.api.model.Location;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded cache of datasource results, for queries the bitmap can't answer.
+ * <br/>
+ * The eviction policy is W-TinyLFU: new entries go into a small LRU window; entries leaving the window are only
+ * admitted to the main space if they have been queried more often than the entry they would evict, as estimated by a
+ * count-min sketch.  The main space is a segmented LRU, so entries queried again are protected from a scan of
+ * one-off queries.  This keeps repeated coordinates (herbarium localities, grid cell centres) cached while a
+ * dataset of unique coordinates streams past.
+ * <br/>
+ * The cache is bounded by the estimated size of the entries, as for {@link BorderCells}.
+ * <br/>
+ * Lookups don't take a lock.  The entries are read from a concurrent map, and each lookup is recorded in a small
+ * buffer; the buffered lookups are applied to the frequency sketch and the LRU order under a lock, by whichever
+ * thread finds the buffer filling up or adds an entry.  A full buffer drops lookups, which only makes the eviction
+ * order a little less exact.  This follows Caffeine's design, without the dependency.
+ */
+public class ResultCache {
+  // Rough sizes for the memory budget: a map entry with its key, and each location.
+  private static final int ENTRY_BYTES = 128;
+  private static final int LOCATION_BYTES = 200;
+
+  /**
+   * A quantized query.
+   */
+  static final class Key {
+    private final long lat;
+    private final long lng;
+    private final long uncertainty;
+    private final int hash;
+
+    Key(long lat, long lng, long uncertainty) {
+      this.lat = lat;
+      this.lng = lng;
+      this.uncertainty = uncertainty;
+      long h = lat * 0x9E3779B97F4A7C15L + lng * 0xC2B2AE3D27D4EB4FL + uncertainty;
+      this.hash = (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Key key = (Key) o;
+      return lat == key.lat && lng == key.lng && uncertainty == key.uncertainty;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private static final class Entry {
+    final List<Location> locations;
+    final long bytes;
+
+    Entry(List<Location> locations) {
+      this.locations = locations;
+      this.bytes = ENTRY_BYTES + (long) LOCATION_BYTES * locations.size();
+    }
+  }
+
+  private final long maxBytes;
+  private final long windowMaxBytes;
+  private final long protectedMaxBytes;
+
+  // The cached entries, read without locking.
+  private final ConcurrentHashMap<Key, Entry> data = new ConcurrentHashMap<>();
+  // Lookups not yet applied to the policy below.
+  private final ReadBuffer reads = new ReadBuffer();
+
+  // The eviction policy, only used while holding the lock.  Each segment is in least-recently-used order.
+  private final ReentrantLock lock = new ReentrantLock();
+  private final LinkedHashMap<Key, Entry> window = new LinkedHashMap<>(64, 0.75f, true);
+  private final LinkedHashMap<Key, Entry> probation = new LinkedHashMap<>(1024, 0.75f, true);
+  private final LinkedHashMap<Key, Entry> protectedSegment = new LinkedHashMap<>(1024, 0.75f, true);
+  private long windowBytes = 0;
+  private long probationBytes = 0;
+  private long protectedBytes = 0;
+
+  private final FrequencySketch sketch;
+
+  private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+
+  ResultCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+    // 1% window, and 80% of the main space protected, as recommended for W-TinyLFU.
+    this.windowMaxBytes = Math.max(maxBytes / 100, ENTRY_BYTES + LOCATION_BYTES);
+    this.protectedMaxBytes = (maxBytes - windowMaxBytes) * 4 / 5;
+    this.sketch = new FrequencySketch((int) Math.min(1 << 24, maxBytes / (ENTRY_BYTES + LOCATION_BYTES)));
+  }
+
+  /**
+   * Key for a query, with coordinates rounded to the resolution, or exact if the resolution is 0.
+   */
+  static Key key(double lat, double lng, double uncertainty, double resolution) {
+    if (resolution > 0) {
+      return new Key(Math.round(lat / resolution), Math.round(lng / resolution), Math.round(uncertainty / resolution));
+    } else {
+      return new Key(Double.doubleToLongBits(lat), Double.doubleToLongBits(lng), Double.doubleToLongBits(uncertainty));
+    }
+  }
+
+  /**
+   * @return the cached locations, or null.
+   */
+  List<Location> get(Key key) {
+    Entry e = data.get(key);
+
+    if (!reads.offer(key) || reads.pending() >= ReadBuffer.DRAIN_THRESHOLD) {
+      tryDrain();
+    }
+
+    if (e == null) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return e.locations;
+  }
+
+  /**
+   * @return the cached locations, or null, without counting a lookup.
+   */
+  List<Location> peek(Key key) {
+    Entry e = data.get(key);
+    return e == null ? null : e.locations;
+  }
+
+  /**
+   * Add a result, unless it's already cached.
+   */
+  void put(Key key, List<Location> locations) {
+    putShared(key, Collections.unmodifiableList(new ArrayList<>(locations)));
+  }
+
+  /**
+   * Add a result without copying it, unless it's already cached.  The list must not be modified afterwards.
+   */
+  void putShared(Key key, List<Location> locations) {
+    Entry e = new Entry(locations);
+    if (e.bytes > windowMaxBytes || data.containsKey(key)) {
+      return;
+    }
+
+    lock.lock();
+    try {
+      drain();
+      if (data.putIfAbsent(key, e) != null) {
+        return;
+      }
+      addToWindow(key, e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Apply the buffered lookups, unless another thread is already doing so.
+   */
+  private void tryDrain() {
+    if (lock.tryLock()) {
+      try {
+        drain();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Apply the buffered lookups to the frequency sketch and the LRU order.  The lock must be held.
+   */
+  private void drain() {
+    Key key;
+    while ((key = reads.poll()) != null) {
+      sketch.increment(key.hashCode());
+
+      Entry e = window.get(key);
+      if (e == null) {
+        e = protectedSegment.get(key);
+      }
+      if (e == null) {
+        e = probation.remove(key);
+        if (e != null) {
+          // Queried again, so protect it.
+          probationBytes -= e.bytes;
+          protectedSegment.put(key, e);
+          protectedBytes += e.bytes;
+          demoteProtected();
+        }
+      }
+    }
+  }
+
+  /**
+   * Add a new entry to the window.  The lock must be held.
+   */
+  private void addToWindow(Key key, Entry e) {
+    window.put(key, e);
+    windowBytes += e.bytes;
+
+    // Entries leaving the window are candidates for the main space.
+    Iterator<Map.Entry<Key, Entry>> eldest = window.entrySet().iterator();
+    while (windowBytes > windowMaxBytes) {
+      Map.Entry<Key, Entry> candidate = eldest.next();
+      eldest.remove();
+      windowBytes -= candidate.getValue().bytes;
+      admit(candidate.getKey(), candidate.getValue());
+    }
+  }
+
+  /**
+   * Add a candidate to the main space.  While that is over budget, the candidate competes with the least recently
+   * used entry on probation, and the less frequently queried is evicted.
+   */
+  private void admit(Key key, Entry candidate) {
+    probation.put(key, candidate);
+    probationBytes += candidate.bytes;
+
+    long mainMaxBytes = maxBytes - windowMaxBytes;
+    while (probationBytes + protectedBytes > mainMaxBytes) {
+      Iterator<Map.Entry<Key, Entry>> victims = probation.entrySet().iterator();
+      Map.Entry<Key, Entry> victim = victims.next();
+
+      if (victim.getKey().equals(key)) {
+        // The candidate is the only entry on probation, so the victim is from the protected segment.
+        Iterator<Map.Entry<Key, Entry>> protectedVictims = protectedSegment.entrySet().iterator();
+        if (!protectedVictims.hasNext()) {
+          reject(key);
+          return;
+        }
+        Map.Entry<Key, Entry> protectedVictim = protectedVictims.next();
+        if (sketch.frequency(key.hashCode()) > sketch.frequency(protectedVictim.getKey().hashCode())) {
+          protectedVictims.remove();
+          protectedBytes -= protectedVictim.getValue().bytes;
+          data.remove(protectedVictim.getKey());
+          evictions.increment();
+        } else {
+          reject(key);
+          return;
+        }
+      } else if (sketch.frequency(key.hashCode()) > sketch.frequency(victim.getKey().hashCode())) {
+        victims.remove();
+        probationBytes -= victim.getValue().bytes;
+        data.remove(victim.getKey());
+        evictions.increment();
+      } else {
+        reject(key);
+        return;
+      }
+    }
+  }
+
+  private void reject(Key candidate) {
+    Entry e = probation.remove(candidate);
+    probationBytes -= e.bytes;
+    data.remove(candidate);
+    evictions.increment();
+  }
+
+  /**
+   * Move the least recently used protected entries back to probation, while the protected segment is over budget.
+   */
+  private void demoteProtected() {
+    Iterator<Map.Entry<Key, Entry>> eldest = protectedSegment.entrySet().iterator();
+    while (protectedBytes > protectedMaxBytes) {
+      Map.Entry<Key, Entry> e = eldest.next();
+      eldest.remove();
+      protectedBytes -= e.getValue().bytes;
+      probation.put(e.getKey(), e.getValue());
+      probationBytes += e.getValue().bytes;
+    }
+  }
+
+  public long hitCount() {
+    return hits.sum();
+  }
+
+  public long missCount() {
+    return misses.sum();
+  }
+
+  public long evictionCount() {
+    return evictions.sum();
+  }
+
+  /**
+   * Number of cached results.
+   */
+  public int size() {
+    return data.size();
+  }
+
+  /**
+   * Estimated size of the cached results, in bytes.
+   */
+  public long bytes() {
+    lock.lock();
+    try {
+      return windowBytes + probationBytes + protectedBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * A bounded buffer of lookups, added to by any thread without locking and emptied by the thread holding the lock.
+   * <br/>
+   * Each slot is claimed by advancing the write counter, then filled; the reader stops at a slot not yet filled.  A
+   * lookup is dropped if the buffer is full.
+   */
+  static final class ReadBuffer {
+    static final int SIZE = 128;
+    static final int DRAIN_THRESHOLD = SIZE / 4;
+    private static final int MASK = SIZE - 1;
+
+    private final AtomicReferenceArray<Key> slots = new AtomicReferenceArray<>(SIZE);
+    private final AtomicLong writes = new AtomicLong();
+    private volatile long reads = 0;
+
+    /**
+     * @return false if the buffer was full, so the lookup was dropped.
+     */
+    boolean offer(Key key) {
+      long w = writes.get();
+      if (w - reads >= SIZE) {
+        return false;
+      }
+      if (writes.compareAndSet(w, w + 1)) {
+        slots.lazySet((int) (w & MASK), key);
+      }
+      // Losing the race to another thread drops this lookup, rather than retrying.
+      return true;
+    }
+
+    long pending() {
+      return writes.get() - reads;
+    }
+
+    /**
+     * @return the next lookup, or null if there are none ready.  Only called with the lock held.
+     */
+    Key poll() {
+      long r = reads;
+      if (r == writes.get()) {
+        return null;
+      }
+      int index = (int) (r & MASK);
+      Key key = slots.get(index);
+      if (key == null) {
+        // Claimed, but not yet filled.
+        return null;
+      }
+      slots.lazySet(index, null);
+      reads = r + 1;
+      return key;
+    }
+  }
+
+  /**
+   * A count-min sketch of how often each key is queried, with four rows of 4-bit counters.  The counters are halved
+   * after every ten queries per counter, so old popularity fades.
+   */
+  static final class FrequencySketch {
+    private static final int[] SEEDS = {0x97CB3127, 0x0B6F6E77, 0x61C88647, 0x7FEB352D};
+    private static final int MAX_COUNT = 15;
+
+    private final byte[] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int samples = 0;
+
+    FrequencySketch(int expectedEntries) {
+      int width = Integer.highestOneBit(Math.max(16, expectedEntries - 1)) << 1;
+      this.counters = new byte[SEEDS.length * width];
+      this.mask = width - 1;
+      this.sampleSize = 10 * width;
+    }
+
+    void increment(int hash) {
+      boolean added = false;
+      for (int i = 0; i < SEEDS.length; i++) {
+        int index = indexOf(hash, i);
+        if (counters[index] < MAX_COUNT) {
+          counters[index]++;
+          added = true;
+        }
+      }
+      if (added && ++samples >= sampleSize) {
+        for (int i = 0; i < counters.length; i++) {
+          counters[i] >>= 1;
+        }
+        samples /= 2;
+      }
+    }
+
+    int frequency(int hash) {
+      int frequency = MAX_COUNT;
+      for (int i = 0; i < SEEDS.length; i++) {
+        frequency = Math.min(frequency, counters[indexOf(hash, i)]);
+      }
+      return frequency;
+    }
+
+    private int indexOf(int hash, int row) {
+      int h = hash * SEEDS[row];
+      h ^= h >>> 16;
+      return row * (mask + 1) + (h & mask);
+    }
+  }
+}
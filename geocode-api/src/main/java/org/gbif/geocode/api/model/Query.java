@@ -0,0 +1,121 @@
+package org.gbif.geocode.api.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A coordinate to reverse geocode, as part of a batch.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class Query implements Serializable {
+
+  private static final long serialVersionUID = 4372094108571094630L;
+
+  /**
+   * Latitude in WGS84 decimal degrees.
+   */
+  private Double lat;
+
+  /**
+   * Longitude in WGS84 decimal degrees.
+   */
+  private Double lng;
+
+  /**
+   * Uncertainty in decimal degrees, or null.
+   */
+  private Double uncertaintyDegrees;
+
+  /**
+   * Uncertainty in metres, or null.
+   */
+  private Double uncertaintyMeters;
+
+  /**
+   * Layers to query, or null for the default layers.
+   */
+  private List<String> layer;
+
+  public Query() {
+    // For jackson
+  }
+
+  public Query(Double lat, Double lng, Double uncertaintyDegrees, Double uncertaintyMeters, List<String> layer) {
+    this.lat = lat;
+    this.lng = lng;
+    this.uncertaintyDegrees = uncertaintyDegrees;
+    this.uncertaintyMeters = uncertaintyMeters;
+    this.layer = layer;
+  }
+
+  public Double getLat() {
+    return lat;
+  }
+
+  public void setLat(Double lat) {
+    this.lat = lat;
+  }
+
+  public Double getLng() {
+    return lng;
+  }
+
+  public void setLng(Double lng) {
+    this.lng = lng;
+  }
+
+  public Double getUncertaintyDegrees() {
+    return uncertaintyDegrees;
+  }
+
+  public void setUncertaintyDegrees(Double uncertaintyDegrees) {
+    this.uncertaintyDegrees = uncertaintyDegrees;
+  }
+
+  public Double getUncertaintyMeters() {
+    return uncertaintyMeters;
+  }
+
+  public void setUncertaintyMeters(Double uncertaintyMeters) {
+    this.uncertaintyMeters = uncertaintyMeters;
+  }
+
+  public List<String> getLayer() {
+    return layer;
+  }
+
+  public void setLayer(List<String> layer) {
+    this.layer = layer;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    Query query = (Query) o;
+    return Objects.equals(lat, query.lat) &&
+      Objects.equals(lng, query.lng) &&
+      Objects.equals(uncertaintyDegrees, query.uncertaintyDegrees) &&
+      Objects.equals(uncertaintyMeters, query.uncertaintyMeters) &&
+      Objects.equals(layer, query.layer);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(lat, lng, uncertaintyDegrees, uncertaintyMeters, layer);
+  }
+
+  @Override
+  public String toString() {
+    return "Query{" +
+      "lat=" + lat +
+      ", lng=" + lng +
+      ", uncertaintyDegrees=" + uncertaintyDegrees +
+      ", uncertaintyMeters=" + uncertaintyMeters +
+      ", layer=" + layer +
+      '}';
+  }
+}
@@ -1,7 +1,9 @@
 package org.gbif.geocode.api.service;
 
 import org.gbif.geocode.api.model.Location;
+import org.gbif.geocode.api.model.Query;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -23,6 +25,21 @@ public interface GeocodeService {
    */
   public List<Location> get(Double latitude, Double longitude, Double uncertaintyDegrees, Double uncertaintyMeters, List<String> layers);
 
+  /**
+   * Gets lists of possible {@link org.gbif.geocode.api.model.Location}s for a batch of coordinates.
+   * <br/>
+   * Implementations should share work between the queries where they can; this default queries each in turn.
+   *
+   * @return a list of Locations for each query, in the same order as the queries
+   */
+  public default List<List<Location>> get(List<Query> queries) {
+    List<List<Location>> results = new ArrayList<>(queries.size());
+    for (Query q : queries) {
+      results.add(get(q.getLat(), q.getLng(), q.getUncertaintyDegrees(), q.getUncertaintyMeters(), q.getLayer()));
+    }
+    return results;
+  }
+
   /**
    * Gets a PNG bitmap suitable for using as a client-side cache/lookup table.
    */
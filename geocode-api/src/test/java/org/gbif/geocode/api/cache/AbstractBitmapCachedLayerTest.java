@@ -0,0 +1,528 @@
+package org.gbif.geocode.api.cache;
+
+import org.gbif.geocode.api.model.Location;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class AbstractBitmapCachedLayerTest {
+
+  private static final int RED = 0xFF0000;
+  private static final int BLUE = 0x0000FF;
+
+  /**
+   * A 360×180 image, red to the west, blue to the east, with a black border on the meridian and white
+   * south of the equator.
+   */
+  static byte[] testImage() throws IOException {
+    BufferedImage img = new BufferedImage(361, 181, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < 181; y++) {
+      for (int x = 0; x < 361; x++) {
+        int colour;
+        if (y > 90) {
+          colour = 0xFFFFFF;
+        } else if (x == 180) {
+          colour = 0x000000;
+        } else if (x < 180) {
+          colour = RED;
+        } else {
+          colour = BLUE;
+        }
+        img.setRGB(x, y, colour);
+      }
+    }
+    return png(img);
+  }
+
+  static byte[] png(BufferedImage img) throws IOException {
+    ByteArrayOutputStream png = new ByteArrayOutputStream();
+    ImageIO.write(img, "png", png);
+    return png.toByteArray();
+  }
+
+  static class TestLayer extends AbstractBitmapCachedLayer {
+    int datasourceQueries = 0;
+    boolean refine = false;
+    // If set, datasource queries wait for it.
+    CountDownLatch release = null;
+
+    TestLayer() throws IOException {
+      super(new ByteArrayInputStream(testImage()));
+    }
+
+    TestLayer(byte[] colourKey) throws IOException {
+      super(new ByteArrayInputStream(testImage()), new ByteArrayInputStream(colourKey), 1);
+    }
+
+    TestLayer(PaletteRaster raster) {
+      super(raster, null, null, 1);
+    }
+
+    TestLayer(BorderDistanceRaster borderDistance) throws IOException {
+      super(new ByteArrayInputStream(testImage()), null, new ByteArrayInputStream(png(borderDistance.toImage())), 1);
+    }
+
+    @Override
+    public String name() {
+      return "Test";
+    }
+
+    @Override
+    public String source() {
+      return "Test";
+    }
+
+    @Override
+    public double adjustUncertainty(double uncertaintyDegrees, double latitude) {
+      return uncertaintyDegrees;
+    }
+
+    @Override
+    protected boolean refineBorders() {
+      return refine;
+    }
+
+    /**
+     * Two regions north of the equator, divided by the meridian.
+     */
+    @Override
+    protected List<Location> queryDatasource(double latitude, double longitude, double uncertainty) {
+      datasourceQueries++;
+      if (release != null) {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      List<Location> locations = new ArrayList<>();
+      double south = Math.max(0, -latitude);
+      double west = Math.hypot(Math.max(0, longitude), south);
+      double east = Math.hypot(Math.max(0, -longitude), south);
+      if (west <= uncertainty) {
+        locations.add(new Location("W", "Test", "Test", "W", "W", west, 0d));
+      }
+      if (east <= uncertainty) {
+        locations.add(new Location("E", "Test", "Test", "E", "E", east, 0d));
+      }
+      return locations;
+    }
+  }
+
+  @Test
+  public void testPalette() throws IOException {
+    PaletteRaster raster = PaletteRaster.fromImage(ImageIO.read(new ByteArrayInputStream(testImage())));
+
+    assertEquals(4, raster.getPaletteSize());
+    assertEquals(PaletteRaster.BORDER_INDEX, raster.index(180, 0));
+    assertEquals(PaletteRaster.EMPTY_INDEX, raster.index(0, 180));
+    assertEquals(RED, raster.colour(raster.index(0, 0)));
+    assertEquals(BLUE, raster.colour(raster.index(360, 0)));
+  }
+
+  /**
+   * A bitmap is decoded once into a raster file, then mapped.
+   */
+  @Test
+  public void testRasterFile() throws IOException {
+    PaletteRaster decoded = PaletteRaster.fromImage(ImageIO.read(new ByteArrayInputStream(testImage())));
+
+    Path directory = Files.createTempDirectory("geocode-bitmaps");
+    Path rasterFile = directory.resolve("test.raster");
+    try {
+      PaletteRaster first = PaletteRasterFile.cached(new ByteArrayInputStream(testImage()), rasterFile);
+      assertTrue(Files.exists(rasterFile));
+      assertTrue(first instanceof PaletteRasterFile.MappedShortPaletteRaster);
+      assertEquals(decoded.fingerprint(), first.fingerprint());
+
+      long checksum = PaletteRasterFile.checksum(testImage());
+      PaletteRaster mapped = PaletteRasterFile.map(rasterFile, checksum);
+      assertEquals(decoded.getPaletteSize(), mapped.getPaletteSize());
+      assertEquals(decoded.fingerprint(), mapped.fingerprint());
+      assertEquals(RED, mapped.colour(mapped.index(0, 0)));
+      assertEquals(PaletteRaster.BORDER_INDEX, mapped.index(180, 0));
+
+      // The fingerprint is recorded in the file, so mapping doesn't read the pixels.
+      byte[] bytes = Files.readAllBytes(rasterFile);
+      bytes[bytes.length - 1] ^= 1;
+      Files.write(rasterFile, bytes);
+      assertEquals(decoded.fingerprint(), PaletteRasterFile.map(rasterFile, checksum).fingerprint());
+      PaletteRasterFile.write(decoded, checksum, rasterFile);
+
+      // A raster decoded from a different bitmap isn't used, and is replaced.
+      assertNull(PaletteRasterFile.map(rasterFile, checksum + 1));
+      byte[] otherImage = png(new BufferedImage(361, 181, BufferedImage.TYPE_INT_RGB));
+      PaletteRaster other = PaletteRasterFile.cached(new ByteArrayInputStream(otherImage), rasterFile);
+      assertNotEquals(decoded.fingerprint(), other.fingerprint());
+      assertNull(PaletteRasterFile.map(rasterFile, checksum));
+
+      // A layer can use the mapped raster directly.
+      TestLayer layer = new TestLayer(PaletteRasterFile.cached(new ByteArrayInputStream(testImage()), rasterFile));
+      assertEquals("W", layer.query(45, -90, 0.05).get(0).getId());
+      assertEquals("W", layer.query(40, -100, 0.05).get(0).getId());
+      assertEquals(1, layer.datasourceQueries);
+    } finally {
+      Files.deleteIfExists(rasterFile);
+      Files.delete(directory);
+    }
+  }
+
+  @Test
+  public void testLookups() throws IOException {
+    TestLayer layer = new TestLayer();
+
+    assertEquals("W", layer.query(45, -90, 0.05).get(0).getId());
+    assertEquals("W", layer.query(40, -100, 0.05).get(0).getId());
+    assertEquals(1, layer.datasourceQueries);
+
+    assertEquals("E", layer.query(45, 90, 0.05).get(0).getId());
+    assertEquals(2, layer.datasourceQueries);
+
+    // Border, the second time from the result cache
+    layer.query(45, 0, 0.05);
+    layer.query(45, 0, 0.05);
+    assertEquals(3, layer.datasourceQueries);
+    assertEquals(1, layer.getResultCache().hitCount());
+
+    // Empty
+    assertTrue(layer.query(-45, 0, 0.05).isEmpty());
+    assertEquals(3, layer.datasourceQueries);
+    assertNull(layer.checkBitmap(45, 0));
+
+    assertEquals(7, layer.queries.sum());
+    assertEquals(3, layer.border.sum());
+    assertEquals(1, layer.empty.sum());
+    assertEquals(2, layer.miss.sum());
+    assertEquals(1, layer.hit.sum());
+  }
+
+  /**
+   * Points a few metres either side of a border are each given only their own region, at their exact distances.
+   */
+  @Test
+  public void testJustInsideBorder() throws IOException {
+    TestLayer layer = new TestLayer();
+
+    List<Location> east = layer.query(45, 0.00003, 0.00001);
+    assertEquals(1, east.size());
+    assertEquals("E", east.get(0).getId());
+    assertEquals(0d, east.get(0).getDistance());
+
+    List<Location> west = layer.query(45, -0.00003, 0.00001);
+    assertEquals(1, west.size());
+    assertEquals("W", west.get(0).getId());
+
+    // Within the uncertainty of both.
+    List<Location> both = layer.query(45, 0.00003, 0.00005);
+    assertEquals(2, both.size());
+    assertEquals("W", both.get(0).getId());
+    assertEquals(0.00003, both.get(0).getDistance(), 1e-12);
+    assertEquals(3, layer.datasourceQueries);
+  }
+
+  /**
+   * Concurrent identical queries on a border share one datasource query.
+   */
+  @Test
+  public void testCoalescing() throws Exception {
+    TestLayer layer = new TestLayer();
+    layer.release = new CountDownLatch(1);
+
+    List<List<Location>> results = Collections.synchronizedList(new ArrayList<>());
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread(() -> results.add(layer.query(45, 0, 0.05)));
+      threads[t].start();
+    }
+
+    // Wait for the other threads to join the first one's query.
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (layer.coalesced.sum() < threads.length - 1 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    layer.release.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+
+    assertEquals(1, layer.datasourceQueries);
+    assertEquals(threads.length - 1, layer.coalesced.sum());
+    assertEquals(threads.length, results.size());
+    for (List<Location> result : results) {
+      assertSame(results.get(0), result);
+      assertEquals(2, result.size());
+    }
+  }
+
+  /**
+   * Concurrent stores for one colour publish a single, immutable list.
+   */
+  @Test
+  public void testConcurrentStore() throws Exception {
+    TestLayer layer = new TestLayer();
+
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      final String id = "T" + t;
+      threads[t] = new Thread(() -> layer.putBitmap(45, -90,
+        Collections.singletonList(new Location(id, "Test", "Test", id, id, 0d, 0d))));
+    }
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+
+    List<Location> stored = layer.checkBitmap(45, -90);
+    assertEquals(1, stored.size());
+    assertSame(stored, layer.checkBitmap(40, -100));
+    assertThrows(UnsupportedOperationException.class, () -> stored.add(null));
+  }
+
+  /**
+   * Border pixels are split into cells, which answer queries once classified as being within one region.
+   */
+  @Test
+  public void testBorderCells() throws IOException {
+    TestLayer layer = new TestLayer();
+    layer.refine = true;
+
+    // The test bitmap has 1° pixels, so the half-pixel cell east of the meridian is within 0.05° of the west.
+    assertEquals("E", layer.query(45, 0.3, 0.05).get(0).getId());
+    assertEquals(2, layer.datasourceQueries);
+    assertEquals(0, layer.borderHit.sum());
+
+    // The quarter-pixel cell from 0.25° to 0.5° isn't.
+    assertEquals("E", layer.query(45, 0.3, 0.05).get(0).getId());
+    assertEquals(3, layer.datasourceQueries);
+    assertEquals(1, layer.borderHit.sum());
+
+    // Anywhere else in the same cell.
+    assertEquals("E", layer.query(44.9, 0.45, 0.05).get(0).getId());
+    assertEquals(0d, layer.query(44.9, 0.45, 0.05).get(0).getDistance());
+    assertEquals(3, layer.datasourceQueries);
+
+    // On the border itself, each depth is classified as mixed in turn; the point itself is queried once, then
+    // answered by the result cache.
+    for (int depth = 2; depth <= BorderCells.MAX_DEPTH; depth++) {
+      assertEquals(2, layer.query(45, 0, 0.05).size());
+      assertEquals(3 + depth, layer.datasourceQueries);
+    }
+    assertEquals(2, layer.query(45, 0, 0.05).size());
+    assertEquals(3 + BorderCells.MAX_DEPTH, layer.datasourceQueries);
+
+    // Without refinement, border pixels always query the datasource, through the result cache.
+    TestLayer unrefined = new TestLayer();
+    unrefined.query(45, 0.3, 0.05);
+    unrefined.query(45, 0.3, 0.05);
+    unrefined.query(45, 0.4, 0.05);
+    assertEquals(2, unrefined.datasourceQueries);
+    assertEquals(0, unrefined.borderHit.sum());
+  }
+
+  @Test
+  public void testBorderCellsBudget() {
+    BorderCells cells = new BorderCells(361, 181, 10 * 328);
+    Location w = new Location("W", "Test", "Test", "W", "W", 0d, 0d);
+    for (int i = 0; i < 100; i++) {
+      cells.find(10 + i * 0.5, -90, (lat, lng, r) -> Collections.singletonList(w));
+    }
+    // 128 bytes per cell and 200 per location, as for the result cache.
+    assertEquals(10, cells.size());
+  }
+
+  /**
+   * Cells are found and stored from several threads at once.
+   */
+  @Test
+  public void testBorderCellsConcurrentFind() throws Exception {
+    BorderCells cells = new BorderCells(361, 181, 1024 * 1024);
+    Location w = new Location("W", "Test", "Test", "W", "W", 0d, 0d);
+    CountDownLatch start = new CountDownLatch(1);
+
+    Thread[] threads = new Thread[8];
+    int[] found = new int[threads.length];
+    for (int t = 0; t < threads.length; t++) {
+      final int n = t;
+      threads[t] = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        for (int r = 0; r < 2; r++) {
+          for (int i = 0; i < 100; i++) {
+            if (cells.find(10 + i * 0.5, -90, (lat, lng, radius) -> Collections.singletonList(w)) != null) {
+              found[n]++;
+            }
+          }
+        }
+      });
+      threads[t].start();
+    }
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+
+    // Every thread's second pass is answered by the stored cells, which are the same as stored by one thread.
+    for (int f : found) {
+      assertTrue(f >= 100);
+    }
+    BorderCells single = new BorderCells(361, 181, 1024 * 1024);
+    for (int i = 0; i < 100; i++) {
+      single.find(10 + i * 0.5, -90, (lat, lng, radius) -> Collections.singletonList(w));
+    }
+    assertEquals(single.size(), cells.size());
+  }
+
+  /**
+   * A layer started with a generated colour key doesn't need to query its datasource.
+   */
+  @Test
+  public void testColourKey() throws IOException {
+    ColourKeyFile generated = new TestLayer().generateColourKey();
+    assertEquals(2, generated.getColourKey().size());
+    assertEquals("W", generated.getColourKey().get(RED).get(0).getId());
+    assertEquals("E", generated.getColourKey().get(BLUE).get(0).getId());
+
+    ByteArrayOutputStream colourKey = new ByteArrayOutputStream();
+    generated.write(colourKey);
+
+    TestLayer layer = new TestLayer(colourKey.toByteArray());
+    assertEquals(generated.getColourKey().get(RED), layer.query(45, -90, 0.05));
+    assertEquals(generated.getColourKey().get(BLUE), layer.query(45, 90, 0.05));
+    assertEquals(0, layer.datasourceQueries);
+
+    // A key for a different bitmap is ignored.
+    ByteArrayOutputStream wrongKey = new ByteArrayOutputStream();
+    new ColourKeyFile(generated.getBitmapFingerprint() + 1, generated.getColourKey()).write(wrongKey);
+    TestLayer wrongLayer = new TestLayer(wrongKey.toByteArray());
+    assertNull(wrongLayer.checkBitmap(45, -90));
+  }
+
+  /**
+   * The colours learned by one layer can be loaded by the next, which then doesn't need to query its datasource.
+   */
+  @Test
+  public void testLearnedColourKey() throws IOException {
+    TestLayer layer = new TestLayer();
+    assertEquals(0, layer.learnedColourKey().getColourKey().size());
+    List<Location> west = layer.query(45, -90, 0.05);
+    ColourKeyFile learned = layer.learnedColourKey();
+    assertEquals(1, learned.getColourKey().size());
+    assertEquals(west, learned.getColourKey().get(RED));
+
+    ByteArrayOutputStream saved = new ByteArrayOutputStream();
+    learned.write(saved);
+    TestLayer next = new TestLayer();
+    next.loadColourKey(ColourKeyFile.read(new ByteArrayInputStream(saved.toByteArray())));
+    assertEquals(west, next.query(45, -90, 0.05));
+    assertEquals(0, next.datasourceQueries);
+    assertNull(next.checkBitmap(45, 90));
+  }
+
+  @Test
+  public void testBorderDistance() throws IOException {
+    PaletteRaster raster = PaletteRaster.fromImage(ImageIO.read(new ByteArrayInputStream(testImage())));
+    BorderDistanceRaster distance = BorderDistanceRaster.compute(raster);
+
+    assertTrue(distance.isConsistentWith(raster));
+    assertEquals(0, distance.distanceKm(180, 45));
+    assertEquals(BorderDistanceRaster.MAX_KM, distance.distanceKm(90, 45));
+    // The red/white edge counts as a border even though it isn't black.
+    assertEquals(0, distance.distanceKm(90, 90));
+    assertTrue(distance.distanceKm(90, 88) < BorderDistanceRaster.uncertaintyKm(1.0));
+    // The poles are borders too.
+    assertEquals(0, distance.distanceKm(90, 0));
+  }
+
+  /**
+   * Uncertain queries are answered from the bitmap when the uncertainty circle is within one colour.
+   */
+  @Test
+  public void testUncertainLookups() throws IOException {
+    PaletteRaster raster = PaletteRaster.fromImage(ImageIO.read(new ByteArrayInputStream(testImage())));
+    TestLayer layer = new TestLayer(BorderDistanceRaster.compute(raster));
+
+    // Not yet learned, and uncertain results aren't stored.
+    assertEquals("W", layer.query(45, -90, 1.0).get(0).getId());
+    assertEquals(1, layer.datasourceQueries);
+    assertNull(layer.checkBitmap(45, -90));
+
+    assertEquals("W", layer.query(45, -90, 0.05).get(0).getId());
+    assertEquals(2, layer.datasourceQueries);
+
+    // Well within the red region.
+    assertEquals("W", layer.query(45, -90, 1.0).get(0).getId());
+    assertEquals("W", layer.query(40, -100, 2.0).get(0).getId());
+    assertEquals(2, layer.datasourceQueries);
+
+    // Close to the edge of the red region.
+    layer.query(2, -90, 1.0);
+    assertEquals(3, layer.datasourceQueries);
+
+    // Beyond the largest recorded distance.
+    layer.query(45, -90, 3.0);
+    assertEquals(4, layer.datasourceQueries);
+
+    // Without a border distance raster, or with one for a different bitmap, uncertain queries aren't answered.
+    TestLayer withoutDistance = new TestLayer();
+    assertNull(withoutDistance.checkBitmap(45, -90, 1.0));
+
+    byte[] far = new byte[361 * 181];
+    Arrays.fill(far, (byte) BorderDistanceRaster.MAX_KM);
+    TestLayer wrongDistance = new TestLayer(new BorderDistanceRaster(361, 181, far));
+    wrongDistance.query(45, -90, 0.05);
+    assertNull(wrongDistance.checkBitmap(45, -90, 1.0));
+  }
+
+  /**
+   * The bitmap hit path is the hottest loop in the webservice, so it shouldn't allocate.
+   */
+  @Test
+  public void testHitDoesNotAllocate() throws IOException {
+    assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+    TestLayer layer = new TestLayer();
+    layer.query(45, -90, 0.05);
+    List<Location> expected = layer.checkBitmap(45, -90);
+
+    long threadId = Thread.currentThread().getId();
+    long before = threads.getThreadAllocatedBytes(threadId);
+    List<Location> found = null;
+    for (int i = 0; i < 1_000_000; i++) {
+      found = layer.checkBitmap(10 + (i % 80), -170 + (i % 160));
+    }
+    long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+    assertSame(expected, found);
+    // Anything boxed or formatted per call would be at least 16MB.
+    assertTrue(allocated < 1_000_000, "Allocated " + allocated + " bytes");
+  }
+}
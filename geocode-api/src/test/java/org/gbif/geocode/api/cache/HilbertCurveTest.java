@@ -0,0 +1,79 @@
+package org.gbif.geocode.api.cache;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HilbertCurveTest {
+
+  /**
+   * Consecutive positions along the curve are neighbouring cells.
+   */
+  @Test
+  public void testContinuous() {
+    int n = 1 << HilbertCurve.ORDER;
+    double cellLng = 360d / n;
+    double cellLat = 180d / n;
+
+    // Visit every cell of a coarse grid, by sampling the centre of every 2^12th cell along each axis.
+    int step = n >> 4;
+    long[] keys = new long[16 * 16];
+    for (int x = 0; x < 16; x++) {
+      for (int y = 0; y < 16; y++) {
+        double lng = -180d + (x * step + 0.5d) * cellLng;
+        double lat = 90d - (y * step + 0.5d) * cellLat;
+        keys[x * 16 + y] = HilbertCurve.key(lat, lng) / ((long) step * step);
+      }
+    }
+
+    // The coarse grid is itself visited by a Hilbert curve: each key once, each step to a neighbour.
+    long[] sorted = keys.clone();
+    Arrays.sort(sorted);
+    for (int i = 0; i < sorted.length; i++) {
+      assertEquals(i, sorted[i]);
+    }
+    int[] cell = new int[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      cell[(int) keys[i]] = i;
+    }
+    for (int i = 1; i < cell.length; i++) {
+      int dx = Math.abs(cell[i] / 16 - cell[i - 1] / 16);
+      int dy = Math.abs(cell[i] % 16 - cell[i - 1] % 16);
+      assertEquals(1, dx + dy);
+    }
+  }
+
+  /**
+   * The order is a permutation of the input, and sorted by key.
+   */
+  @Test
+  public void testOrder() {
+    Random random = new Random(42);
+    double[] lat = new double[1000];
+    double[] lng = new double[1000];
+    for (int i = 0; i < lat.length; i++) {
+      lat[i] = random.nextDouble() * 180 - 90;
+      lng[i] = random.nextDouble() * 360 - 180;
+    }
+
+    int[] order = HilbertCurve.order(lat, lng);
+    int[] indices = order.clone();
+    Arrays.sort(indices);
+    int[] expected = new int[lat.length];
+    Arrays.setAll(expected, i -> i);
+    assertArrayEquals(expected, indices);
+
+    for (int i = 1; i < order.length; i++) {
+      assertTrue(HilbertCurve.key(lat[order[i - 1]], lng[order[i - 1]]) <= HilbertCurve.key(lat[order[i]], lng[order[i]]));
+    }
+
+    // The edges of the world are within the curve.
+    assertTrue(HilbertCurve.key(90, -180) >= 0);
+    assertTrue(HilbertCurve.key(-90, 180) < 1L << (2 * HilbertCurve.ORDER));
+  }
+}
@@ -0,0 +1,147 @@
+package org.gbif.geocode.api.cache;
+
+import org.gbif.geocode.api.model.Location;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ResultCacheTest {
+
+  private static final List<Location> RESULT =
+    Collections.singletonList(new Location("W", "Test", "Test", "W", "W", 0d, 0d));
+
+  @Test
+  public void testKeys() {
+    // Quantized to 0.0001°.
+    assertEquals(ResultCache.key(45.00001, 10.00002, 0.05, 0.0001), ResultCache.key(45.00002, 10.00001, 0.05, 0.0001));
+    assertNotEquals(ResultCache.key(45.0001, 10, 0.05, 0.0001), ResultCache.key(45.0002, 10, 0.05, 0.0001));
+    assertNotEquals(ResultCache.key(45, 10, 0.05, 0.0001), ResultCache.key(45, 10, 0.1, 0.0001));
+
+    // Exact.
+    assertEquals(ResultCache.key(45.00001, 10, 0.05, 0), ResultCache.key(45.00001, 10, 0.05, 0));
+    assertNotEquals(ResultCache.key(45.00001, 10, 0.05, 0), ResultCache.key(45.00002, 10, 0.05, 0));
+  }
+
+  @Test
+  public void testGetPut() {
+    ResultCache cache = new ResultCache(1024 * 1024);
+    ResultCache.Key key = ResultCache.key(45, 10, 0.05, 0);
+
+    assertNull(cache.get(key));
+    cache.put(key, RESULT);
+    assertEquals(RESULT, cache.get(key));
+
+    assertEquals(1, cache.size());
+    assertEquals(1, cache.hitCount());
+    assertEquals(1, cache.missCount());
+  }
+
+  /**
+   * Frequently queried results survive a scan of results queried only once, even when they are queried less often
+   * than an LRU cache of the same size would need.
+   */
+  @Test
+  public void testScanResistance() {
+    long maxBytes = 1000 * 328;
+    ResultCache cache = new ResultCache(maxBytes);
+
+    // A dataset of 100,000 unique coordinates, with one of 100 popular localities after every 20.  Each popular
+    // locality recurs after 2,000 unique coordinates, twice the capacity of the cache.
+    int popularQueries = 0;
+    int popularHits = 0;
+    for (int i = 0; i < 100_000; i++) {
+      query(cache, ResultCache.key(-i / 1000d, 1, 0.05, 0));
+      if (i % 20 == 0) {
+        boolean hit = query(cache, ResultCache.key((i / 20) % 100, 0, 0.05, 0));
+        if (i >= 50_000) {
+          popularQueries++;
+          popularHits += hit ? 1 : 0;
+        }
+      }
+      assertTrue(cache.bytes() <= maxBytes);
+    }
+
+    assertTrue(popularHits > 0.9 * popularQueries, popularHits + " of " + popularQueries);
+    assertTrue(cache.evictionCount() > 90_000);
+  }
+
+  /**
+   * Lookups and additions from many threads at once give each key's own result, and leave the cache within its
+   * budget with the eviction policy holding exactly the entries which can be looked up.
+   */
+  @Test
+  public void testConcurrentAccess() throws Exception {
+    long maxBytes = 1000 * 328;
+    ResultCache cache = new ResultCache(maxBytes);
+    int threads = 8;
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Integer>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        futures.add(executor.submit(() -> {
+          start.await();
+          int hits = 0;
+          ThreadLocalRandom random = ThreadLocalRandom.current();
+          for (int i = 0; i < 200_000; i++) {
+            // Some popular keys, and many rarer ones.
+            int k = random.nextBoolean() ? random.nextInt(100) : random.nextInt(100_000);
+            ResultCache.Key key = ResultCache.key(k, 0, 0.05, 0);
+            List<Location> found = cache.get(key);
+            if (found == null) {
+              cache.put(key, result(k));
+            } else {
+              assertEquals(String.valueOf(k), found.get(0).getId());
+              hits++;
+            }
+          }
+          return hits;
+        }));
+      }
+      start.countDown();
+      int hits = 0;
+      for (Future<Integer> f : futures) {
+        hits += f.get();
+      }
+
+      assertEquals(hits, cache.hitCount());
+      assertEquals(threads * 200_000, cache.hitCount() + cache.missCount());
+      assertTrue(cache.bytes() <= maxBytes);
+      // Every entry is the same size, so the policy's size matches the entries which can be looked up.
+      assertEquals(cache.size() * 328L, cache.bytes());
+      for (int k = 0; k < 100; k++) {
+        List<Location> found = cache.peek(ResultCache.key(k, 0, 0.05, 0));
+        if (found != null) {
+          assertEquals(String.valueOf(k), found.get(0).getId());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static List<Location> result(int k) {
+    return Collections.singletonList(new Location(String.valueOf(k), "Test", "Test", "T", "T", 0d, 0d));
+  }
+
+  private static boolean query(ResultCache cache, ResultCache.Key key) {
+    if (cache.get(key) != null) {
+      return true;
+    }
+    cache.put(key, RESULT);
+    return false;
+  }
+}
@@ -1,6 +1,7 @@
 package org.gbif.geocode.ws.client;
 
 import org.gbif.geocode.api.model.Location;
+import org.gbif.geocode.api.model.Query;
 import org.gbif.geocode.api.service.GeocodeService;
 
 import java.io.IOException;
@@ -9,6 +10,7 @@ import java.util.List;
 import javax.annotation.Nullable;
 
 import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
@@ -40,6 +42,14 @@ public interface GeocodeWsClient extends GeocodeService {
     return get(latitude, longitude, uncertaintyDegrees, uncertaintyMeters, null);
   }
 
+  @RequestMapping(
+      method = RequestMethod.POST,
+      value = "reverse/batch",
+      consumes = MediaType.APPLICATION_JSON_VALUE,
+      produces = MediaType.APPLICATION_JSON_VALUE)
+  @Override
+  List<List<Location>> get(@RequestBody List<Query> queries);
+
   @RequestMapping(
       method = RequestMethod.GET,
       value = "bitmap",
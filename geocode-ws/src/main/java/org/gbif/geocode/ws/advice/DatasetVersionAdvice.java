@@ -0,0 +1,50 @@
+package org.gbif.geocode.ws.advice;
+
+import org.gbif.geocode.ws.resource.GeocodeResource;
+import org.gbif.geocode.ws.service.impl.GeocodeServiceImpl;
+
+import org.springframework.core.MethodParameter;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+/**
+ * Adds the version of the layer data to geocoding responses, so clients can tell which data answered them across
+ * a reload.
+ * <br/>
+ * The version is the one the resource stored in the request when it chose the layers to answer with, as the layers
+ * may have been reloaded since.
+ */
+@RestControllerAdvice(assignableTypes = GeocodeResource.class)
+public class DatasetVersionAdvice implements ResponseBodyAdvice<Object> {
+  public static final String HEADER = "X-Dataset-Version";
+  // Request attribute holding the version of the layers which answered the request.
+  public static final String VERSION_ATTRIBUTE = DatasetVersionAdvice.class.getName() + ".version";
+
+  private final GeocodeServiceImpl geocodeService;
+
+  public DatasetVersionAdvice(GeocodeServiceImpl geocodeService) {
+    this.geocodeService = geocodeService;
+  }
+
+  @Override
+  public boolean supports(MethodParameter returnType, Class<? extends HttpMessageConverter<?>> converterType) {
+    return true;
+  }
+
+  @Override
+  public Object beforeBodyWrite(Object body, MethodParameter returnType, MediaType selectedContentType,
+                                Class<? extends HttpMessageConverter<?>> selectedConverterType,
+                                ServerHttpRequest request, ServerHttpResponse response) {
+    Object version = null;
+    if (request instanceof ServletServerHttpRequest) {
+      version = ((ServletServerHttpRequest) request).getServletRequest().getAttribute(VERSION_ATTRIBUTE);
+    }
+    response.getHeaders().set(HEADER, version != null ? version.toString() : geocodeService.getVersion());
+    return body;
+  }
+}
@@ -1,7 +1,145 @@
 package org.gbif.geocode.ws.layers;
 
+import org.gbif.geocode.api.cache.PaletteRaster;
+import org.gbif.geocode.api.cache.PaletteRasterFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 /**
  * This class exists as a convenience for loading the bitmap resources.
+ * <br/>
+ * Bitmaps are decoded once into memory-mapped raster files (see {@link PaletteRasterFile}) in the directory given by
+ * the system property {@value #RASTER_ROOT_PROPERTY}, by default a directory in the system temporary directory.
+ * When the bitmap is in a jar, the checksum of its jar entry is compared with the raster file's, so a current raster
+ * file is mapped without reading the bitmap at all.  BitmapGenerator can generate the raster files to copy to that
+ * directory, saving the decoding at the first start too.
+ * <br/>
+ * Bitmaps, colour keys and border distance images in the layer data root are used in preference to those in the
+ * classpath, so they can be updated with the data and picked up by a reload.
  */
 public class Bitmap {
+  public static final String RASTER_ROOT_PROPERTY = "geocode.bitmaps.root";
+
+  /**
+   * Load a bitmap from this package, e.g. "political.png".
+   */
+  public static PaletteRaster raster(String png) {
+    return raster(Bitmap.class, png);
+  }
+
+  /**
+   * Load a bitmap from the package of another class.
+   */
+  public static PaletteRaster raster(Class<?> resourceBase, String png) {
+    URL url = resourceBase.getResource(png);
+    Path rasterFile = rasterRoot().resolve(png.replaceAll("\\.png$", ".raster"));
+    try {
+      if (url == null) {
+        throw new IOException("No bitmap resource " + png);
+      }
+
+      PaletteRaster mapped = mapIfCurrent(url, rasterFile);
+      if (mapped != null) {
+        return mapped;
+      }
+
+      try (InputStream in = url.openStream()) {
+        return PaletteRasterFile.cached(in, rasterFile);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to load map image " + png, e);
+    }
+  }
+
+  /**
+   * Map the raster file without reading the bitmap, if the bitmap is in a jar and the raster file was decoded from it.
+   * The CRC-32 a jar records for each entry is the checksum {@link PaletteRasterFile} stores.
+   * @return the raster, or null if the bitmap must be read to check or decode it.
+   */
+  private static PaletteRaster mapIfCurrent(URL png, Path rasterFile) {
+    if (!Files.isReadable(rasterFile)) {
+      return null;
+    }
+    try {
+      URLConnection connection = png.openConnection();
+      if (!(connection instanceof JarURLConnection)) {
+        return null;
+      }
+      long crc = ((JarURLConnection) connection).getJarEntry().getCrc();
+      return crc < 0 ? null : PaletteRasterFile.map(rasterFile, crc);
+    } catch (IOException e) {
+      // Read the bitmap instead, which replaces the raster file if it's unusable.
+      return null;
+    }
+  }
+
+  /**
+   * Load a bitmap from the layer data root if it is there, otherwise from the package of a class.
+   */
+  public static PaletteRaster raster(String root, Class<?> resourceBase, String png) {
+    Path file = rootFile(root, png);
+    if (file == null) {
+      return raster(resourceBase, png);
+    }
+    try (InputStream in = Files.newInputStream(file)) {
+      return PaletteRasterFile.cached(in, rasterRoot().resolve(png.replaceAll("\\.png$", ".raster")));
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to load map image " + file, e);
+    }
+  }
+
+  /**
+   * Load a bitmap from the layer data root if it is there, otherwise from this package.
+   */
+  public static PaletteRaster raster(String root, String png) {
+    return raster(root, Bitmap.class, png);
+  }
+
+  /**
+   * Open a colour key or border distance image from the layer data root if it is there, otherwise from the package
+   * of a class.
+   * @return the stream, or null if there's no such file or resource.
+   */
+  public static InputStream resource(String root, Class<?> resourceBase, String name) {
+    Path file = rootFile(root, name);
+    if (file == null) {
+      return resourceBase.getResourceAsStream(name);
+    }
+    try {
+      return Files.newInputStream(file);
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to open " + file, e);
+    }
+  }
+
+  /**
+   * Open a colour key or border distance image from the layer data root if it is there, otherwise from this package.
+   * @return the stream, or null if there's no such file or resource.
+   */
+  public static InputStream resource(String root, String name) {
+    return resource(root, Bitmap.class, name);
+  }
+
+  private static Path rootFile(String root, String name) {
+    if (root == null || root.isEmpty()) {
+      return null;
+    }
+    Path file = Paths.get(root, name);
+    return Files.isReadable(file) ? file : null;
+  }
+
+  public static Path rasterRoot() {
+    String root = System.getProperty(RASTER_ROOT_PROPERTY);
+    if (root == null || root.isEmpty()) {
+      return Paths.get(System.getProperty("java.io.tmpdir"), "geocode-bitmaps");
+    }
+    return Paths.get(root);
+  }
 }
@@ -0,0 +1,88 @@
+package org.gbif.geocode.ws.layers;
+
+import org.gbif.geocode.api.cache.AbstractBitmapCachedLayer;
+import org.gbif.geocode.api.cache.ColourKeyFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Saves the colours each bitmap cache has learned when the web service stops, and loads them when it starts, so the
+ * caches needn't learn every colour again with a datasource query.
+ * <br/>
+ * The colour keys are kept beside the raster files (see {@link Bitmap#rasterRoot()}), in a directory for each layer
+ * with a file for each version of the layer data, as the locations for a colour change with the data.  A key for a
+ * different bitmap is ignored when it is loaded, as for the colour keys generated by BitmapGenerator.
+ */
+public class LearnedColourKeys {
+  private static final Logger LOG = LoggerFactory.getLogger(LearnedColourKeys.class);
+
+  private static final String SUFFIX = ".colours.gz";
+
+  /**
+   * Add the colours learned by an earlier run with the same version of the layer data, if there are any.
+   */
+  public static void load(AbstractBitmapCachedLayer layer, String name, String version) {
+    Path file = file(name, version);
+    if (!Files.isReadable(file)) {
+      return;
+    }
+    try (InputStream in = Files.newInputStream(file)) {
+      LOG.info("Loading learned colours for {} from {}", name, file);
+      layer.loadColourKey(ColourKeyFile.read(in));
+    } catch (IOException | RuntimeException e) {
+      LOG.warn("Unable to load learned colours for {} from {}, ignoring them", name, file, e);
+    }
+  }
+
+  /**
+   * Save the colours learned so far, replacing those saved for any other version of the layer data.
+   */
+  public static void save(AbstractBitmapCachedLayer layer, String name, String version) {
+    Path file = file(name, version);
+    try {
+      ColourKeyFile key = layer.learnedColourKey();
+      if (key.getColourKey().isEmpty()) {
+        return;
+      }
+
+      Files.createDirectories(file.getParent());
+      Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+      try {
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+          key.write(out);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(tmp);
+      }
+      LOG.info("Saved {} learned colours for {} to {}", key.getColourKey().size(), name, file);
+
+      try (DirectoryStream<Path> old = Files.newDirectoryStream(file.getParent(), "*" + SUFFIX)) {
+        for (Path p : old) {
+          if (!p.equals(file)) {
+            Files.deleteIfExists(p);
+          }
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      LOG.warn("Unable to save learned colours for {} to {}", name, file, e);
+    }
+  }
+
+  static Path file(String name, String version) {
+    return Bitmap.rasterRoot().resolve("colours").resolve(safe(name)).resolve(safe(version) + SUFFIX);
+  }
+
+  private static String safe(String s) {
+    return s.replaceAll("[^A-Za-z0-9._-]", "_");
+  }
+}
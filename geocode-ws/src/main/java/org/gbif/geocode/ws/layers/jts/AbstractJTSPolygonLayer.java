@@ -0,0 +1,149 @@
+package org.gbif.geocode.ws.layers.jts;
+
+import org.gbif.geocode.api.cache.AbstractBitmapCachedLayer;
+import org.gbif.geocode.api.cache.PaletteRaster;
+import org.gbif.geocode.api.model.Location;
+import org.gbif.geocode.ws.persistence.mapper.LocationMapper;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.algorithm.locate.IndexedPointInAreaLocator;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.operation.distance.DistanceOp;
+
+import static com.vividsolutions.jts.geom.Location.EXTERIOR;
+
+/**
+ * A reverse geocoder backed by polygons, with data sourced from a PostGIS database and indexed into memory on startup,
+ * so it answers without a database query.
+ * <br/>
+ * The polygons are read once, subdivided by the layer_features function, and indexed by an STRtree.  Results are as
+ * query_layers gives them: the planar distance in degrees to each Location within the uncertainty, and the
+ * ellipsoidal distance in metres to the nearest point of its polygons.
+ */
+public abstract class AbstractJTSPolygonLayer extends AbstractBitmapCachedLayer {
+  private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+  private Logger LOG = LoggerFactory.getLogger(getClass());
+  private long queries = 0;
+
+  private static final class Feature {
+    final Geometry geometry;
+    final IndexedPointInAreaLocator locator;
+    // The Locations of the polygon without distances.  Polygons with the same Locations share them.
+    final Location[] locations;
+
+    Feature(Geometry geometry, Location[] locations) {
+      this.geometry = geometry;
+      this.locator = new IndexedPointInAreaLocator(geometry);
+      this.locations = locations;
+      // Newer JTS versions build the locator's index on first use, so use it once here rather than in a query.
+      locator.locate(geometry.getCoordinate());
+    }
+  }
+
+  private final STRtree tree = new STRtree();
+
+  /**
+   * @param sqlLayer the name of the layer in the layer_features function
+   */
+  AbstractJTSPolygonLayer(LocationMapper locationMapper, String sqlLayer, PaletteRaster bitmap, InputStream colourKey,
+                          InputStream borderDistance, int maxLocations) {
+    super(bitmap, colourKey, borderDistance, maxLocations);
+
+    Map<List<Object>, Location[]> distinctRows = new HashMap<>();
+    Map<Location, Location> distinctLocations = new HashMap<>();
+    locationMapper.fetchPolygonFeatures(sqlLayer, context -> {
+      PolygonFeature polygon = context.getResultObject();
+      if (polygon.geometry == null || polygon.geometry.isEmpty()) {
+        return;
+      }
+      List<Object> row = Arrays.asList(polygon.source, Arrays.asList(polygon.types), Arrays.asList(polygon.ids),
+        Arrays.asList(polygon.titles), Arrays.asList(polygon.isoCountryCode2Digits));
+      Location[] locations = distinctRows.computeIfAbsent(row, k -> {
+        Location[] ls = new Location[polygon.ids.length];
+        for (int i = 0; i < ls.length; i++) {
+          Location l = new Location(polygon.ids[i], polygon.types[i], polygon.source, polygon.titles[i],
+            polygon.isoCountryCode2Digits[i], null, null);
+          ls[i] = distinctLocations.computeIfAbsent(l, v -> v);
+        }
+        return ls;
+      });
+      tree.insert(polygon.geometry.getEnvelopeInternal(), new Feature(polygon.geometry, locations));
+    });
+    // Build now, as the first query would otherwise build it without synchronization.
+    tree.build();
+
+    LOG.info("{} indexed {} polygons with {} distinct locations", name(), tree.size(), distinctLocations.size());
+  }
+
+  @Override
+  public double adjustUncertainty(double uncertaintyDegrees, double latitude) {
+    return uncertaintyDegrees;
+  }
+
+  @Override
+  protected List<Location> queryDatasource(double latitude, double longitude, double uncertainty) {
+    Coordinate coordinate = new Coordinate(longitude, latitude);
+    Point point = GEOMETRY_FACTORY.createPoint(coordinate);
+    Envelope search = new Envelope(coordinate);
+    search.expandBy(uncertainty);
+
+    // A Location may have many polygons; return it once, at its nearest.
+    Map<List<String>, Location> locations = new LinkedHashMap<>();
+    tree.query(search, item -> {
+      Feature feature = (Feature) item;
+      double distance;
+      double distanceMeters;
+      if (feature.locator.locate(coordinate) != EXTERIOR) {
+        distance = 0;
+        distanceMeters = 0;
+      } else {
+        DistanceOp op = new DistanceOp(feature.geometry, point);
+        distance = op.distance();
+        if (distance > uncertainty) {
+          return;
+        }
+        Coordinate nearest = op.nearestPoints()[0];
+        distanceMeters = Geodesic.distance(latitude, longitude, nearest.y, nearest.x);
+      }
+
+      for (Location t : feature.locations) {
+        List<String> key = Arrays.asList(t.getId(), t.getIsoCountryCode2Digit());
+        Location e = locations.get(key);
+        if (e == null) {
+          locations.put(key, new Location(t.getId(), t.getType(), t.getSource(), t.getTitle(),
+            t.getIsoCountryCode2Digit(), distance, distanceMeters));
+        } else {
+          e.setDistance(Math.min(e.getDistance(), distance));
+          e.setDistanceMeters(Math.min(e.getDistanceMeters(), distanceMeters));
+        }
+      }
+    });
+
+    // Nearest first, as query_layers orders them; the sort is stable, so a polygon's claims stay in order.
+    List<Location> results = new ArrayList<>(locations.values());
+    results.sort(Comparator.comparing(Location::getDistance).thenComparing(Location::getId, Comparator.nullsLast(Comparator.naturalOrder())));
+
+    if ((++queries % 10_000) == 0) {
+      LOG.info("{} did {} JTS polygon queries.", name(), queries);
+    }
+
+    return results;
+  }
+}
@@ -5,7 +5,9 @@ import org.gbif.geocode.ws.persistence.mapper.LocationMapper;
 
 public class CentroidsLayer extends AbstractJTSLayer {
   public CentroidsLayer(LocationMapper locationMapper) {
-    super(locationMapper, Bitmap.class.getResourceAsStream("centroids.png"), 1, 5_050d);
+    super(locationMapper, Bitmap.raster("centroids.png"),
+      Bitmap.class.getResourceAsStream("Centroids.colours.gz"),
+      Bitmap.class.getResourceAsStream("centroids-distance.png"), 1, 5_050d);
   }
 
   @Override
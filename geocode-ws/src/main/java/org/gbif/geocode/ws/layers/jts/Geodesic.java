@@ -0,0 +1,125 @@
+package org.gbif.geocode.ws.layers.jts;
+
+/**
+ * Distances on the WGS84 ellipsoid, computed from primitives so they're thread safe and allocate nothing.
+ * <br/>
+ * {@link #distance} is Vincenty's inverse formula, which agrees with GeoTools' GeodeticCalculator (and GeographicLib)
+ * to within {@link #TOLERANCE_METERS}, except for nearly antipodal points where it doesn't converge; those fall back
+ * to the spherical distance.  {@link #haversine} is much cheaper, and is within {@link #SPHERICAL_ERROR} of the
+ * ellipsoidal distance, so it can rule out points which are clearly too far away.
+ * <br/>
+ * Points can also be indexed by their {@link #unitVector}s, as the {@link #chord} between them grows with the
+ * distance, with no special cases at the poles or the antimeridian.
+ */
+public final class Geodesic {
+  // WGS84 semi-major axis, flattening and semi-minor axis.
+  private static final double A = 6_378_137d;
+  private static final double F = 1 / 298.257223563d;
+  private static final double B = A * (1 - F);
+
+  // Mean radius of the ellipsoid, (2a + b) / 3.
+  static final double MEAN_RADIUS = (2 * A + B) / 3;
+
+  /**
+   * The most the spherical distance differs from the ellipsoidal one, as a fraction of the ellipsoidal one.  The
+   * difference is up to about 0.56%, largest for north–south lines near the poles or equator.
+   */
+  static final double SPHERICAL_ERROR = 0.01d;
+
+  /**
+   * How closely {@link #distance} agrees with GeographicLib's geodesics, except near the antipode.
+   */
+  static final double TOLERANCE_METERS = 0.001d;
+
+  private static final int MAX_ITERATIONS = 200;
+  private static final double CONVERGED = 1e-12;
+
+  private Geodesic() {}
+
+  /**
+   * Distance in metres along the great circle of a sphere with the ellipsoid's mean radius.
+   */
+  static double haversine(double lat1, double lon1, double lat2, double lon2) {
+    double sinDLat = Math.sin(Math.toRadians(lat2 - lat1) / 2);
+    double sinDLon = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+    double h = sinDLat * sinDLat
+      + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinDLon * sinDLon;
+    return 2 * MEAN_RADIUS * Math.asin(Math.min(1, Math.sqrt(h)));
+  }
+
+  /**
+   * The unit vector from the centre of the sphere to a point, as x, y and z (towards 0°N 0°E, 0°N 90°E and the north
+   * pole).
+   */
+  static void unitVector(double latitude, double longitude, double[] vector, int offset) {
+    double lat = Math.toRadians(latitude);
+    double lon = Math.toRadians(longitude);
+    vector[offset] = Math.cos(lat) * Math.cos(lon);
+    vector[offset + 1] = Math.cos(lat) * Math.sin(lon);
+    vector[offset + 2] = Math.sin(lat);
+  }
+
+  /**
+   * The straight-line distance between the unit vectors of two points this far apart on the sphere.
+   */
+  static double chord(double sphericalMeters) {
+    return 2 * Math.sin(Math.min(Math.PI, sphericalMeters / MEAN_RADIUS) / 2);
+  }
+
+  /**
+   * Distance in metres along the geodesic between two points on the WGS84 ellipsoid.
+   */
+  public static double distance(double lat1, double lon1, double lat2, double lon2) {
+    // Difference in longitude, from -π to π.
+    double l = Math.toRadians(Math.IEEEremainder(lon2 - lon1, 360));
+
+    // Reduced latitudes.
+    double tanU1 = (1 - F) * Math.tan(Math.toRadians(lat1));
+    double cosU1 = 1 / Math.sqrt(1 + tanU1 * tanU1);
+    double sinU1 = tanU1 * cosU1;
+    double tanU2 = (1 - F) * Math.tan(Math.toRadians(lat2));
+    double cosU2 = 1 / Math.sqrt(1 + tanU2 * tanU2);
+    double sinU2 = tanU2 * cosU2;
+
+    double lambda = l;
+    double sinSigma, cosSigma, sigma, cosSqAlpha, cos2SigmaM;
+    int iterations = 0;
+    while (true) {
+      double sinLambda = Math.sin(lambda);
+      double cosLambda = Math.cos(lambda);
+      double t1 = cosU2 * sinLambda;
+      double t2 = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+      sinSigma = Math.sqrt(t1 * t1 + t2 * t2);
+      if (sinSigma == 0) {
+        // The same point.
+        return 0;
+      }
+      cosSigma = sinU1 * sinU2 + cosU1 * cosU2 * cosLambda;
+      sigma = Math.atan2(sinSigma, cosSigma);
+      double sinAlpha = cosU1 * cosU2 * sinLambda / sinSigma;
+      cosSqAlpha = 1 - sinAlpha * sinAlpha;
+      // Zero on the equator.
+      cos2SigmaM = cosSqAlpha != 0 ? cosSigma - 2 * sinU1 * sinU2 / cosSqAlpha : 0;
+
+      double c = F / 16 * cosSqAlpha * (4 + F * (4 - 3 * cosSqAlpha));
+      double previous = lambda;
+      lambda = l + (1 - c) * F * sinAlpha
+        * (sigma + c * sinSigma * (cos2SigmaM + c * cosSigma * (-1 + 2 * cos2SigmaM * cos2SigmaM)));
+
+      if (Math.abs(lambda - previous) <= CONVERGED) {
+        break;
+      }
+      if (++iterations == MAX_ITERATIONS) {
+        // Nearly antipodal, far further than any distance the layers query.
+        return haversine(lat1, lon1, lat2, lon2);
+      }
+    }
+
+    double uSq = cosSqAlpha * (A * A - B * B) / (B * B);
+    double a = 1 + uSq / 16384 * (4096 + uSq * (-768 + uSq * (320 - 175 * uSq)));
+    double b = uSq / 1024 * (256 + uSq * (-128 + uSq * (74 - 47 * uSq)));
+    double deltaSigma = b * sinSigma * (cos2SigmaM + b / 4 * (cosSigma * (-1 + 2 * cos2SigmaM * cos2SigmaM)
+      - b / 6 * cos2SigmaM * (-3 + 4 * sinSigma * sinSigma) * (-3 + 4 * cos2SigmaM * cos2SigmaM)));
+    return B * a * (sigma - deltaSigma);
+  }
+}
@@ -0,0 +1,31 @@
+package org.gbif.geocode.ws.layers.jts;
+
+import org.gbif.geocode.ws.layers.Bitmap;
+import org.gbif.geocode.ws.persistence.mapper.LocationMapper;
+
+/**
+ * The IUCN range maps, held in memory rather than queried in PostGIS as {@code PG_IUCN} is.
+ */
+public class IucnLayer extends AbstractJTSPolygonLayer {
+  public IucnLayer(LocationMapper locationMapper) {
+    super(locationMapper, "IUCN", Bitmap.raster("black.png"), null, null, 500_000);
+  }
+
+  /**
+   * The ranges overlap everywhere, so there are no cells worth refining.
+   */
+  @Override
+  protected boolean refineBorders() {
+    return false;
+  }
+
+  @Override
+  public String name() {
+    return "IUCN";
+  }
+
+  @Override
+  public String source() {
+    return "https://www.iucnredlist.org/";
+  }
+}
@@ -0,0 +1,140 @@
+package org.gbif.geocode.ws.layers.jts;
+
+import java.util.function.IntConsumer;
+
+/**
+ * A static KD-tree of points in primitive arrays, 8 bytes per coordinate and 4 per point.
+ * <br/>
+ * The points are reordered so each range of the arrays is a subtree: its middle point splits the others on one axis,
+ * those before it being no greater and those after no less.  The axis cycles with the depth.  So the tree needs no
+ * nodes, and a search reads only the arrays.
+ */
+final class PointKDTree {
+  private final int dimensions;
+  // Coordinates of each point, in tree order.
+  private final double[] coordinates;
+  // The item number of each point, in tree order.
+  private final int[] items;
+
+  /**
+   * @param dimensions  the number of coordinates of each point
+   * @param coordinates the coordinates of each point in turn; not modified
+   */
+  PointKDTree(int dimensions, double[] coordinates) {
+    this(dimensions, coordinates.clone(), coordinates.length / dimensions);
+  }
+
+  /**
+   * Build a tree in an array of coordinates, which it then owns, so a loader needn't copy it.
+   *
+   * @param dimensions  the number of coordinates of each point
+   * @param coordinates the coordinates of each point in turn, followed by any unused space; reordered
+   * @param size        the number of points
+   */
+  PointKDTree(int dimensions, double[] coordinates, int size) {
+    this.dimensions = dimensions;
+    this.coordinates = coordinates;
+    this.items = new int[size];
+    for (int i = 0; i < items.length; i++) {
+      items[i] = i;
+    }
+    build(0, items.length, 0);
+  }
+
+  private void build(int lo, int hi, int axis) {
+    while (hi - lo > 1) {
+      int mid = (lo + hi) >>> 1;
+      select(lo, hi - 1, mid, axis);
+      int next = (axis + 1) % dimensions;
+      build(lo, mid, next);
+      lo = mid + 1;
+      axis = next;
+    }
+  }
+
+  /**
+   * Partially sort the points from left to right inclusive on an axis, so the k-th is in its sorted place.
+   */
+  private void select(int left, int right, int k, int axis) {
+    while (right > left) {
+      double pivot = coordinate((left + right) >>> 1, axis);
+      int i = left, j = right;
+      while (i <= j) {
+        while (coordinate(i, axis) < pivot) {
+          i++;
+        }
+        while (coordinate(j, axis) > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          swap(i++, j--);
+        }
+      }
+      // Now those up to j are no greater than the pivot, those from i no less, and any between are equal to it.
+      if (k <= j) {
+        right = j;
+      } else if (k >= i) {
+        left = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+  private double coordinate(int point, int axis) {
+    return coordinates[point * dimensions + axis];
+  }
+
+  private void swap(int a, int b) {
+    for (int c = 0; c < dimensions; c++) {
+      double t = coordinates[a * dimensions + c];
+      coordinates[a * dimensions + c] = coordinates[b * dimensions + c];
+      coordinates[b * dimensions + c] = t;
+    }
+    int t = items[a];
+    items[a] = items[b];
+    items[b] = t;
+  }
+
+  int size() {
+    return items.length;
+  }
+
+  /**
+   * Visit each point within a box, including its edges.
+   */
+  void search(double[] min, double[] max, IntConsumer visitor) {
+    search(0, items.length, 0, min, max, visitor);
+  }
+
+  private void search(int lo, int hi, int axis, double[] min, double[] max, IntConsumer visitor) {
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (contains(mid, min, max)) {
+        visitor.accept(items[mid]);
+      }
+
+      double split = coordinate(mid, axis);
+      int next = (axis + 1) % dimensions;
+      if (min[axis] <= split) {
+        if (max[axis] >= split) {
+          search(mid + 1, hi, next, min, max, visitor);
+        }
+        hi = mid;
+      } else {
+        lo = mid + 1;
+      }
+      axis = next;
+    }
+  }
+
+  private boolean contains(int point, double[] min, double[] max) {
+    for (int c = 0; c < dimensions; c++) {
+      double v = coordinates[point * dimensions + c];
+      if (v < min[c] || v > max[c]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
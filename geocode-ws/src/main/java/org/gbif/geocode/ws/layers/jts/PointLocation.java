@@ -1,5 +1,8 @@
 package org.gbif.geocode.ws.layers.jts;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 public class PointLocation {
   double latitude;
   double longitude;
@@ -8,4 +11,21 @@ public class PointLocation {
   String isoCountryCode2Digit;
   String title;
   String source;
+
+  /**
+   * Set the coordinates from a point in well-known binary: the byte order, the geometry type and the x and y
+   * coordinates.  The geometry is the last column fetched, so the id is known for the error message.
+   */
+  void setGeom(byte[] wkb) {
+    // The first byte is 0 for big-endian (XDR) or 1 for little-endian (NDR), then the type is 1 for a point.
+    if (wkb.length == 21 && (wkb[0] == 0 || wkb[0] == 1)) {
+      ByteBuffer buffer = ByteBuffer.wrap(wkb, 1, 20).order(wkb[0] == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+      if (buffer.getInt() == 1) {
+        longitude = buffer.getDouble();
+        latitude = buffer.getDouble();
+        return;
+      }
+    }
+    throw new IllegalArgumentException("Location " + id + " is not a two-dimensional point in well-known binary");
+  }
 }
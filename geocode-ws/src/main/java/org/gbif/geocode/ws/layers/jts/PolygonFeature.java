@@ -0,0 +1,32 @@
+package org.gbif.geocode.ws.layers.jts;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+
+/**
+ * A polygon of a layer, as read from PostGIS, and the Locations it gives as parallel arrays.
+ */
+public class PolygonFeature {
+  private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+  Geometry geometry;
+
+  String source;
+  String[] types;
+  String[] ids;
+  String[] titles;
+  String[] isoCountryCode2Digits;
+
+  /**
+   * Set the polygon from well-known binary.
+   */
+  void setGeom(byte[] wkb) {
+    try {
+      geometry = new WKBReader(GEOMETRY_FACTORY).read(wkb);
+    } catch (ParseException e) {
+      throw new IllegalArgumentException("Unable to read polygon", e);
+    }
+  }
+}
@@ -1,10 +1,12 @@
 package org.gbif.geocode.ws.layers.postgis;
 
 import org.gbif.geocode.api.cache.AbstractBitmapCachedLayer;
+import org.gbif.geocode.api.cache.PaletteRaster;
 import org.gbif.geocode.api.model.Location;
 import org.gbif.geocode.ws.persistence.mapper.LocationMapper;
 
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -21,8 +23,16 @@ public abstract class AbstractPostGISLayer extends AbstractBitmapCachedLayer {
 
   private final LocationMapper locationMapper;
 
-  AbstractPostGISLayer(LocationMapper locationMapper, InputStream bitmap, int maxLocations) {
-    super(bitmap, maxLocations);
+  // Whether distances in metres are calculated here from the nearest point, rather than by PostGIS as geography.
+  private volatile boolean javaDistances = false;
+
+  AbstractPostGISLayer(LocationMapper locationMapper, PaletteRaster bitmap, int maxLocations) {
+    this(locationMapper, bitmap, null, null, maxLocations);
+  }
+
+  AbstractPostGISLayer(LocationMapper locationMapper, PaletteRaster bitmap, InputStream colourKey,
+                       InputStream borderDistance, int maxLocations) {
+    super(bitmap, colourKey, borderDistance, maxLocations);
     this.locationMapper = locationMapper;
   }
 
@@ -31,13 +41,30 @@ public abstract class AbstractPostGISLayer extends AbstractBitmapCachedLayer {
     return uncertaintyDegrees;
   }
 
+  /**
+   * Calculate distances in metres with an ellipsoidal formula from the nearest point PostGIS finds, rather than having
+   * PostGIS calculate them on the geography, which is much slower.
+   */
+  public void setJavaDistances(boolean javaDistances) {
+    this.javaDistances = javaDistances;
+  }
+
   /**
    * Query the shapefile.
    */
   @Override
   protected List<Location> queryDatasource(double latitude, double longitude, double uncertainty) {
     String sqlName = name().replace("PG_", "");
-    List<Location> locations = locationMapper.queryLayer(longitude, latitude, uncertainty, sqlName);
+    List<Location> locations;
+    if (javaDistances) {
+      List<NearestLocation> nearest = locationMapper.queryLayerNearest(longitude, latitude, uncertainty, sqlName);
+      locations = new ArrayList<>(nearest.size());
+      for (NearestLocation n : nearest) {
+        locations.add(n.toLocation(latitude, longitude));
+      }
+    } else {
+      locations = locationMapper.queryLayer(longitude, latitude, uncertainty, sqlName);
+    }
 
     if ((++queries % 10_000) == 0) {
       LOG.info("{} did {} PostGIS queries.", name(), queries);
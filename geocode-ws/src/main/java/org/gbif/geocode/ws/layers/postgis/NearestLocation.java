@@ -0,0 +1,27 @@
+package org.gbif.geocode.ws.layers.postgis;
+
+import org.gbif.geocode.api.model.Location;
+import org.gbif.geocode.ws.layers.jts.Geodesic;
+
+/**
+ * A result of query_layers without its geography distance, but with the nearest point of the geometry instead.
+ */
+public class NearestLocation {
+  String type;
+  String id;
+  String source;
+  String title;
+  String isoCountryCode2Digit;
+  double distance;
+
+  double nearestLongitude;
+  double nearestLatitude;
+
+  /**
+   * The Location, with the distance in metres from the query point to the nearest point on the WGS84 ellipsoid.
+   */
+  Location toLocation(double latitude, double longitude) {
+    return new Location(id, type, source, title, isoCountryCode2Digit, distance,
+      Geodesic.distance(latitude, longitude, nearestLatitude, nearestLongitude));
+  }
+}
@@ -5,7 +5,9 @@ import org.gbif.geocode.ws.persistence.mapper.LocationMapper;
 
 public class PGCentroidsLayer extends AbstractPostGISLayer {
   public PGCentroidsLayer(LocationMapper locationMapper) {
-    super(locationMapper, Bitmap.class.getResourceAsStream("centroids.png"), 1);
+    super(locationMapper, Bitmap.raster("centroids.png"),
+      Bitmap.class.getResourceAsStream("PG_Centroids.colours.gz"),
+      Bitmap.class.getResourceAsStream("centroids-distance.png"), 1);
   }
 
   @Override
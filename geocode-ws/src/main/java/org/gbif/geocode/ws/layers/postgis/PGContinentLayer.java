@@ -5,7 +5,9 @@ import org.gbif.geocode.ws.persistence.mapper.LocationMapper;
 
 public class PGContinentLayer extends AbstractPostGISLayer {
   public PGContinentLayer(LocationMapper locationMapper) {
-    super(locationMapper, Bitmap.class.getResourceAsStream("continent.png"), 1);
+    super(locationMapper, Bitmap.raster("continent.png"),
+      Bitmap.class.getResourceAsStream("PG_Continent.colours.gz"),
+      Bitmap.class.getResourceAsStream("continent-distance.png"), 1);
   }
 
   @Override
@@ -5,7 +5,9 @@ import org.gbif.geocode.ws.persistence.mapper.LocationMapper;
 
 public class PGGadmLayer extends AbstractPostGISLayer {
   public PGGadmLayer(LocationMapper locationMapper) {
-    super(locationMapper, Bitmap.class.getResourceAsStream("gadm3210.png"), 4);
+    super(locationMapper, Bitmap.raster("gadm3210.png"),
+      Bitmap.class.getResourceAsStream("PG_GADM.colours.gz"),
+      Bitmap.class.getResourceAsStream("gadm3210-distance.png"), 4);
   }
 
   @Override
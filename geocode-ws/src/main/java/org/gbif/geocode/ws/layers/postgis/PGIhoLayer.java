@@ -5,7 +5,9 @@ import org.gbif.geocode.ws.persistence.mapper.LocationMapper;
 
 public class PGIhoLayer extends AbstractPostGISLayer {
   public PGIhoLayer(LocationMapper locationMapper) {
-    super(locationMapper, Bitmap.class.getResourceAsStream("iho.png"), 1);
+    super(locationMapper, Bitmap.raster("iho.png"),
+      Bitmap.class.getResourceAsStream("PG_IHO.colours.gz"),
+      Bitmap.class.getResourceAsStream("iho-distance.png"), 1);
   }
 
   @Override
@@ -5,7 +5,15 @@ import org.gbif.geocode.ws.persistence.mapper.LocationMapper;
 
 public class PGIucnLayer extends AbstractPostGISLayer {
   public PGIucnLayer(LocationMapper locationMapper) {
-    super(locationMapper, Bitmap.class.getResourceAsStream("black.png"), 500_000);
+    super(locationMapper, Bitmap.raster("black.png"), 500_000);
+  }
+
+  /**
+   * The ranges overlap everywhere, so there are no cells worth refining.
+   */
+  @Override
+  protected boolean refineBorders() {
+    return false;
   }
 
   @Override
@@ -5,7 +5,9 @@ import org.gbif.geocode.ws.persistence.mapper.LocationMapper;
 
 public class PGPoliticalLayer extends AbstractPostGISLayer {
   public PGPoliticalLayer(LocationMapper locationMapper) {
-    super(locationMapper, Bitmap.class.getResourceAsStream("political.png"), 3);
+    super(locationMapper, Bitmap.raster("political.png"),
+      Bitmap.class.getResourceAsStream("PG_Political.colours.gz"),
+      Bitmap.class.getResourceAsStream("political-distance.png"), 3);
   }
 
   @Override
@@ -5,7 +5,9 @@ import org.gbif.geocode.ws.persistence.mapper.LocationMapper;
 
 public class PGWgsrpdLayer extends AbstractPostGISLayer {
   public PGWgsrpdLayer(LocationMapper locationMapper) {
-    super(locationMapper, Bitmap.class.getResourceAsStream("wgsrpd.png"), 1);
+    super(locationMapper, Bitmap.raster("wgsrpd.png"),
+      Bitmap.class.getResourceAsStream("PG_WGSRPD.colours.gz"),
+      Bitmap.class.getResourceAsStream("wgsrpd-distance.png"), 1);
   }
 
   @Override
@@ -1,21 +1,21 @@
 package org.gbif.geocode.ws.layers.shapefile;
 
 import org.gbif.geocode.api.cache.AbstractBitmapCachedLayer;
+import org.gbif.geocode.api.cache.PaletteRaster;
 import org.gbif.geocode.api.model.Location;
 
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
+import java.util.function.Function;
 
-import org.apache.commons.lang3.tuple.ImmutablePair;
-import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import au.org.ala.layers.intersect.SimpleShapeFile;
-
 /**
  * A shapefile-backed layer with a bitmap cache.
  *
@@ -23,78 +23,98 @@ import au.org.ala.layers.intersect.SimpleShapeFile;
  */
 public abstract class AbstractShapefileLayer extends AbstractBitmapCachedLayer {
   private Logger LOG = LoggerFactory.getLogger(getClass());
-  final SimpleShapeFile simpleShapeFile;
+  final ShapefileIndex shapefile;
   private long queries = 0;
 
-  String[] idColumnLookup;
-  String[] titleColumnLookup;
-  String[] isoCodeColumnLookup;
-  int[] idColumnIndex;
-  int[] titleColumnIndex;
-  int[] isoCodeColumnIndex;
-
-  AbstractShapefileLayer(SimpleShapeFile simpleShapeFile, InputStream bitmap, int maxLocations) {
-    super(bitmap, maxLocations);
-    this.simpleShapeFile = simpleShapeFile;
-    idColumnLookup = simpleShapeFile.getColumnLookup(0);
-    titleColumnLookup = simpleShapeFile.getColumnLookup(1);
-    isoCodeColumnLookup = simpleShapeFile.getColumnLookup(2);
-    idColumnIndex = simpleShapeFile.getColumnIdxs("ID");
-    titleColumnIndex = simpleShapeFile.getColumnIdxs("NAME");
-    isoCodeColumnIndex = simpleShapeFile.getColumnIdxs("ISOCOUNTRY");
+  // The Locations of each feature without a distance, built when the layer is loaded.  Features with the same
+  // attributes share them.  They are copied for each result, so are never modified.
+  private final Location[][] templates;
+
+  AbstractShapefileLayer(ShapefileIndex shapefile, PaletteRaster bitmap, InputStream colourKey,
+                         InputStream borderDistance, int maxLocations) {
+    super(bitmap, colourKey, borderDistance, maxLocations);
+    this.shapefile = shapefile;
+    this.templates = buildTemplates(shapefile);
   }
 
   /**
-   * Convert the shapefile query result into Locations.
+   * Build the Locations of each feature, without distances.
+   *
+   * Non-trivial layers will need to override this.  It's called by the constructor, so mustn't use the subclass's
+   * fields.
    */
-  List<Location> convertResultToLocation(List<ImmutablePair<Integer, Double>> countryValues, double latitude) {
-    List<Location> locations = new ArrayList<>();
-
-    for (Pair<Integer, Double> countryValue : countryValues) {
-      List<Location> ls = resultToLocation(countryValue, latitude);
-
-      for (Location l : ls) {
-        boolean additionalHit = false;
-        for (Location e : locations) {
-          // We may get multiple results for a MultiPolygon; return only the nearest hit.
-          // We may also get multiple genuine results, e.g. for GADM and Political.
-          if (Objects.equals(e.getId(), l.getId())
-            && Objects.equals(e.getIsoCountryCode2Digit(), l.getIsoCountryCode2Digit())) {
-            additionalHit = true;
-            if (e.getDistance() > countryValue.getRight()) {
-              // Replace
-              e.setDistance(countryValue.getRight());
-            }
-          }
-        }
-        if (!additionalHit) {
-          locations.add(l);
-        }
+  Location[][] buildTemplates(ShapefileIndex shapefile) {
+    return buildTemplates(new String[][]{shapefile.column("ID"), shapefile.column("NAME"), shapefile.column("ISOCOUNTRY")},
+      row -> new Location[]{template(row[0], name(), row[1], row[2])});
+  }
+
+  /**
+   * Build the Locations of each feature from its attributes, calling the function once for each distinct row.
+   *
+   * @param columns the attributes, each indexed by feature
+   * @param locations converts a row of attributes, in the order of the columns, into Locations
+   */
+  Location[][] buildTemplates(String[][] columns, Function<String[], Location[]> locations) {
+    Location[][] templates = new Location[columns[0].length][];
+    Map<List<String>, Location[]> distinctRows = new HashMap<>();
+    Map<Location, Location> distinctLocations = new HashMap<>();
+
+    for (int feature = 0; feature < templates.length; feature++) {
+      String[] row = new String[columns.length];
+      for (int c = 0; c < columns.length; c++) {
+        row[c] = columns[c][feature];
       }
+      templates[feature] = distinctRows.computeIfAbsent(Arrays.asList(row), k -> {
+        Location[] ls = locations.apply(row);
+        for (int i = 0; i < ls.length; i++) {
+          ls[i] = distinctLocations.computeIfAbsent(ls[i], l -> l);
+        }
+        return ls;
+      });
     }
 
-    return locations;
+    LOG.debug("{} features have {} distinct rows and {} distinct locations", templates.length, distinctRows.size(),
+      distinctLocations.size());
+    return templates;
   }
 
   /**
-   * Convert a single shapefile result into a Location.
-   *
-   * Non-trivial layers will need to override this.
+   * A Location of this layer, without a distance.
    */
-  List<Location> resultToLocation(Pair<Integer, Double> countryValue, double latitude) {
-    String id = idColumnLookup[idColumnIndex[countryValue.getLeft()]];
-    String title = titleColumnLookup[titleColumnIndex[countryValue.getLeft()]];
-    String isoCode = isoCodeColumnLookup[isoCodeColumnIndex[countryValue.getLeft()]];
-
+  Location template(String id, String type, String title, String isoCode) {
     Location l = new Location();
-    l.setType(name());
+    l.setType(type);
     l.setSource(source());
     l.setId(id);
     l.setTitle(title);
     l.setIsoCountryCode2Digit(isoCode);
-    l.setDistance(countryValue.getRight());
+    return l;
+  }
+
+  /**
+   * Convert the shapefile query result into Locations.
+   */
+  List<Location> convertResultToLocation(ShapefileHits hits, double latitude) {
+    // We may get multiple results for a MultiPolygon; return only the nearest hit.
+    // We may also get multiple genuine results, e.g. for GADM and Political.
+    Map<List<String>, Location> locations = new LinkedHashMap<>();
+
+    for (int i = 0; i < hits.size(); i++) {
+      double distance = hits.distance(i);
+
+      for (Location t : templates[hits.feature(i)]) {
+        List<String> key = Arrays.asList(t.getId(), t.getIsoCountryCode2Digit());
+        Location e = locations.get(key);
+        if (e == null) {
+          locations.put(key, new Location(t.getId(), t.getType(), t.getSource(), t.getTitle(),
+            t.getIsoCountryCode2Digit(), distance, null));
+        } else if (e.getDistance() > distance) {
+          e.setDistance(distance);
+        }
+      }
+    }
 
-    return Collections.singletonList(l);
+    return new ArrayList<>(locations.values());
   }
 
   /**
@@ -102,8 +122,9 @@ public abstract class AbstractShapefileLayer extends AbstractBitmapCachedLayer {
    */
   @Override
   protected List<Location> queryDatasource(double latitude, double longitude, double uncertainty) {
-    List<ImmutablePair<Integer, Double>> intersections = simpleShapeFile.intersectInt(longitude, latitude, uncertainty);
-    List<Location> locations = convertResultToLocation(intersections, latitude);
+    ShapefileHits hits = new ShapefileHits();
+    shapefile.intersect(longitude, latitude, uncertainty, hits);
+    List<Location> locations = convertResultToLocation(hits, latitude);
 
     if ((++queries % 10_000) == 0) {
       LOG.info("{} did {} shapefile queries.", name(), queries);
@@ -2,12 +2,16 @@ package org.gbif.geocode.ws.layers.shapefile;
 
 import org.gbif.geocode.ws.layers.Bitmap;
 
-import au.org.ala.layers.intersect.SimpleShapeFile;
-
 public class ContinentLayer extends AbstractShapefileLayer {
   public ContinentLayer(String root) {
-    super(new SimpleShapeFile(root + "continents_subdivided", new String[]{"id", "name", "isoCountry"}),
-      Bitmap.class.getResourceAsStream("continent.png"),
+    this(root, ShapefileIndex.Engine.ALA);
+  }
+
+  public ContinentLayer(String root, ShapefileIndex.Engine engine) {
+    super(ShapefileIndex.open(engine, root + "continents_subdivided", new String[]{"id", "name", "isoCountry"}),
+      Bitmap.raster(root, "continent.png"),
+      Bitmap.resource(root, "Continent.colours.gz"),
+      Bitmap.resource(root, "continent-distance.png"),
       1);
   }
 
@@ -6,21 +6,19 @@ import org.gbif.geocode.ws.layers.Bitmap;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.apache.commons.lang3.tuple.Pair;
-
-import au.org.ala.layers.intersect.SimpleShapeFile;
-
 public class GadmLayer extends AbstractShapefileLayer {
-  final String[] name = new String[4];
+  private static final String[] NAMES = {"GADM0", "GADM1", "GADM2", "GADM3"};
 
   public GadmLayer(String root) {
-    super(new SimpleShapeFile(root + "gadm_subdivided", new String[]{"gid_0", "gid_1", "gid_2", "gid_3", "name_0", "name_1", "name_2", "name_3", "isoCountry"}),
-      Bitmap.class.getResourceAsStream("gadm3210.png"),
+    this(root, ShapefileIndex.Engine.ALA);
+  }
+
+  public GadmLayer(String root, ShapefileIndex.Engine engine) {
+    super(ShapefileIndex.open(engine, root + "gadm_subdivided", new String[]{"gid_0", "gid_1", "gid_2", "gid_3", "name_0", "name_1", "name_2", "name_3", "isoCountry"}),
+      Bitmap.raster(root, "gadm3210.png"),
+      Bitmap.resource(root, "GADM.colours.gz"),
+      Bitmap.resource(root, "gadm3210-distance.png"),
       4);
-    name[0] = "GADM0";
-    name[1] = "GADM1";
-    name[2] = "GADM2";
-    name[3] = "GADM3";
   }
 
   @Override
@@ -55,34 +53,21 @@ public class GadmLayer extends AbstractShapefileLayer {
   }
 
   @Override
-  public List<Location> resultToLocation(Pair<Integer, Double> countryValue, double latitude) {
-    List<Location> locations = new ArrayList<>();
+  Location[][] buildTemplates(ShapefileIndex shapefile) {
+    String[][] columns = {
+      shapefile.column("GID_0"), shapefile.column("GID_1"), shapefile.column("GID_2"), shapefile.column("GID_3"),
+      shapefile.column("NAME_0"), shapefile.column("NAME_1"), shapefile.column("NAME_2"), shapefile.column("NAME_3"),
+      shapefile.column("ISOCOUNTRY")};
 
-    String[] gid = new String[4];
-    String[] title = new String[4];
-    gid[0] = simpleShapeFile.getColumnLookup(0)[simpleShapeFile.getColumnIdxs("GID_0")[countryValue.getLeft()]];
-    gid[1] = simpleShapeFile.getColumnLookup(1)[simpleShapeFile.getColumnIdxs("GID_1")[countryValue.getLeft()]];
-    gid[2] = simpleShapeFile.getColumnLookup(2)[simpleShapeFile.getColumnIdxs("GID_2")[countryValue.getLeft()]];
-    gid[3] = simpleShapeFile.getColumnLookup(3)[simpleShapeFile.getColumnIdxs("GID_3")[countryValue.getLeft()]];
-    title[0] = simpleShapeFile.getColumnLookup(4)[simpleShapeFile.getColumnIdxs("NAME_0")[countryValue.getLeft()]];
-    title[1] = simpleShapeFile.getColumnLookup(5)[simpleShapeFile.getColumnIdxs("NAME_1")[countryValue.getLeft()]];
-    title[2] = simpleShapeFile.getColumnLookup(6)[simpleShapeFile.getColumnIdxs("NAME_2")[countryValue.getLeft()]];
-    title[3] = simpleShapeFile.getColumnLookup(7)[simpleShapeFile.getColumnIdxs("NAME_3")[countryValue.getLeft()]];
-    String isoCode = simpleShapeFile.getColumnLookup(8)[simpleShapeFile.getColumnIdxs("ISOCOUNTRY")[countryValue.getLeft()]];
-
-    for (int i = 0; i < gid.length; i++) {
-      if (!(gid[i] == null || gid[i].length() == 0)) {
-        Location l = new Location();
-        l.setType(name[i]);
-        l.setSource(source());
-        l.setId(gid[i]);
-        l.setTitle(title[i]);
-        l.setIsoCountryCode2Digit(isoCode);
-        l.setDistance(countryValue.getRight());
-        locations.add(l);
+    return buildTemplates(columns, row -> {
+      List<Location> locations = new ArrayList<>();
+      for (int i = 0; i < NAMES.length; i++) {
+        String gid = row[i];
+        if (!(gid == null || gid.length() == 0)) {
+          locations.add(template(gid, NAMES[i], row[4 + i], row[8]));
+        }
       }
-    }
-
-    return locations;
+      return locations.toArray(new Location[0]);
+    });
   }
 }
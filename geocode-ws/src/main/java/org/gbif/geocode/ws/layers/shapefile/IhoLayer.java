@@ -2,12 +2,16 @@ package org.gbif.geocode.ws.layers.shapefile;
 
 import org.gbif.geocode.ws.layers.Bitmap;
 
-import au.org.ala.layers.intersect.SimpleShapeFile;
-
 public class IhoLayer extends AbstractShapefileLayer {
   public IhoLayer(String root) {
-    super(new SimpleShapeFile(root + "iho_subdivided", new String[]{"id", "name", "isoCountry"}),
-      Bitmap.class.getResourceAsStream("iho.png"),
+    this(root, ShapefileIndex.Engine.ALA);
+  }
+
+  public IhoLayer(String root, ShapefileIndex.Engine engine) {
+    super(ShapefileIndex.open(engine, root + "iho_subdivided", new String[]{"id", "name", "isoCountry"}),
+      Bitmap.raster(root, "iho.png"),
+      Bitmap.resource(root, "IHO.colours.gz"),
+      Bitmap.resource(root, "iho-distance.png"),
       1);
   }
 
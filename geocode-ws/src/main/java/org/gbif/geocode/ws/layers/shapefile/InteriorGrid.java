@@ -0,0 +1,182 @@
+package org.gbif.geocode.ws.layers.shapefile;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A small grid over the bounding box of each polygon of a shapefile, marking cells which are entirely inside or
+ * outside the polygon, so most point-in-polygon tests need not read the polygon's points.
+ * <br/>
+ * Each polygon has up to 16×16 cells, but none smaller than {@link #MIN_CELL_DEGREES}, so small polygons have fewer.
+ * A cell crossed by an edge is mixed; the others are inside or outside as their centres are.  The states take two
+ * bits per cell, so the grid is at most 64 bytes plus 40 bytes of bounds per polygon.
+ */
+final class InteriorGrid {
+  static final int OUTSIDE = 0;
+  static final int INSIDE = 1;
+  static final int MIXED = 2;
+
+  private static final int MAX_CELLS = 16;
+  static final double MIN_CELL_DEGREES = 0.01d;
+
+  // Per polygon: the grid's origin and cell size, as minX, minY, cellWidth, cellHeight.
+  private final double[] bounds;
+  private final byte[] cols;
+  private final byte[] rows;
+  // Position of each polygon's states.
+  private final int[] offsets;
+  private final long[] states;
+
+  InteriorGrid(ShapefileReader reader) {
+    int n = reader.size();
+    bounds = new double[4 * n];
+    cols = new byte[n];
+    rows = new byte[n];
+    offsets = new int[n];
+
+    long[] states = new long[n * 2];
+    int used = 0;
+    byte[] cells = new byte[MAX_CELLS * MAX_CELLS];
+    for (int f = 0; f < n; f++) {
+      offsets[f] = used;
+      if (!reader.hasShape(f)) {
+        continue;
+      }
+
+      double minX = reader.minX(f), minY = reader.minY(f);
+      int c = cellCount(reader.maxX(f) - minX);
+      int r = cellCount(reader.maxY(f) - minY);
+      double cellWidth = (reader.maxX(f) - minX) / c;
+      double cellHeight = (reader.maxY(f) - minY) / r;
+      if (!(cellWidth > 0) || !(cellHeight > 0)) {
+        // No area, so leave it without a grid.
+        continue;
+      }
+      bounds[4 * f] = minX;
+      bounds[4 * f + 1] = minY;
+      bounds[4 * f + 2] = cellWidth;
+      bounds[4 * f + 3] = cellHeight;
+      cols[f] = (byte) c;
+      rows[f] = (byte) r;
+
+      classify(reader, f, c, r, cells);
+
+      int words = (2 * c * r + 63) / 64;
+      if (used + words > states.length) {
+        states = Arrays.copyOf(states, Math.max(states.length * 3 / 2, used + words));
+      }
+      for (int i = 0; i < c * r; i++) {
+        states[used + (2 * i) / 64] |= (long) cells[i] << ((2 * i) % 64);
+      }
+      used += words;
+    }
+    this.states = Arrays.copyOf(states, used);
+  }
+
+  /**
+   * Read a grid from a snapshot.
+   */
+  InteriorGrid(ByteBuffer snapshot) {
+    bounds = ShapefileSnapshot.readDoubles(snapshot);
+    cols = ShapefileSnapshot.readBytes(snapshot);
+    rows = ShapefileSnapshot.readBytes(snapshot);
+    offsets = ShapefileSnapshot.readInts(snapshot);
+    states = ShapefileSnapshot.readLongs(snapshot);
+  }
+
+  void write(DataOutputStream snapshot) throws IOException {
+    ShapefileSnapshot.write(snapshot, bounds);
+    ShapefileSnapshot.write(snapshot, cols);
+    ShapefileSnapshot.write(snapshot, rows);
+    ShapefileSnapshot.write(snapshot, offsets);
+    ShapefileSnapshot.write(snapshot, states);
+  }
+
+  private static int cellCount(double extent) {
+    return (int) Math.max(1, Math.min(MAX_CELLS, Math.ceil(extent / MIN_CELL_DEGREES)));
+  }
+
+  /**
+   * Classify the cells of a polygon's grid: mark the cells each edge passes through as mixed, then find whether the
+   * other cells' centres are inside by counting crossings along the row, as {@link ShapefileReader#contains} does.
+   */
+  private void classify(ShapefileReader reader, int f, int c, int r, byte[] cells) {
+    Arrays.fill(cells, 0, c * r, (byte) OUTSIDE);
+    double minX = bounds[4 * f], minY = bounds[4 * f + 1];
+    double cellWidth = bounds[4 * f + 2], cellHeight = bounds[4 * f + 3];
+
+    // Crossings of each row's centre line, for the cells left unmarked.
+    double[][] crossings = new double[r][4];
+    int[] crossingCount = new int[r];
+
+    reader.edges(f, (x1, y1, x2, y2) -> {
+      // The columns the edge spans, and within each the rows it spans.
+      int c0 = clamp((int) Math.floor((Math.min(x1, x2) - minX) / cellWidth), c);
+      int c1 = clamp((int) Math.floor((Math.max(x1, x2) - minX) / cellWidth), c);
+      for (int col = c0; col <= c1; col++) {
+        double ya = y1, yb = y2;
+        if (x1 != x2) {
+          double xa = Math.max(Math.min(x1, x2), minX + col * cellWidth);
+          double xb = Math.min(Math.max(x1, x2), minX + (col + 1) * cellWidth);
+          ya = y1 + (xa - x1) * (y2 - y1) / (x2 - x1);
+          yb = y1 + (xb - x1) * (y2 - y1) / (x2 - x1);
+        }
+        int r0 = clamp((int) Math.floor((Math.min(ya, yb) - minY) / cellHeight), r);
+        int r1 = clamp((int) Math.floor((Math.max(ya, yb) - minY) / cellHeight), r);
+        for (int row = r0; row <= r1; row++) {
+          cells[row * c + col] = MIXED;
+        }
+      }
+
+      for (int row = 0; row < r; row++) {
+        double y = minY + (row + 0.5) * cellHeight;
+        if ((y1 > y) != (y2 > y)) {
+          if (crossingCount[row] == crossings[row].length) {
+            crossings[row] = Arrays.copyOf(crossings[row], crossingCount[row] * 2);
+          }
+          crossings[row][crossingCount[row]++] = (x2 - x1) * (y - y1) / (y2 - y1) + x1;
+        }
+      }
+    });
+
+    for (int row = 0; row < r; row++) {
+      for (int col = 0; col < c; col++) {
+        if (cells[row * c + col] != MIXED) {
+          // Inside if an odd number of edges cross the row to the right of the centre.
+          double x = minX + (col + 0.5) * cellWidth;
+          int right = 0;
+          for (int i = 0; i < crossingCount[row]; i++) {
+            if (x < crossings[row][i]) {
+              right++;
+            }
+          }
+          cells[row * c + col] = (byte) ((right & 1) == 1 ? INSIDE : OUTSIDE);
+        }
+      }
+    }
+  }
+
+  private static int clamp(int cell, int cells) {
+    return Math.max(0, Math.min(cells - 1, cell));
+  }
+
+  /**
+   * Whether a point is inside a polygon, outside it, or in a mixed cell which needs the polygon itself to tell.
+   */
+  int state(int f, double x, double y) {
+    int c = cols[f];
+    if (c == 0) {
+      return MIXED;
+    }
+    int r = rows[f];
+    double gx = (x - bounds[4 * f]) / bounds[4 * f + 2];
+    double gy = (y - bounds[4 * f + 1]) / bounds[4 * f + 3];
+    if (gx < 0 || gy < 0 || gx > c || gy > r) {
+      return OUTSIDE;
+    }
+    int i = Math.min((int) gy, r - 1) * c + Math.min((int) gx, c - 1);
+    return (int) (states[offsets[f] + (2 * i) / 64] >>> ((2 * i) % 64)) & 3;
+  }
+}
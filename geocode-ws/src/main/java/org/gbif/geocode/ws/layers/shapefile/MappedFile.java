@@ -0,0 +1,74 @@
+package org.gbif.geocode.ws.layers.shapefile;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only memory-mapped file, read by absolute position so it can be shared between threads.
+ * <br/>
+ * A buffer can map at most 2GB, so the file is mapped in 1GB segments, each overlapping the next by the longest read
+ * the caller will make.  Any read then lies within the segment it starts in.
+ */
+final class MappedFile {
+  private static final int SEGMENT_SHIFT = 30;
+  private static final long SEGMENT_BYTES = 1L << SEGMENT_SHIFT;
+  private static final long SEGMENT_MASK = SEGMENT_BYTES - 1;
+
+  private final MappedByteBuffer[] segments;
+  private final long size;
+
+  /**
+   * @param maxReadBytes the longest run of bytes that will be read at once, e.g. a record
+   */
+  MappedFile(Path path, int maxReadBytes) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      size = channel.size();
+      segments = new MappedByteBuffer[(int) Math.max(1, (size + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+      for (int i = 0; i < segments.length; i++) {
+        long start = i * SEGMENT_BYTES;
+        segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+          Math.min(size - start, SEGMENT_BYTES + maxReadBytes));
+        segments[i].order(ByteOrder.LITTLE_ENDIAN);
+      }
+    }
+  }
+
+  long size() {
+    return size;
+  }
+
+  byte get(long position) {
+    return segments[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & SEGMENT_MASK));
+  }
+
+  short getShort(long position) {
+    return segments[(int) (position >>> SEGMENT_SHIFT)].getShort((int) (position & SEGMENT_MASK));
+  }
+
+  int getInt(long position) {
+    return segments[(int) (position >>> SEGMENT_SHIFT)].getInt((int) (position & SEGMENT_MASK));
+  }
+
+  int getBigEndianInt(long position) {
+    return Integer.reverseBytes(getInt(position));
+  }
+
+  double getDouble(long position) {
+    return segments[(int) (position >>> SEGMENT_SHIFT)].getDouble((int) (position & SEGMENT_MASK));
+  }
+
+  /**
+   * Copy bytes into an array.
+   */
+  void get(long position, byte[] dst, int length) {
+    MappedByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)];
+    int offset = (int) (position & SEGMENT_MASK);
+    for (int i = 0; i < length; i++) {
+      dst[i] = segment.get(offset + i);
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package org.gbif.geocode.ws.layers.shapefile;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A memory-mapped shapefile, with only a packed R-tree of the polygons' bounding boxes on the heap.
+ * <br/>
+ * Candidate polygons are tested by reading their points from the mapped file, so the heap used grows with the number
+ * of polygons rather than the number of points, and loading needs only one pass over the .shx index.  The operating
+ * system keeps the pages of frequently queried polygons in memory.  Distances are planar, in degrees.
+ * <br/>
+ * An {@link InteriorGrid} answers most point-in-polygon tests without reading the polygon's points; only points in
+ * cells an edge crosses, or near a polygon, need the mapped file.
+ * <br/>
+ * If a current {@link ShapefileSnapshot} exists beside the shapefile, the index is read from it rather than built.
+ */
+class MappedShapefileIndex implements ShapefileIndex {
+  private static final Logger LOG = LoggerFactory.getLogger(MappedShapefileIndex.class);
+
+  private final String path;
+  private final ShapefileReader reader;
+  private final PackedRTree tree;
+  private final InteriorGrid grid;
+  private final Map<String, String[]> columns;
+
+  MappedShapefileIndex(String path, String[] columns) throws IOException {
+    this.path = path;
+
+    ShapefileSnapshot snapshot = ShapefileSnapshot.open(path, columns);
+    if (snapshot != null) {
+      reader = new ShapefileReader(path, snapshot.buffer());
+      tree = new PackedRTree(snapshot.buffer());
+      grid = new InteriorGrid(snapshot.buffer());
+      this.columns = snapshot.readColumns();
+      LOG.info("Loaded {} polygons from the snapshot of {}", tree.size(), path);
+      return;
+    }
+
+    reader = new ShapefileReader(path);
+
+    int[] items = new int[reader.size()];
+    double[] minX = new double[reader.size()];
+    double[] minY = new double[reader.size()];
+    double[] maxX = new double[reader.size()];
+    double[] maxY = new double[reader.size()];
+    int count = 0;
+    for (int i = 0; i < reader.size(); i++) {
+      if (reader.hasShape(i)) {
+        items[count] = i;
+        minX[count] = reader.minX(i);
+        minY[count] = reader.minY(i);
+        maxX[count] = reader.maxX(i);
+        maxY[count] = reader.maxY(i);
+        count++;
+      }
+    }
+    tree = new PackedRTree(Arrays.copyOf(items, count), minX, minY, maxX, maxY);
+    grid = new InteriorGrid(reader);
+
+    String[][] values = ShapefileReader.readColumns(Paths.get(path + ".dbf"), columns);
+    this.columns = new HashMap<>();
+    for (int c = 0; c < columns.length; c++) {
+      this.columns.put(columns[c].toUpperCase(Locale.ROOT), values[c]);
+    }
+
+    LOG.info("Indexed {} polygons from {}", tree.size(), path);
+  }
+
+  /**
+   * Write a snapshot of the index beside the shapefile, which later loads will read instead.
+   */
+  void writeSnapshot() throws IOException {
+    ShapefileSnapshot.write(path, reader, tree, grid, columns);
+    LOG.info("Wrote snapshot {}", ShapefileSnapshot.path(path));
+  }
+
+  @Override
+  public void intersect(double longitude, double latitude, double distance, ShapefileHits hits) {
+    hits.clear();
+    tree.search(longitude - distance, latitude - distance, longitude + distance, latitude + distance, feature -> {
+      int state = grid.state(feature, longitude, latitude);
+      if (state == InteriorGrid.INSIDE
+          || (state == InteriorGrid.MIXED && reader.contains(feature, longitude, latitude))) {
+        hits.add(feature, 0d);
+      } else {
+        double d = reader.distance(feature, longitude, latitude);
+        if (d <= distance) {
+          hits.add(feature, d);
+        }
+      }
+    });
+  }
+
+  @Override
+  public String[] column(String name) {
+    return columns.get(name.toUpperCase(Locale.ROOT));
+  }
+}
@@ -0,0 +1,153 @@
+package org.gbif.geocode.ws.layers.shapefile;
+
+import org.gbif.geocode.api.cache.HilbertCurve;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A static R-tree of bounding boxes in primitive arrays, about 40 bytes per item.
+ * <br/>
+ * Items are sorted along a Hilbert curve by the centres of their boxes, then packed into nodes of 16, level by level
+ * up to the root (as the "flatbush" JavaScript library does).  Nodes are stored leaves first, so a node's position
+ * tells which level it is in.
+ */
+final class PackedRTree {
+  private static final int NODE_SIZE = 16;
+
+  // Bounding box of each node, as minX, minY, maxX, maxY.
+  private final double[] boxes;
+  // For a leaf, the item; otherwise, the position of its first child.
+  private final int[] indices;
+  // The end position of each level, from the leaves up.
+  private final int[] levelEnds;
+
+  /**
+   * @param items the item numbers, whose boxes are given by the other arrays at the same positions
+   */
+  PackedRTree(int[] items, double[] minX, double[] minY, double[] maxX, double[] maxY) {
+    int n = items.length;
+
+    int[] ends = new int[32];
+    int levels = 0;
+    int count = n;
+    int total = n;
+    ends[levels++] = total;
+    while (count > 1) {
+      count = (count + NODE_SIZE - 1) / NODE_SIZE;
+      total += count;
+      ends[levels++] = total;
+    }
+    levelEnds = Arrays.copyOf(ends, levels);
+    boxes = new double[4 * total];
+    indices = new int[total];
+
+    double[] centreX = new double[n];
+    double[] centreY = new double[n];
+    for (int i = 0; i < n; i++) {
+      centreX[i] = (minX[i] + maxX[i]) / 2;
+      centreY[i] = (minY[i] + maxY[i]) / 2;
+    }
+    int[] order = HilbertCurve.order(centreY, centreX);
+    for (int pos = 0; pos < n; pos++) {
+      int i = order[pos];
+      setBox(pos, minX[i], minY[i], maxX[i], maxY[i]);
+      indices[pos] = items[i];
+    }
+
+    // Each level's nodes hold up to 16 consecutive nodes of the level below.
+    int pos = n;
+    for (int level = 0; level < levels - 1; level++) {
+      int start = level == 0 ? 0 : levelEnds[level - 1];
+      int end = levelEnds[level];
+      for (int child = start; child < end; child += NODE_SIZE) {
+        double x1 = Double.POSITIVE_INFINITY, y1 = Double.POSITIVE_INFINITY;
+        double x2 = Double.NEGATIVE_INFINITY, y2 = Double.NEGATIVE_INFINITY;
+        for (int c = child; c < Math.min(child + NODE_SIZE, end); c++) {
+          x1 = Math.min(x1, boxes[4 * c]);
+          y1 = Math.min(y1, boxes[4 * c + 1]);
+          x2 = Math.max(x2, boxes[4 * c + 2]);
+          y2 = Math.max(y2, boxes[4 * c + 3]);
+        }
+        setBox(pos, x1, y1, x2, y2);
+        indices[pos] = child;
+        pos++;
+      }
+    }
+  }
+
+  /**
+   * Read a tree from a snapshot.
+   */
+  PackedRTree(ByteBuffer snapshot) {
+    boxes = ShapefileSnapshot.readDoubles(snapshot);
+    indices = ShapefileSnapshot.readInts(snapshot);
+    levelEnds = ShapefileSnapshot.readInts(snapshot);
+  }
+
+  void write(DataOutputStream snapshot) throws IOException {
+    ShapefileSnapshot.write(snapshot, boxes);
+    ShapefileSnapshot.write(snapshot, indices);
+    ShapefileSnapshot.write(snapshot, levelEnds);
+  }
+
+  private void setBox(int pos, double x1, double y1, double x2, double y2) {
+    boxes[4 * pos] = x1;
+    boxes[4 * pos + 1] = y1;
+    boxes[4 * pos + 2] = x2;
+    boxes[4 * pos + 3] = y2;
+  }
+
+  int size() {
+    return levelEnds[0];
+  }
+
+  /**
+   * Visit each item whose box intersects the search box.
+   */
+  void search(double minX, double minY, double maxX, double maxY, IntConsumer visitor) {
+    if (indices.length == 0) {
+      return;
+    }
+
+    int leaves = levelEnds[0];
+    int[] stack = new int[2 * levelEnds.length];
+    int[] stackLevels = new int[stack.length];
+    int depth = 0;
+
+    // Start with the root node, as a "level" of one.
+    int node = indices.length - 1;
+    int level = levelEnds.length - 1;
+    int end = indices.length;
+    while (true) {
+      for (int pos = node; pos < end; pos++) {
+        if (maxX < boxes[4 * pos] || maxY < boxes[4 * pos + 1]
+          || minX > boxes[4 * pos + 2] || minY > boxes[4 * pos + 3]) {
+          continue;
+        }
+        if (pos < leaves) {
+          visitor.accept(indices[pos]);
+        } else {
+          if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+            stackLevels = Arrays.copyOf(stackLevels, depth * 2);
+          }
+          stack[depth] = indices[pos];
+          stackLevels[depth] = level - 1;
+          depth++;
+        }
+      }
+
+      if (depth == 0) {
+        return;
+      }
+      depth--;
+      node = stack[depth];
+      level = stackLevels[depth];
+      end = Math.min(node + NODE_SIZE, levelEnds[level]);
+    }
+  }
+}
@@ -3,17 +3,16 @@ package org.gbif.geocode.ws.layers.shapefile;
 import org.gbif.geocode.api.model.Location;
 import org.gbif.geocode.ws.layers.Bitmap;
 
-import java.util.ArrayList;
-import java.util.List;
-
-import org.apache.commons.lang3.tuple.Pair;
-
-import au.org.ala.layers.intersect.SimpleShapeFile;
-
 public class PoliticalLayer extends AbstractShapefileLayer {
   public PoliticalLayer(String root) {
-    super(new SimpleShapeFile(root + "political_subdivided", new String[]{"id", "name", "isoCountry"}),
-      Bitmap.class.getResourceAsStream("political.png"),
+    this(root, ShapefileIndex.Engine.ALA);
+  }
+
+  public PoliticalLayer(String root, ShapefileIndex.Engine engine) {
+    super(ShapefileIndex.open(engine, root + "political_subdivided", new String[]{"id", "name", "isoCountry"}),
+      Bitmap.raster(root, "political.png"),
+      Bitmap.resource(root, "Political.colours.gz"),
+      Bitmap.resource(root, "political-distance.png"),
       3);
   }
 
@@ -33,26 +32,17 @@ public class PoliticalLayer extends AbstractShapefileLayer {
   }
 
   @Override
-  public List<Location> resultToLocation(Pair<Integer, Double> countryValue, double latitude) {
-    List<Location> locations = new ArrayList<>();
-
-    String id = idColumnLookup[idColumnIndex[countryValue.getLeft()]];
-    String title = titleColumnLookup[titleColumnIndex[countryValue.getLeft()]];
-    String isoCode = isoCodeColumnLookup[isoCodeColumnIndex[countryValue.getLeft()]];
-
-    String[] iso = isoCode.split(" ");
-
-    for (String i : iso) {
-      Location l = new Location();
-      l.setType(name());
-      l.setSource(source());
-      l.setId("http://marineregions.org/mrgid/" + id);
-      l.setTitle(title);
-      l.setIsoCountryCode2Digit(i);
-      l.setDistance(countryValue.getRight());
-      locations.add(l);
-    }
-
-    return locations;
+  Location[][] buildTemplates(ShapefileIndex shapefile) {
+    return buildTemplates(new String[][]{shapefile.column("ID"), shapefile.column("NAME"), shapefile.column("ISOCOUNTRY")},
+      row -> {
+        // Joint regimes etc have several countries.
+        String[] iso = row[2].split(" ");
+
+        Location[] locations = new Location[iso.length];
+        for (int i = 0; i < iso.length; i++) {
+          locations[i] = template("http://marineregions.org/mrgid/" + row[0], name(), row[1], iso[i]);
+        }
+        return locations;
+      });
   }
 }
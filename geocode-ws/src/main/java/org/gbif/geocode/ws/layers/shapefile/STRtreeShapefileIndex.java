@@ -0,0 +1,98 @@
+package org.gbif.geocode.ws.layers.shapefile;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.algorithm.locate.IndexedPointInAreaLocator;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Location;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/**
+ * A shapefile read into JTS polygons, indexed by an STRtree.
+ * <br/>
+ * The shapefiles are subdivided into polygons of a few hundred points, so the tree narrows a query to a few small
+ * polygons.  Each polygon keeps the point-in-area index a JTS PreparedPolygon would build; it's built when the file
+ * is loaded rather than on first use, so queries need no locking.  Distances are planar, in degrees.
+ */
+class STRtreeShapefileIndex implements ShapefileIndex {
+  private static final Logger LOG = LoggerFactory.getLogger(STRtreeShapefileIndex.class);
+
+  private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+  private static final class Feature {
+    final int index;
+    final Geometry geometry;
+    final IndexedPointInAreaLocator locator;
+
+    Feature(int index, Geometry geometry) {
+      this.index = index;
+      this.geometry = geometry;
+      this.locator = new IndexedPointInAreaLocator(geometry);
+      // Newer JTS versions build the locator's index on first use, so use it once here rather than in a query.
+      locator.locate(geometry.getCoordinate());
+    }
+  }
+
+  private final STRtree tree = new STRtree();
+  private final Map<String, String[]> columns = new HashMap<>();
+
+  STRtreeShapefileIndex(String path, String[] columns) throws IOException {
+    ShapefileReader reader = new ShapefileReader(path);
+    for (int i = 0; i < reader.size(); i++) {
+      Geometry geometry = reader.polygon(i, GEOMETRY_FACTORY);
+      if (geometry != null) {
+        tree.insert(geometry.getEnvelopeInternal(), new Feature(i, geometry));
+      }
+    }
+    // Build now, as the first query would otherwise build it without synchronization.
+    tree.build();
+
+    String[][] values = ShapefileReader.readColumns(Paths.get(path + ".dbf"), columns);
+    for (int c = 0; c < columns.length; c++) {
+      this.columns.put(columns[c].toUpperCase(Locale.ROOT), values[c]);
+    }
+
+    LOG.info("Indexed {} polygons from {}", tree.size(), path);
+  }
+
+  @Override
+  public void intersect(double longitude, double latitude, double distance, ShapefileHits hits) {
+    hits.clear();
+
+    Coordinate coordinate = new Coordinate(longitude, latitude);
+    Envelope search = new Envelope(coordinate);
+    search.expandBy(distance);
+
+    Point[] point = new Point[1];
+    tree.query(search, item -> {
+      Feature feature = (Feature) item;
+      if (feature.locator.locate(coordinate) != Location.EXTERIOR) {
+        hits.add(feature.index, 0d);
+      } else {
+        if (point[0] == null) {
+          point[0] = GEOMETRY_FACTORY.createPoint(coordinate);
+        }
+        double d = feature.geometry.distance(point[0]);
+        if (d <= distance) {
+          hits.add(feature.index, d);
+        }
+      }
+    });
+  }
+
+  @Override
+  public String[] column(String name) {
+    return columns.get(name.toUpperCase(Locale.ROOT));
+  }
+}
@@ -0,0 +1,44 @@
+package org.gbif.geocode.ws.layers.shapefile;
+
+import java.util.Arrays;
+
+/**
+ * The features found by a shapefile query, with their distances, in primitive arrays.
+ */
+public final class ShapefileHits {
+  private int[] features = new int[16];
+  private double[] distances = new double[16];
+  private int size = 0;
+
+  void clear() {
+    size = 0;
+  }
+
+  void add(int feature, double distance) {
+    if (size == features.length) {
+      features = Arrays.copyOf(features, size * 2);
+      distances = Arrays.copyOf(distances, size * 2);
+    }
+    features[size] = feature;
+    distances[size] = distance;
+    size++;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * The index of the i-th feature found, as used by {@link ShapefileIndex#column}.
+   */
+  public int feature(int i) {
+    return features[i];
+  }
+
+  /**
+   * The distance in degrees to the i-th feature found.
+   */
+  public double distance(int i) {
+    return distances[i];
+  }
+}
@@ -0,0 +1,68 @@
+package org.gbif.geocode.ws.layers.shapefile;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * The polygons of a shapefile and their attributes, indexed for point queries.
+ */
+public interface ShapefileIndex {
+
+  /**
+   * Implementations, chosen per layer in the configuration.
+   */
+  enum Engine {
+    /**
+     * The ALA's SimpleShapeFile.
+     */
+    ALA,
+
+    /**
+     * JTS polygons in an STRtree, see {@link STRtreeShapefileIndex}.
+     */
+    STRTREE,
+
+    /**
+     * The memory-mapped shapefile, see {@link MappedShapefileIndex}.
+     */
+    MAPPED
+  }
+
+  /**
+   * Find the features within a distance of a point.
+   *
+   * @param distance the distance in degrees
+   * @param hits     cleared, then filled with the features found and their distances in degrees (0 within a feature)
+   */
+  void intersect(double longitude, double latitude, double distance, ShapefileHits hits);
+
+  /**
+   * Values of an attribute, indexed by feature.
+   *
+   * @param name the column name, ignoring case
+   * @return the values, or null if the column wasn't loaded
+   */
+  String[] column(String name);
+
+  /**
+   * Load a shapefile.
+   *
+   * @param path    the path of the shapefile without the .shp extension
+   * @param columns the attribute columns to load
+   */
+  static ShapefileIndex open(Engine engine, String path, String[] columns) {
+    try {
+      switch (engine) {
+        case STRTREE:
+          return new STRtreeShapefileIndex(path, columns);
+        case MAPPED:
+          return new MappedShapefileIndex(path, columns);
+        case ALA:
+        default:
+          return new SimpleShapeFileIndex(path, columns);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Error reading shapefile " + path, e);
+    }
+  }
+}
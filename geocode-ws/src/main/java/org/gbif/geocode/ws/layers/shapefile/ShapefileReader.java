@@ -0,0 +1,365 @@
+package org.gbif.geocode.ws.layers.shapefile;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vividsolutions.jts.algorithm.CGAlgorithms;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Reads the polygons (.shp, .shx) and attributes (.dbf) of a shapefile, as exported by database/export-shapefiles.sh.
+ * <br/>
+ * See the ESRI Shapefile Technical Description and the dBASE III file format.  Only polygon shapes are supported.
+ * <br/>
+ * The files are memory mapped.  Only the position of each record is kept on the heap; polygons can be tested and
+ * measured by reading their points from the mapped file, or decoded into JTS geometries.
+ */
+final class ShapefileReader {
+  private static final int FILE_CODE = 9994;
+  private static final int HEADER_BYTES = 100;
+
+  static final int NULL_SHAPE = 0;
+  static final int POLYGON = 5;
+  static final int POLYGON_Z = 15;
+  static final int POLYGON_M = 25;
+
+  // Offsets within a polygon record, after the shape type and bounding box.
+  private static final int NUM_PARTS = 36;
+  private static final int NUM_POINTS = 40;
+  private static final int PARTS = 44;
+
+  private static final byte DBF_HEADER_END = 0x0D;
+
+  private final MappedFile shp;
+  // Position of the content of each record in the .shp file.
+  private final long[] records;
+  private final int maxRecordBytes;
+
+  /**
+   * @param path the path of the shapefile without the .shp extension
+   */
+  ShapefileReader(String path) throws IOException {
+    // The .shx index has the position and length of each record, as big-endian 16-bit word counts.
+    MappedFile shx = new MappedFile(Paths.get(path + ".shx"), 8);
+    checkHeader(shx, path + ".shx");
+    records = new long[(int) ((shx.size() - HEADER_BYTES) / 8)];
+    int maxRecordBytes = 0;
+    for (int i = 0; i < records.length; i++) {
+      long index = HEADER_BYTES + 8L * i;
+      records[i] = 2L * shx.getBigEndianInt(index) + 8;
+      maxRecordBytes = Math.max(maxRecordBytes, 2 * shx.getBigEndianInt(index + 4));
+    }
+    this.maxRecordBytes = maxRecordBytes;
+
+    shp = new MappedFile(Paths.get(path + ".shp"), maxRecordBytes);
+    checkHeader(shp, path + ".shp");
+  }
+
+  /**
+   * Read the record positions from a snapshot, rather than the .shx index.
+   */
+  ShapefileReader(String path, ByteBuffer snapshot) throws IOException {
+    maxRecordBytes = snapshot.getInt();
+    records = ShapefileSnapshot.readLongs(snapshot);
+
+    shp = new MappedFile(Paths.get(path + ".shp"), maxRecordBytes);
+    checkHeader(shp, path + ".shp");
+  }
+
+  void write(DataOutputStream snapshot) throws IOException {
+    snapshot.writeInt(maxRecordBytes);
+    ShapefileSnapshot.write(snapshot, records);
+  }
+
+  private static void checkHeader(MappedFile file, String name) throws IOException {
+    if (file.size() < HEADER_BYTES || file.getBigEndianInt(0) != FILE_CODE) {
+      throw new IOException(name + " is not a shapefile");
+    }
+    int type = file.getInt(32);
+    if (type != POLYGON && type != POLYGON_Z && type != POLYGON_M) {
+      throw new IOException(name + " has shape type " + type + ", only polygons are supported");
+    }
+  }
+
+  /**
+   * Number of records.
+   */
+  int size() {
+    return records.length;
+  }
+
+  /**
+   * Whether the record has a polygon, rather than the null shape.
+   */
+  boolean hasShape(int record) {
+    return shp.getInt(records[record]) != NULL_SHAPE;
+  }
+
+  double minX(int record) {
+    return shp.getDouble(records[record] + 4);
+  }
+
+  double minY(int record) {
+    return shp.getDouble(records[record] + 12);
+  }
+
+  double maxX(int record) {
+    return shp.getDouble(records[record] + 20);
+  }
+
+  double maxY(int record) {
+    return shp.getDouble(records[record] + 28);
+  }
+
+  /**
+   * Whether a point is within a polygon, counting crossings of a ray from the point with all rings.  Any Z and M
+   * values follow the points, and are ignored.
+   */
+  boolean contains(int record, double x, double y) {
+    long content = records[record];
+    if (x < shp.getDouble(content + 4) || y < shp.getDouble(content + 12)
+      || x > shp.getDouble(content + 20) || y > shp.getDouble(content + 28)) {
+      return false;
+    }
+
+    int numParts = shp.getInt(content + NUM_PARTS);
+    int numPoints = shp.getInt(content + NUM_POINTS);
+    long parts = content + PARTS;
+    long points = parts + 4L * numParts;
+
+    boolean inside = false;
+    for (int p = 0; p < numParts; p++) {
+      int start = shp.getInt(parts + 4L * p);
+      int stop = p + 1 < numParts ? shp.getInt(parts + 4L * (p + 1)) : numPoints;
+
+      // Rings are closed, so each point is joined to the next.
+      double x1 = shp.getDouble(points + 16L * start);
+      double y1 = shp.getDouble(points + 16L * start + 8);
+      for (int i = start + 1; i < stop; i++) {
+        double x2 = shp.getDouble(points + 16L * i);
+        double y2 = shp.getDouble(points + 16L * i + 8);
+        if ((y1 > y) != (y2 > y) && x < (x2 - x1) * (y - y1) / (y2 - y1) + x1) {
+          inside = !inside;
+        }
+        x1 = x2;
+        y1 = y2;
+      }
+    }
+    return inside;
+  }
+
+  /**
+   * Planar distance from a point to the nearest edge of a polygon.
+   */
+  double distance(int record, double x, double y) {
+    long content = records[record];
+    int numParts = shp.getInt(content + NUM_PARTS);
+    int numPoints = shp.getInt(content + NUM_POINTS);
+    long parts = content + PARTS;
+    long points = parts + 4L * numParts;
+
+    double minSquared = Double.MAX_VALUE;
+    for (int p = 0; p < numParts; p++) {
+      int start = shp.getInt(parts + 4L * p);
+      int stop = p + 1 < numParts ? shp.getInt(parts + 4L * (p + 1)) : numPoints;
+
+      double x1 = shp.getDouble(points + 16L * start);
+      double y1 = shp.getDouble(points + 16L * start + 8);
+      for (int i = start + 1; i < stop; i++) {
+        double x2 = shp.getDouble(points + 16L * i);
+        double y2 = shp.getDouble(points + 16L * i + 8);
+        minSquared = Math.min(minSquared, segmentDistanceSquared(x, y, x1, y1, x2, y2));
+        x1 = x2;
+        y1 = y2;
+      }
+    }
+    return Math.sqrt(minSquared);
+  }
+
+  private static double segmentDistanceSquared(double x, double y, double x1, double y1, double x2, double y2) {
+    double dx = x2 - x1;
+    double dy = y2 - y1;
+    double lengthSquared = dx * dx + dy * dy;
+    double t = lengthSquared == 0 ? 0 : ((x - x1) * dx + (y - y1) * dy) / lengthSquared;
+    t = Math.max(0, Math.min(1, t));
+    double ex = x1 + t * dx - x;
+    double ey = y1 + t * dy - y;
+    return ex * ex + ey * ey;
+  }
+
+  /**
+   * Receives the edges of a polygon.
+   */
+  interface EdgeVisitor {
+    void edge(double x1, double y1, double x2, double y2);
+  }
+
+  /**
+   * Visit each edge of each ring of a polygon.
+   */
+  void edges(int record, EdgeVisitor visitor) {
+    long content = records[record];
+    int numParts = shp.getInt(content + NUM_PARTS);
+    int numPoints = shp.getInt(content + NUM_POINTS);
+    long parts = content + PARTS;
+    long points = parts + 4L * numParts;
+
+    for (int p = 0; p < numParts; p++) {
+      int start = shp.getInt(parts + 4L * p);
+      int stop = p + 1 < numParts ? shp.getInt(parts + 4L * (p + 1)) : numPoints;
+
+      double x1 = shp.getDouble(points + 16L * start);
+      double y1 = shp.getDouble(points + 16L * start + 8);
+      for (int i = start + 1; i < stop; i++) {
+        double x2 = shp.getDouble(points + 16L * i);
+        double y2 = shp.getDouble(points + 16L * i + 8);
+        visitor.edge(x1, y1, x2, y2);
+        x1 = x2;
+        y1 = y2;
+      }
+    }
+  }
+
+  /**
+   * Decode a record into a JTS geometry.  Rings are in any order: shells clockwise, holes anticlockwise.
+   *
+   * @return a Polygon or MultiPolygon, or null if the record has no shape
+   */
+  Geometry polygon(int record, GeometryFactory factory) {
+    if (!hasShape(record)) {
+      return null;
+    }
+
+    long content = records[record];
+    int numParts = shp.getInt(content + NUM_PARTS);
+    int numPoints = shp.getInt(content + NUM_POINTS);
+    long parts = content + PARTS;
+    long points = parts + 4L * numParts;
+
+    List<Coordinate[]> shells = new ArrayList<>();
+    List<Coordinate[]> holes = new ArrayList<>();
+    for (int p = 0; p < numParts; p++) {
+      int start = shp.getInt(parts + 4L * p);
+      int stop = p + 1 < numParts ? shp.getInt(parts + 4L * (p + 1)) : numPoints;
+
+      Coordinate[] ring = new Coordinate[stop - start];
+      for (int i = 0; i < ring.length; i++) {
+        long point = points + 16L * (start + i);
+        ring[i] = new Coordinate(shp.getDouble(point), shp.getDouble(point + 8));
+      }
+      if (ring.length > 0 && !ring[0].equals2D(ring[ring.length - 1])) {
+        ring = Arrays.copyOf(ring, ring.length + 1);
+        ring[ring.length - 1] = new Coordinate(ring[0]);
+      }
+      if (ring.length < 4) {
+        // Degenerate, so has no area.
+        continue;
+      }
+
+      if (CGAlgorithms.isCCW(ring)) {
+        holes.add(ring);
+      } else {
+        shells.add(ring);
+      }
+    }
+
+    if (shells.isEmpty()) {
+      // Wrongly wound, so treat the rings as shells.
+      shells.addAll(holes);
+      holes.clear();
+    }
+    if (shells.isEmpty()) {
+      return null;
+    }
+
+    // Put each hole in the shell containing it.
+    List<List<LinearRing>> shellHoles = new ArrayList<>();
+    for (int s = 0; s < shells.size(); s++) {
+      shellHoles.add(new ArrayList<>());
+    }
+    for (Coordinate[] hole : holes) {
+      int s = 0;
+      while (s < shells.size() - 1 && !CGAlgorithms.isPointInRing(hole[0], shells.get(s))) {
+        s++;
+      }
+      shellHoles.get(s).add(factory.createLinearRing(hole));
+    }
+
+    Polygon[] polygons = new Polygon[shells.size()];
+    for (int s = 0; s < shells.size(); s++) {
+      polygons[s] = factory.createPolygon(factory.createLinearRing(shells.get(s)),
+        shellHoles.get(s).toArray(new LinearRing[0]));
+    }
+    return polygons.length == 1 ? polygons[0] : factory.createMultiPolygon(polygons);
+  }
+
+  /**
+   * Read attribute columns from a .dbf file, which must be UTF-8 encoded.  Values are trimmed, and each distinct
+   * value is stored once.
+   *
+   * @param names the columns to read, ignoring case
+   * @return the values of each column, indexed by record
+   */
+  static String[][] readColumns(Path dbf, String[] names) throws IOException {
+    // Header and record lengths are unsigned shorts.
+    MappedFile file = new MappedFile(dbf, 0xFFFF);
+    int records = file.getInt(4);
+    int headerBytes = file.getShort(8) & 0xFFFF;
+    int recordBytes = file.getShort(10) & 0xFFFF;
+
+    // Find the columns in the field descriptors.  Each record starts with a deletion flag.
+    int[] offsets = new int[names.length];
+    int[] lengths = new int[names.length];
+    Arrays.fill(offsets, -1);
+    byte[] bytes = new byte[0xFF];
+    int offset = 1;
+    for (int f = 32; f + 32 <= headerBytes && file.get(f) != DBF_HEADER_END; f += 32) {
+      int nameLength = 0;
+      while (nameLength < 11 && file.get(f + nameLength) != 0) {
+        nameLength++;
+      }
+      file.get(f, bytes, nameLength);
+      String name = new String(bytes, 0, nameLength, StandardCharsets.US_ASCII).trim();
+      int length = file.get(f + 16) & 0xFF;
+
+      for (int n = 0; n < names.length; n++) {
+        if (names[n].equalsIgnoreCase(name)) {
+          offsets[n] = offset;
+          lengths[n] = length;
+        }
+      }
+      offset += length;
+    }
+    for (int n = 0; n < names.length; n++) {
+      if (offsets[n] < 0) {
+        throw new IOException("Column " + names[n] + " not found in " + dbf);
+      }
+    }
+
+    String[][] values = new String[names.length][records];
+    Map<String, String> distinct = new HashMap<>();
+    for (int r = 0; r < records; r++) {
+      long record = headerBytes + (long) r * recordBytes;
+      for (int n = 0; n < names.length; n++) {
+        file.get(record + offsets[n], bytes, lengths[n]);
+        String value = new String(bytes, 0, lengths[n], StandardCharsets.UTF_8).trim();
+        String existing = distinct.putIfAbsent(value, value);
+        values[n][r] = existing != null ? existing : value;
+      }
+    }
+    return values;
+  }
+}
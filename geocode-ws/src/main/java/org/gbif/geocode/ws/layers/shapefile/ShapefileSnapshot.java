@@ -0,0 +1,299 @@
+package org.gbif.geocode.ws.layers.shapefile;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads and writes the heap structures of a {@link MappedShapefileIndex}, so it can be loaded without reading the
+ * .shx and .dbf files or building its indexes.
+ * <br/>
+ * A snapshot is written beside the shapefile as <code>name.snapshot</code> by {@link ShapefileSnapshotWriter}.  It
+ * records the sizes of the .shp and .dbf files, checksums of the .shp header, which has the bounding box, and of the
+ * .shx it was made from, and the layer data version in <code>version.txt</code> beside the shapefile.  Modification
+ * times aren't recorded, so the snapshot survives being copied with the shapefile.  A snapshot which is incomplete, or
+ * doesn't match the shapefile, is ignored with a warning and the index is built instead.
+ * <br/>
+ * The format is: magic, version, the array of sizes and checksums, the data version, the column names, then the
+ * arrays of the {@link ShapefileReader}, {@link PackedRTree} and {@link InteriorGrid}, then the columns, then the
+ * magic again.  Each array is its length then its values; each column is a table of its distinct values then the
+ * position in the table of each feature's value.  Numbers are big-endian.
+ */
+final class ShapefileSnapshot {
+  private static final Logger LOG = LoggerFactory.getLogger(ShapefileSnapshot.class);
+
+  private static final int MAGIC = 0x4743534E; // "GCSN"
+  private static final int VERSION = 3;
+  // The .shp header, with the bounding box of the polygons.
+  private static final int HEADER_BYTES = 100;
+  // The layer data version, as read by GeocodeServiceImpl from the shapefile root.
+  private static final String DATA_VERSION_FILE = "version.txt";
+
+  private final ByteBuffer buffer;
+  private final String[] columns;
+
+  private ShapefileSnapshot(ByteBuffer buffer, String[] columns) {
+    this.buffer = buffer;
+    this.columns = columns;
+  }
+
+  /**
+   * The snapshot file of a shapefile.
+   *
+   * @param path the path of the shapefile without the .shp extension
+   */
+  static Path path(String path) {
+    return Paths.get(path + ".snapshot");
+  }
+
+  /**
+   * Map the snapshot of a shapefile.
+   *
+   * @param path    the path of the shapefile without the .shp extension
+   * @param columns the attribute columns which will be read
+   * @return the snapshot, positioned at the reader's arrays, or null if there's no snapshot, it's incomplete, the
+   * shapefile has changed since it was written or it lacks some of the columns
+   */
+  static ShapefileSnapshot open(String path, String[] columns) throws IOException {
+    Path snapshot = path(path);
+    if (!Files.isReadable(snapshot)) {
+      return null;
+    }
+
+    try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Shapefile snapshot " + snapshot + " is too large to map");
+      }
+      // The mapping remains valid after the channel is closed.
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+      // The magic is also at the end, so a partly copied snapshot is recognised.
+      if (buffer.remaining() < 12 || buffer.getInt() != MAGIC || buffer.getInt(buffer.limit() - 4) != MAGIC) {
+        LOG.warn("Ignoring {}, which is not a shapefile snapshot or is incomplete", snapshot);
+        return null;
+      }
+      if (buffer.getInt() != VERSION) {
+        LOG.warn("Ignoring {}, which has an old format", snapshot);
+        return null;
+      }
+      if (!Arrays.equals(readLongs(buffer), fingerprint(path)) || !readString(buffer).equals(dataVersion(path))) {
+        LOG.warn("Ignoring {}, which was written from a different shapefile or data version", snapshot);
+        return null;
+      }
+
+      String[] names = new String[buffer.getInt()];
+      for (int c = 0; c < names.length; c++) {
+        names[c] = readString(buffer);
+      }
+      for (String column : columns) {
+        if (Arrays.stream(names).noneMatch(column::equalsIgnoreCase)) {
+          LOG.warn("Ignoring {}, which lacks the column {}", snapshot, column);
+          return null;
+        }
+      }
+      return new ShapefileSnapshot(buffer, names);
+    } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException
+             | NegativeArraySizeException e) {
+      LOG.warn("Ignoring {}, which is incomplete", snapshot);
+      return null;
+    }
+  }
+
+  /**
+   * The buffer, from which the reader, tree and grid read their arrays in turn.
+   */
+  ByteBuffer buffer() {
+    return buffer;
+  }
+
+  /**
+   * Read the columns, which follow the grid.
+   *
+   * @return the values of each column, indexed by feature, by upper case column name
+   */
+  Map<String, String[]> readColumns() {
+    Map<String, String[]> values = new HashMap<>();
+    for (String name : columns) {
+      String[] table = new String[buffer.getInt()];
+      for (int i = 0; i < table.length; i++) {
+        table[i] = readString(buffer);
+      }
+      int[] positions = readInts(buffer);
+      String[] column = new String[positions.length];
+      for (int f = 0; f < column.length; f++) {
+        column[f] = table[positions[f]];
+      }
+      values.put(name.toUpperCase(Locale.ROOT), column);
+    }
+    return values;
+  }
+
+  /**
+   * Write the snapshot of an index.  It's written to a temporary file and moved into place, so a concurrent reader
+   * never sees a partial file.
+   */
+  static void write(String path, ShapefileReader reader, PackedRTree tree, InteriorGrid grid,
+                    Map<String, String[]> columns) throws IOException {
+    Path snapshot = path(path).toAbsolutePath();
+    Path temporary = Files.createTempFile(snapshot.getParent(), snapshot.getFileName().toString(), ".tmp");
+    try {
+      try (OutputStream file = Files.newOutputStream(temporary)) {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        write(out, fingerprint(path));
+        writeString(out, dataVersion(path));
+        out.writeInt(columns.size());
+        for (String name : columns.keySet()) {
+          writeString(out, name);
+        }
+
+        reader.write(out);
+        tree.write(out);
+        grid.write(out);
+
+        for (String[] column : columns.values()) {
+          Map<String, Integer> table = new HashMap<>();
+          int[] positions = new int[column.length];
+          for (int f = 0; f < column.length; f++) {
+            positions[f] = table.computeIfAbsent(column[f], v -> table.size());
+          }
+          String[] values = new String[table.size()];
+          table.forEach((v, i) -> values[i] = v);
+          out.writeInt(values.length);
+          for (String value : values) {
+            writeString(out, value);
+          }
+          write(out, positions);
+        }
+        out.writeInt(MAGIC);
+        out.flush();
+      }
+      Files.move(temporary, path(path), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  /**
+   * The sizes and checksums a snapshot records of its shapefile, to tell whether the shapefile has changed.  The .shx
+   * index has the position of every record, so any change to the number or size of the polygons changes it.
+   */
+  private static long[] fingerprint(String path) throws IOException {
+    Path shp = Paths.get(path + ".shp");
+    Path shx = Paths.get(path + ".shx");
+    return new long[]{
+      Files.size(shp),
+      Files.size(Paths.get(path + ".dbf")),
+      checksum(shp, HEADER_BYTES),
+      checksum(shx, Long.MAX_VALUE)
+    };
+  }
+
+  /**
+   * The layer data version in the shapefile's directory, or an empty string if there's none.
+   */
+  private static String dataVersion(String path) throws IOException {
+    Path directory = Paths.get(path).toAbsolutePath().getParent();
+    Path file = directory.resolve(DATA_VERSION_FILE);
+    if (!Files.isReadable(file)) {
+      return "";
+    }
+    return new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+  }
+
+  /**
+   * Checksum of the start of a file.
+   */
+  private static long checksum(Path file, long length) throws IOException {
+    CRC32 crc = new CRC32();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      crc.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(length, channel.size())));
+    }
+    return crc.getValue();
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer in) {
+    byte[] bytes = new byte[in.getInt()];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  static void write(DataOutputStream out, byte[] values) throws IOException {
+    out.writeInt(values.length);
+    out.write(values);
+  }
+
+  static void write(DataOutputStream out, int[] values) throws IOException {
+    out.writeInt(values.length);
+    for (int v : values) {
+      out.writeInt(v);
+    }
+  }
+
+  static void write(DataOutputStream out, long[] values) throws IOException {
+    out.writeInt(values.length);
+    for (long v : values) {
+      out.writeLong(v);
+    }
+  }
+
+  static void write(DataOutputStream out, double[] values) throws IOException {
+    out.writeInt(values.length);
+    for (double v : values) {
+      out.writeDouble(v);
+    }
+  }
+
+  static byte[] readBytes(ByteBuffer in) {
+    byte[] values = new byte[in.getInt()];
+    in.get(values);
+    return values;
+  }
+
+  static int[] readInts(ByteBuffer in) {
+    int[] values = new int[in.getInt()];
+    in.asIntBuffer().get(values);
+    in.position(in.position() + 4 * values.length);
+    return values;
+  }
+
+  static long[] readLongs(ByteBuffer in) {
+    long[] values = new long[in.getInt()];
+    in.asLongBuffer().get(values);
+    in.position(in.position() + 8 * values.length);
+    return values;
+  }
+
+  static double[] readDoubles(ByteBuffer in) {
+    double[] values = new double[in.getInt()];
+    in.asDoubleBuffer().get(values);
+    in.position(in.position() + 8 * values.length);
+    return values;
+  }
+}
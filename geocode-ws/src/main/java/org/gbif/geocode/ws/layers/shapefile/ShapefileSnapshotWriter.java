@@ -0,0 +1,43 @@
+package org.gbif.geocode.ws.layers.shapefile;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Writes the snapshot of each shapefile layer, so the memory-mapped engine loads them without building its indexes.
+ * <br/>
+ * Run after the shapefiles are exported and the data version written to version.txt, with the shapefile root and
+ * optionally the layers to snapshot, e.g. <code>java -cp geocode-ws.jar -Dloader.main=org.gbif.geocode.ws.layers.shapefile.ShapefileSnapshotWriter
+ * org.springframework.boot.loader.PropertiesLauncher /var/lib/geocode/ PoliticalLayer GadmLayer</code>.
+ */
+public class ShapefileSnapshotWriter {
+  private static final Map<String, Function<String, AbstractShapefileLayer>> LAYERS = new LinkedHashMap<>();
+
+  static {
+    LAYERS.put("ContinentLayer", root -> new ContinentLayer(root, ShapefileIndex.Engine.MAPPED));
+    LAYERS.put("GadmLayer", root -> new GadmLayer(root, ShapefileIndex.Engine.MAPPED));
+    LAYERS.put("IhoLayer", root -> new IhoLayer(root, ShapefileIndex.Engine.MAPPED));
+    LAYERS.put("PoliticalLayer", root -> new PoliticalLayer(root, ShapefileIndex.Engine.MAPPED));
+    LAYERS.put("WgsrpdLayer", root -> new WgsrpdLayer(root, ShapefileIndex.Engine.MAPPED));
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length == 0) {
+      System.err.println("Usage: ShapefileSnapshotWriter <shapefile root> [layer class name...]");
+      System.exit(1);
+    }
+    String root = args[0];
+    List<String> enabled = Arrays.asList(args).subList(1, args.length);
+
+    for (Map.Entry<String, Function<String, AbstractShapefileLayer>> e : LAYERS.entrySet()) {
+      if (enabled.isEmpty() || enabled.contains(e.getKey())) {
+        AbstractShapefileLayer layer = e.getValue().apply(root);
+        ((MappedShapefileIndex) layer.shapefile).writeSnapshot();
+      }
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package org.gbif.geocode.ws.layers.shapefile;
+
+import java.util.Locale;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+
+import au.org.ala.layers.intersect.SimpleShapeFile;
+
+/**
+ * A shapefile read by the ALA's layer-store (https://github.com/AtlasOfLivingAustralia/layers-store).
+ */
+class SimpleShapeFileIndex implements ShapefileIndex {
+  private final SimpleShapeFile simpleShapeFile;
+  private final String[] columns;
+
+  SimpleShapeFileIndex(String path, String[] columns) {
+    this.simpleShapeFile = new SimpleShapeFile(path, columns);
+    this.columns = columns;
+  }
+
+  @Override
+  public void intersect(double longitude, double latitude, double distance, ShapefileHits hits) {
+    hits.clear();
+    for (ImmutablePair<Integer, Double> i : simpleShapeFile.intersectInt(longitude, latitude, distance)) {
+      hits.add(i.getLeft(), i.getRight());
+    }
+  }
+
+  @Override
+  public String[] column(String name) {
+    for (int c = 0; c < columns.length; c++) {
+      if (columns[c].equalsIgnoreCase(name)) {
+        // SimpleShapeFile stores each distinct value once, and an index into those for each feature.
+        String[] lookup = simpleShapeFile.getColumnLookup(c);
+        int[] idxs = simpleShapeFile.getColumnIdxs(name.toUpperCase(Locale.ROOT));
+        String[] values = new String[idxs.length];
+        for (int i = 0; i < idxs.length; i++) {
+          values[i] = lookup[idxs[i]];
+        }
+        return values;
+      }
+    }
+    return null;
+  }
+}
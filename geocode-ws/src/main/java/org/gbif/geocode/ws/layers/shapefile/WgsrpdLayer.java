@@ -2,12 +2,16 @@ package org.gbif.geocode.ws.layers.shapefile;
 
 import org.gbif.geocode.ws.layers.Bitmap;
 
-import au.org.ala.layers.intersect.SimpleShapeFile;
-
 public class WgsrpdLayer extends AbstractShapefileLayer {
   public WgsrpdLayer(String root) {
-    super(new SimpleShapeFile(root + "wgsrpd_subdivided", new String[]{"id", "name", "isoCountry"}),
-      Bitmap.class.getResourceAsStream("wgsrpd.png"),
+    this(root, ShapefileIndex.Engine.ALA);
+  }
+
+  public WgsrpdLayer(String root, ShapefileIndex.Engine engine) {
+    super(ShapefileIndex.open(engine, root + "wgsrpd_subdivided", new String[]{"id", "name", "isoCountry"}),
+      Bitmap.raster(root, "wgsrpd.png"),
+      Bitmap.resource(root, "WGSRPD.colours.gz"),
+      Bitmap.resource(root, "wgsrpd-distance.png"),
       1);
   }
 
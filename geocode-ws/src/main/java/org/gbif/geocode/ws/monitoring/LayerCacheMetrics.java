@@ -0,0 +1,111 @@
+package org.gbif.geocode.ws.monitoring;
+
+import org.gbif.geocode.api.cache.AbstractBitmapCachedLayer;
+import org.gbif.geocode.ws.service.impl.GeocodeServiceImpl;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToDoubleFunction;
+
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Exports the bitmap and result cache statistics of each layer, tagged with the layer name.
+ * <br/>
+ * A layer first loaded by a reload is given its meters then; the meters of a layer a reload removes report NaN.
+ */
+@Component
+public class LayerCacheMetrics implements MeterBinder {
+
+  private final GeocodeServiceImpl geocodeService;
+
+  // The layers given meters in each registry.
+  private final Map<MeterRegistry, Set<String>> bound = new HashMap<>();
+
+  public LayerCacheMetrics(GeocodeServiceImpl geocodeService) {
+    this.geocodeService = geocodeService;
+    geocodeService.addReloadListener(this::bindNewLayers);
+  }
+
+  @Override
+  public synchronized void bindTo(MeterRegistry registry) {
+    bound.putIfAbsent(registry, new HashSet<>());
+    bindNewLayers();
+  }
+
+  /**
+   * Register meters for each layer which doesn't have them yet.
+   */
+  private synchronized void bindNewLayers() {
+    for (Map.Entry<MeterRegistry, Set<String>> registry : bound.entrySet()) {
+      for (String name : geocodeService.getLayers().keySet()) {
+        if (registry.getValue().add(name)) {
+          bindLayer(registry.getKey(), name);
+        }
+      }
+    }
+  }
+
+  private void bindLayer(MeterRegistry registry, String name) {
+    // Meters look the layer up each time, as a reload replaces the layers.
+    bitmapLookups(registry, name, "hit", l -> l.hit.sum());
+    bitmapLookups(registry, name, "miss", l -> l.miss.sum());
+    bitmapLookups(registry, name, "border", l -> l.border.sum());
+    bitmapLookups(registry, name, "empty", l -> l.empty.sum());
+    bitmapLookups(registry, name, "borderCell", l -> l.borderHit.sum());
+
+    FunctionCounter.builder("geocode.layer.results.lookups", geocodeService,
+        layer(name, l -> l.getResultCache().hitCount()))
+      .description("Result cache lookups")
+      .tags("layer", name, "result", "hit")
+      .register(registry);
+    FunctionCounter.builder("geocode.layer.results.lookups", geocodeService,
+        layer(name, l -> l.getResultCache().missCount()))
+      .description("Result cache lookups")
+      .tags("layer", name, "result", "miss")
+      .register(registry);
+    FunctionCounter.builder("geocode.layer.results.evictions", geocodeService,
+        layer(name, l -> l.getResultCache().evictionCount()))
+      .description("Results evicted from the result cache")
+      .tags("layer", name)
+      .register(registry);
+    FunctionCounter.builder("geocode.layer.datasource.coalesced", geocodeService, layer(name, l -> l.coalesced.sum()))
+      .description("Datasource queries saved by waiting for an identical query in progress")
+      .tags("layer", name)
+      .register(registry);
+    Gauge.builder("geocode.layer.results.size", geocodeService, layer(name, l -> l.getResultCache().size()))
+      .description("Results in the result cache")
+      .tags("layer", name)
+      .register(registry);
+    Gauge.builder("geocode.layer.results.bytes", geocodeService, layer(name, l -> l.getResultCache().bytes()))
+      .description("Estimated size of the result cache")
+      .tags("layer", name)
+      .baseUnit("bytes")
+      .register(registry);
+  }
+
+  private void bitmapLookups(MeterRegistry registry, String name, String result,
+                             ToDoubleFunction<AbstractBitmapCachedLayer> count) {
+    FunctionCounter.builder("geocode.layer.bitmap.lookups", geocodeService, layer(name, count))
+      .description("Bitmap cache lookups")
+      .tags("layer", name, "result", result)
+      .register(registry);
+  }
+
+  /**
+   * A statistic of the current layer with a name, or NaN if there's no longer such a layer.
+   */
+  private static ToDoubleFunction<GeocodeServiceImpl> layer(String name, ToDoubleFunction<AbstractBitmapCachedLayer> f) {
+    return service -> {
+      AbstractBitmapCachedLayer layer = service.getLayers().get(name);
+      return layer != null ? f.applyAsDouble(layer) : Double.NaN;
+    };
+  }
+}
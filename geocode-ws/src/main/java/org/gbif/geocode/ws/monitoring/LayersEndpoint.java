@@ -0,0 +1,45 @@
+package org.gbif.geocode.ws.monitoring;
+
+import org.gbif.geocode.ws.service.impl.GeocodeServiceImpl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * Management endpoint showing the loaded layers and the version of their data, and reloading them.
+ * <br/>
+ * Like the other actuator endpoints it's available over JMX, and over HTTP only if exposed in the configuration.
+ */
+@Component
+@Endpoint(id = "layers")
+public class LayersEndpoint {
+
+  private final GeocodeServiceImpl geocodeService;
+
+  public LayersEndpoint(GeocodeServiceImpl geocodeService) {
+    this.geocodeService = geocodeService;
+  }
+
+  @ReadOperation
+  public Map<String, Object> layers() {
+    Map<String, Object> layers = new LinkedHashMap<>();
+    layers.put("version", geocodeService.getVersion());
+    layers.put("layers", new TreeSet<>(geocodeService.getLayers().keySet()));
+    return layers;
+  }
+
+  /**
+   * Load the layers again, swapping them in once they're all loaded.
+   */
+  @WriteOperation
+  public Map<String, Object> reload() {
+    geocodeService.reload();
+    return layers();
+  }
+}
@@ -3,6 +3,8 @@ package org.gbif.geocode.ws.persistence;
 import org.gbif.geocode.api.model.GadmRegion;
 import org.gbif.geocode.api.model.Location;
 import org.gbif.geocode.ws.layers.jts.PointLocation;
+import org.gbif.geocode.ws.layers.jts.PolygonFeature;
+import org.gbif.geocode.ws.layers.postgis.NearestLocation;
 import org.gbif.mybatis.type.StringArrayTypeHandler;
 
 import org.mybatis.spring.boot.autoconfigure.ConfigurationCustomizer;
@@ -19,6 +21,8 @@ public class MyBatisConfiguration {
       configuration.getTypeAliasRegistry().registerAlias("Location", Location.class);
       configuration.getTypeAliasRegistry().registerAlias("GadmRegion", GadmRegion.class);
       configuration.getTypeAliasRegistry().registerAlias("PointLocation", PointLocation.class);
+      configuration.getTypeAliasRegistry().registerAlias("PolygonFeature", PolygonFeature.class);
+      configuration.getTypeAliasRegistry().registerAlias("NearestLocation", NearestLocation.class);
       configuration.getTypeAliasRegistry().registerAlias("StringArrayTypeHandler", StringArrayTypeHandler.class);
       configuration.getTypeAliasRegistry().registerAlias("HStoreHigherLevelsMapTypeHandler", HStoreHigherLevelsMapTypeHandler.class);
     };
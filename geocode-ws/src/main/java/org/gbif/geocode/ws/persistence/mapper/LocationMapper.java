@@ -2,11 +2,15 @@ package org.gbif.geocode.ws.persistence.mapper;
 
 import org.gbif.geocode.api.model.Location;
 import org.gbif.geocode.ws.layers.jts.PointLocation;
+import org.gbif.geocode.ws.layers.jts.PolygonFeature;
+import org.gbif.geocode.ws.layers.postgis.NearestLocation;
 
 import java.util.List;
 
 import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.session.ResultHandler;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 /** Used by MyBatis to provide a typed interface to the mapped queries. */
 @Repository
@@ -23,5 +27,27 @@ public interface LocationMapper {
     @Param("distance") double distance,
     @Param("layer") String layer);
 
-  List<PointLocation> fetchPointLocations();
+  /**
+   * As {@link #queryLayer}, but without the slow geography distance; the caller calculates the distance in metres from
+   * the nearest point.
+   */
+  List<NearestLocation> queryLayerNearest(
+    @Param("lng") double point,
+    @Param("lat") double latitude,
+    @Param("distance") double distance,
+    @Param("layer") String layer);
+
+  /**
+   * Stream the point locations to a handler as they are read, so they are never all in memory as a list.
+   * <br/>
+   * PostgreSQL only fetches a result set in batches within a transaction; otherwise it reads the whole result first.
+   */
+  @Transactional(readOnly = true)
+  void fetchPointLocations(ResultHandler<PointLocation> handler);
+
+  /**
+   * Stream the polygons of a layer, as named in query_layers, to a handler as they are read.
+   */
+  @Transactional(readOnly = true)
+  void fetchPolygonFeatures(@Param("layer") String layer, ResultHandler<PolygonFeature> handler);
 }
@@ -5,9 +5,14 @@ import io.swagger.v3.oas.annotations.tags.Tag;
 
 import org.gbif.geocode.api.cache.GeocodeBitmapCache;
 import org.gbif.geocode.api.model.Location;
+import org.gbif.geocode.api.model.Query;
 import org.gbif.geocode.api.service.GeocodeService;
+import org.gbif.geocode.ws.advice.DatasetVersionAdvice;
+import org.gbif.geocode.ws.layers.Bitmap;
 import org.gbif.geocode.ws.resource.exception.OffWorldException;
+import org.gbif.geocode.ws.resource.exception.TooManyQueriesException;
 import org.gbif.geocode.ws.resource.exception.VeryUncertainException;
+import org.gbif.geocode.ws.service.impl.GeocodeServiceImpl;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -26,9 +31,13 @@ import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
 import org.springframework.web.context.request.WebRequest;
 
 import com.google.common.io.ByteStreams;
@@ -55,22 +64,39 @@ import io.swagger.v3.oas.annotations.media.Schema;
     exposedHeaders = {
       "Access-Control-Allow-Origin",
       "Access-Control-Allow-Methods",
-      "Access-Control-Allow-Headers"
+      "Access-Control-Allow-Headers",
+      "X-Dataset-Version"
     })
 public class GeocodeResource implements GeocodeService {
   private static final Logger LOG = LoggerFactory.getLogger(GeocodeResource.class);
 
+  // Our own layers, whose generations each have a combined bitmap cache, or null for another service.
+  private final GeocodeServiceImpl layerService;
+  // Another service, behind a combined bitmap cache, or null for our own layers.
   private final GeocodeService geocoderService;
 
   private final List<String> defaultLayers;
 
-  private static final String DEFAULT_LAYERS_CACHE_BITMAP = "cache-bitmap.png";
   private final String eTag;
 
+  // The largest batch accepted by the batch method.
+  private static final int MAX_BATCH_SIZE = 10_000;
+
   public GeocodeResource(GeocodeService geocoderService,
                          @Nullable BuildProperties buildProperties) {
-    this.geocoderService = new GeocodeBitmapCache(
-        geocoderService, this.getClass().getResourceAsStream(DEFAULT_LAYERS_CACHE_BITMAP));
+    if (geocoderService instanceof GeocodeServiceImpl) {
+      // The combined cache is rebuilt with the layers when they are reloaded.
+      this.layerService = (GeocodeServiceImpl) geocoderService;
+      this.geocoderService = null;
+    } else {
+      this.layerService = null;
+      this.geocoderService = new GeocodeBitmapCache(
+          geocoderService,
+          Bitmap.raster(GeocodeResource.class, GeocodeServiceImpl.COMBINED_CACHE_BITMAP),
+          this.getClass().getResourceAsStream(GeocodeServiceImpl.COMBINED_CACHE_COLOUR_KEY),
+          this.getClass().getResourceAsStream(GeocodeServiceImpl.COMBINED_CACHE_BORDER_DISTANCE),
+          GeocodeServiceImpl.COMBINED_CACHE_LAYERS);
+    }
     this.eTag = buildProperties != null ? buildProperties.getVersion() : "unknown";
 
     this.defaultLayers = Arrays.asList(
@@ -130,6 +156,69 @@ public class GeocodeResource implements GeocodeService {
       @Nullable @RequestParam(value = "uncertaintyMeters", required = false)
           Double uncertaintyMeters,
       @Nullable @RequestParam(value = "layer", required = false) List<String> layers) {
+    checkQuery(latitude, longitude, uncertaintyDegrees, uncertaintyMeters);
+    layers = requestLayers(layers);
+
+    List<Location> locations = serving().get(latitude, longitude, uncertaintyDegrees, uncertaintyMeters, layers);
+    return truncate(locations, latitude, longitude, uncertaintyDegrees, uncertaintyMeters, layers);
+  }
+
+  @Operation(
+    operationId = "reverseBatch",
+    summary = "Reverse geocode a batch of coordinates.",
+    description = "Query the GBIF layer store for known areas containing each of " +
+      "the given coordinates.\n\n" +
+      "Each query has the same fields as the parameters of the `reverse` method, " +
+      "and the response is a list of results in the same order as the queries. " +
+      "At most " + MAX_BATCH_SIZE + " queries may be sent at once."
+  )
+  @PostMapping(
+    value = "reverse/batch",
+    consumes = MediaType.APPLICATION_JSON_VALUE,
+    produces = MediaType.APPLICATION_JSON_VALUE)
+  @Override
+  public List<List<Location>> get(@RequestBody List<Query> queries) {
+    if (queries.size() > MAX_BATCH_SIZE) {
+      throw new TooManyQueriesException("At most " + MAX_BATCH_SIZE + " queries may be sent at once.");
+    }
+
+    List<Query> checked = new ArrayList<>(queries.size());
+    for (Query q : queries) {
+      if (q == null) {
+        throw new OffWorldException("Latitude and/or longitude is out of range.");
+      }
+      checkQuery(q.getLat(), q.getLng(), q.getUncertaintyDegrees(), q.getUncertaintyMeters());
+      List<String> layers = requestLayers(q.getLayer() == null ? null : new ArrayList<>(q.getLayer()));
+      checked.add(new Query(q.getLat(), q.getLng(), q.getUncertaintyDegrees(), q.getUncertaintyMeters(), layers));
+    }
+
+    List<List<Location>> results = serving().get(checked);
+    List<List<Location>> truncated = new ArrayList<>(results.size());
+    for (int i = 0; i < results.size(); i++) {
+      Query q = checked.get(i);
+      truncated.add(truncate(results.get(i), q.getLat(), q.getLng(), q.getUncertaintyDegrees(), q.getUncertaintyMeters(), q.getLayer()));
+    }
+    return truncated;
+  }
+
+  /**
+   * The service to answer a request with.  For our own layers, this is their current generation, whose version is
+   * then reported with the response by {@link DatasetVersionAdvice} even if the layers are reloaded meanwhile.
+   */
+  private GeocodeService serving() {
+    if (layerService == null) {
+      return geocoderService;
+    }
+    GeocodeServiceImpl.Generation generation = layerService.current();
+    RequestAttributes request = RequestContextHolder.getRequestAttributes();
+    if (request != null) {
+      request.setAttribute(DatasetVersionAdvice.VERSION_ATTRIBUTE, generation.getVersion(),
+        RequestAttributes.SCOPE_REQUEST);
+    }
+    return generation;
+  }
+
+  private static void checkQuery(Double latitude, Double longitude, Double uncertaintyDegrees, Double uncertaintyMeters) {
     if (latitude == null
         || longitude == null
         || latitude < -90
@@ -141,17 +230,24 @@ public class GeocodeResource implements GeocodeService {
     if (uncertaintyDegrees != null && uncertaintyMeters != null) {
       throw new VeryUncertainException("Cannot specify uncertainty in both degrees and metres.");
     }
+  }
 
+  private List<String> requestLayers(List<String> layers) {
     if (layers == null || layers.isEmpty()) {
       layers = new ArrayList<>(defaultLayers);
     } else if (layers.contains("GADM0") || layers.contains("GADM1") || layers.contains("GADM2") || layers.contains("GADM3")) {
       // As an optimization, GADM is queried as single layer
       layers.add("GADM");
     }
+    return layers;
+  }
 
-    // Limit the response to 1000 entries.  See the branch paging-responses for an initial implementation of paging,
-    // though this is not a backwards compatible change.
-    List<Location> locations = geocoderService.get(latitude, longitude, uncertaintyDegrees, uncertaintyMeters, layers);
+  /**
+   * Limit the response to 1000 entries.  See the branch paging-responses for an initial implementation of paging,
+   * though this is not a backwards compatible change.
+   */
+  private static List<Location> truncate(List<Location> locations, Double latitude, Double longitude,
+                                         Double uncertaintyDegrees, Double uncertaintyMeters, List<String> layers) {
     if (locations.size() > 1000) {
       LOG.warn("Truncating response for {}, {}, {}, {}, {} with {} results to 1000", latitude, longitude, uncertaintyDegrees, uncertaintyMeters, layers, locations.size());
       return locations.subList(0, 1000);
@@ -179,12 +275,19 @@ public class GeocodeResource implements GeocodeService {
   )
   @GetMapping(value = "bitmap", produces = MediaType.IMAGE_PNG_VALUE)
   public ResponseEntity<Resource> bitmap(WebRequest request) throws IOException {
-    if (request.checkNotModified(eTag)) {
+    // The bitmap can be replaced with the layer data, so is tagged with the version of the generation serving it.
+    GeocodeServiceImpl.Generation generation = layerService == null ? null : layerService.current();
+    String bitmapETag = generation == null ? eTag : eTag + "-" + generation.getVersion();
+    if (request.checkNotModified(bitmapETag)) {
       // spring already set the response accordingly
       return null;
     }
 
-    return ResponseEntity.ok().eTag(eTag).body(new ByteArrayResource(bitmap()));
+    byte[] bitmap = generation == null ? bitmap() : generation.bitmap();
+    if (bitmap == null) {
+      return ResponseEntity.notFound().build();
+    }
+    return ResponseEntity.ok().eTag(bitmapETag).body(new ByteArrayResource(bitmap));
   }
 
   /*
@@ -192,8 +295,12 @@ public class GeocodeResource implements GeocodeService {
    */
   @Override
   public byte[] bitmap() {
+    if (layerService != null) {
+      // The bitmap of the combined cache currently used, which may be from the shapefile root.
+      return layerService.current().bitmap();
+    }
     try {
-      return ByteStreams.toByteArray(this.getClass().getResourceAsStream(DEFAULT_LAYERS_CACHE_BITMAP));
+      return ByteStreams.toByteArray(this.getClass().getResourceAsStream(GeocodeServiceImpl.COMBINED_CACHE_BITMAP));
     } catch (IOException e) {
       return null;
     }
@@ -0,0 +1,14 @@
+package org.gbif.geocode.ws.resource.exception;
+
+import org.gbif.ws.WebApplicationException;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+
+public class TooManyQueriesException extends WebApplicationException {
+
+  /** Create an HTTP 400 (Bad Request) exception with a JSON body. */
+  public TooManyQueriesException(String message) {
+    super(message, HttpStatus.BAD_REQUEST, MediaType.APPLICATION_JSON);
+  }
+}
@@ -1,9 +1,15 @@
 package org.gbif.geocode.ws.service.impl;
 
 import org.gbif.geocode.api.cache.AbstractBitmapCachedLayer;
+import org.gbif.geocode.api.cache.GeocodeBitmapCache;
+import org.gbif.geocode.api.cache.HilbertCurve;
 import org.gbif.geocode.api.model.Location;
+import org.gbif.geocode.api.model.Query;
 import org.gbif.geocode.api.service.GeocodeService;
+import org.gbif.geocode.ws.layers.Bitmap;
+import org.gbif.geocode.ws.layers.LearnedColourKeys;
 import org.gbif.geocode.ws.layers.jts.AbstractJTSLayer;
+import org.gbif.geocode.ws.layers.jts.AbstractJTSPolygonLayer;
 import org.gbif.geocode.ws.layers.postgis.AbstractPostGISLayer;
 import org.gbif.geocode.ws.layers.postgis.PGCentroidsLayer;
 import org.gbif.geocode.ws.layers.postgis.PGContinentLayer;
@@ -13,17 +19,41 @@ import org.gbif.geocode.ws.layers.postgis.PGIucnLayer;
 import org.gbif.geocode.ws.layers.postgis.PGPoliticalLayer;
 import org.gbif.geocode.ws.layers.postgis.PGWgsrpdLayer;
 import org.gbif.geocode.ws.layers.shapefile.AbstractShapefileLayer;
+import org.gbif.geocode.ws.layers.shapefile.ShapefileIndex;
 import org.gbif.geocode.ws.persistence.mapper.LocationMapper;
+import org.gbif.geocode.ws.resource.GeocodeResource;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
@@ -37,8 +67,158 @@ import org.springframework.stereotype.Service;
 public class GeocodeServiceImpl implements GeocodeService {
   private static final Logger LOG = LoggerFactory.getLogger(GeocodeServiceImpl.class);
 
-  private final Map<String, AbstractBitmapCachedLayer> layers = new HashMap<>();
-  private final List<String> defaultLayers = new ArrayList<>();
+  // The file in the shapefile root giving the version of the layer data.
+  static final String VERSION_FILE = "version.txt";
+
+  // The bitmap of the default layers combined, with its colour key and border distance image, generated by
+  // BitmapGenerator.  Each is read from the shapefile root if it's there, otherwise from the GeocodeResource package.
+  public static final String COMBINED_CACHE_BITMAP = "cache-bitmap.png";
+  public static final String COMBINED_CACHE_COLOUR_KEY = "cache-bitmap.colours.gz";
+  public static final String COMBINED_CACHE_BORDER_DISTANCE = "cache-bitmap-distance.png";
+  // The name the combined cache's learned colours are saved under.
+  private static final String COMBINED_CACHE_NAME = "cache-bitmap";
+  // The layers combined into the bitmap, which must be the default layers for it to be used.
+  public static final List<String> COMBINED_CACHE_LAYERS = Collections.unmodifiableList(Arrays.asList(
+    "Political", "Continent", "Centroids", "IHO", "GADM", "WGSRPD"));
+
+  /**
+   * A complete set of layers.  A request uses the generation current when it starts throughout, so a reload never
+   * mixes layers from two generations in one response, and the version reported is that of the data which answered.
+   * <br/>
+   * As a GeocodeService, a generation answers from the combined bitmap of its default layers first, if it has one.
+   * The bitmap's colours are learned from the generation's own layers, so a reload starts a new combined cache.
+   */
+  public final class Generation implements GeocodeService {
+    final Map<String, AbstractBitmapCachedLayer> layers;
+    final List<String> defaultLayers;
+    final String version;
+    // The combined bitmap cache, or null if the default layers aren't those combined into the bitmap.
+    final GeocodeBitmapCache cache;
+    // The PNG of the combined bitmap, or null if there's no combined cache.
+    private final byte[] bitmap;
+
+    Generation(Map<String, AbstractBitmapCachedLayer> layers, List<String> defaultLayers, String version) {
+      this.layers = layers;
+      this.defaultLayers = defaultLayers;
+      this.version = version;
+
+      if (new HashSet<>(defaultLayers).equals(new HashSet<>(COMBINED_CACHE_LAYERS))) {
+        // Kept, so clients are given this generation's bitmap even if a newer one has been put in the root.
+        try (InputStream in = Bitmap.resource(root, GeocodeResource.class, COMBINED_CACHE_BITMAP)) {
+          bitmap = in.readAllBytes();
+        } catch (IOException e) {
+          throw new RuntimeException("Unable to read " + COMBINED_CACHE_BITMAP, e);
+        }
+        cache = new GeocodeBitmapCache(
+          new Uncached(this),
+          Bitmap.raster(root, GeocodeResource.class, COMBINED_CACHE_BITMAP),
+          Bitmap.resource(root, GeocodeResource.class, COMBINED_CACHE_COLOUR_KEY),
+          Bitmap.resource(root, GeocodeResource.class, COMBINED_CACHE_BORDER_DISTANCE),
+          COMBINED_CACHE_LAYERS);
+        LearnedColourKeys.load(cache, COMBINED_CACHE_NAME, version);
+      } else {
+        LOG.info("Not using the combined bitmap cache, as the default layers are not {}", COMBINED_CACHE_LAYERS);
+        cache = null;
+        bitmap = null;
+      }
+    }
+
+    /**
+     * The version of this generation's layer data.
+     */
+    public String getVersion() {
+      return version;
+    }
+
+    /**
+     * The combined bitmap cache, or null if there isn't one.
+     */
+    public GeocodeBitmapCache getCache() {
+      return cache;
+    }
+
+    @Override
+    public List<Location> get(Double lat, Double lng, Double uncertaintyDegrees, Double uncertaintyMeters) {
+      return cache != null
+        ? cache.get(lat, lng, uncertaintyDegrees, uncertaintyMeters)
+        : query(this, lat, lng, uncertaintyDegrees, uncertaintyMeters, defaultLayers);
+    }
+
+    @Override
+    public List<Location> get(Double lat, Double lng, Double uncertaintyDegrees, Double uncertaintyMeters,
+                              List<String> useLayers) {
+      return cache != null
+        ? cache.get(lat, lng, uncertaintyDegrees, uncertaintyMeters, useLayers)
+        : query(this, lat, lng, uncertaintyDegrees, uncertaintyMeters, useLayers);
+    }
+
+    @Override
+    public List<List<Location>> get(List<Query> queries) {
+      return cache != null ? cache.get(queries) : query(this, queries);
+    }
+
+    /**
+     * The PNG of the combined bitmap this generation's cache uses, from the shapefile root if it's there, or null if
+     * there's no combined cache.
+     */
+    @Override
+    public byte[] bitmap() {
+      return bitmap;
+    }
+  }
+
+  /**
+   * The layers of a generation, without the combined bitmap cache; the datasource of that cache.
+   */
+  private final class Uncached implements GeocodeService {
+    private final Generation generation;
+
+    Uncached(Generation generation) {
+      this.generation = generation;
+    }
+
+    @Override
+    public List<Location> get(Double lat, Double lng, Double uncertaintyDegrees, Double uncertaintyMeters) {
+      return query(generation, lat, lng, uncertaintyDegrees, uncertaintyMeters, generation.defaultLayers);
+    }
+
+    @Override
+    public List<Location> get(Double lat, Double lng, Double uncertaintyDegrees, Double uncertaintyMeters,
+                              List<String> useLayers) {
+      return query(generation, lat, lng, uncertaintyDegrees, uncertaintyMeters, useLayers);
+    }
+
+    @Override
+    public List<List<Location>> get(List<Query> queries) {
+      return query(generation, queries);
+    }
+
+    @Override
+    public byte[] bitmap() {
+      throw new UnsupportedOperationException("Not implemented.");
+    }
+  }
+
+  private final LocationMapper locationMapper;
+  private final String root;
+  private final List<String> enabled;
+  private final List<String> configuredDefaultLayers;
+
+  private volatile Generation generation;
+
+  // Checks the version file for new layer data, or null if reloads are only made through the admin endpoint.
+  private final ScheduledExecutorService reloadChecker;
+
+  // Queries layers which miss their bitmap caches concurrently, or null to query them in turn.
+  private final ExecutorService layerQueryExecutor;
+
+  private volatile boolean sortBatches = true;
+
+  // Called after each reload, e.g. to give new layers meters.
+  private final List<Runnable> reloadListeners = new CopyOnWriteArrayList<>();
+
+  // Whether PostGIS layers calculate distances in metres themselves, rather than with PostGIS's geography distance.
+  private volatile boolean postGISJavaDistances = false;
 
   // The default distance was originally chosen at ~5km to allow for gaps between land and sea in the simplified datasets.
   // 0.05° ~= 5.55 km
@@ -50,89 +230,243 @@ public class GeocodeServiceImpl implements GeocodeService {
   // But allow 60° at very high latitudes so we have about 100km of uncertainty.
   private static final double MAXIMUM_POLAR_UNCERTAINTY_DEGREES = 60.0d;
 
+  public GeocodeServiceImpl(LocationMapper locationMapper,
+                            String root,
+                            List<String> enabled,
+                            List<String> defaultLayers) {
+    this(locationMapper, root, enabled, defaultLayers, 0, 0);
+  }
+
+  public GeocodeServiceImpl(LocationMapper locationMapper,
+                            String root,
+                            List<String> enabled,
+                            List<String> defaultLayers,
+                            int layerQueryThreads) {
+    this(locationMapper, root, enabled, defaultLayers, layerQueryThreads, 0);
+  }
+
+  /**
+   * @param layerQueryThreads  the number of layers queried at once when they miss their bitmap caches, or 0 to query
+   *                           them one by one on the calling thread.
+   * @param reloadCheckSeconds how often to check the version file in the shapefile root, reloading the layers when it
+   *                           changes, or 0 to reload only when asked.
+   */
+  @Autowired
   public GeocodeServiceImpl(LocationMapper locationMapper,
                             @Value("${spring.shapefiles.root}") String root,
                             @Value("${spring.shapefiles.enabled}") List<String> enabled,
-                            @Value("${spring.defaultLayers}") List<String> defaultLayers) {
-
-    synchronized (this) {
-      LOG.info("Enabled layers: {}", enabled);
-
-      // 1: Load enabled shapefile layers
-      Class<AbstractShapefileLayer>[] availableShapefileLayers = new Class[]{
-        org.gbif.geocode.ws.layers.shapefile.ContinentLayer.class,
-        org.gbif.geocode.ws.layers.shapefile.GadmLayer.class,
-        org.gbif.geocode.ws.layers.shapefile.IhoLayer.class,
-        org.gbif.geocode.ws.layers.shapefile.PoliticalLayer.class,
-        org.gbif.geocode.ws.layers.shapefile.WgsrpdLayer.class
-      };
-
-      for (Class class_ : availableShapefileLayers) {
-        String name = class_.getSimpleName();
-
-        if (enabled == null || enabled.isEmpty() || enabled.contains(name)) {
-          try {
-            Constructor<AbstractShapefileLayer> c = class_.getDeclaredConstructor(String.class);
-            AbstractShapefileLayer layer = c.newInstance(new Object[]{root});
-            layers.put(layer.name(), layer);
-          } catch (Exception e) {
-            throw new RuntimeException("Error loading layer "+name+" from "+root, e);
-          }
-        } else {
-          LOG.info("Not loading {}, because it is not enabled in the configuration.", name);
-        }
+                            @Value("${spring.defaultLayers}") List<String> defaultLayers,
+                            @Value("${spring.layerQueryThreads:0}") int layerQueryThreads,
+                            @Value("${spring.shapefiles.reloadCheckSeconds:0}") int reloadCheckSeconds) {
+    this.locationMapper = locationMapper;
+    this.root = root;
+    this.enabled = enabled;
+    this.configuredDefaultLayers = defaultLayers;
+
+    layerQueryExecutor = layerQueryThreads > 0 ? LayerQueryExecutor.create(layerQueryThreads) : null;
+
+    LOG.info("Enabled layers: {}", enabled);
+    generation = load();
+
+    if (reloadCheckSeconds > 0) {
+      reloadChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "layer-reload");
+        t.setDaemon(true);
+        return t;
+      });
+      reloadChecker.scheduleWithFixedDelay(this::reloadIfChanged, reloadCheckSeconds, reloadCheckSeconds,
+        TimeUnit.SECONDS);
+    } else {
+      reloadChecker = null;
+    }
+  }
+
+  /**
+   * Load a complete set of layers.
+   */
+  private Generation load() {
+    String version = readVersion();
+    Map<String, AbstractBitmapCachedLayer> layers = new HashMap<>();
+    List<String> defaultLayers = new ArrayList<>();
+
+    // 1: Load enabled shapefile layers
+    Class<AbstractShapefileLayer>[] availableShapefileLayers = new Class[]{
+      org.gbif.geocode.ws.layers.shapefile.ContinentLayer.class,
+      org.gbif.geocode.ws.layers.shapefile.GadmLayer.class,
+      org.gbif.geocode.ws.layers.shapefile.IhoLayer.class,
+      org.gbif.geocode.ws.layers.shapefile.PoliticalLayer.class,
+      org.gbif.geocode.ws.layers.shapefile.WgsrpdLayer.class
+    };
+
+    // Each enabled layer may name the engine to read it with, e.g. "GadmLayer:STRtree".
+    Map<String, ShapefileIndex.Engine> engines = new HashMap<>();
+    if (enabled != null) {
+      for (String e : enabled) {
+        String[] layerEngine = e.trim().split(":", 2);
+        engines.put(layerEngine[0].trim(), layerEngine.length > 1
+          ? ShapefileIndex.Engine.valueOf(layerEngine[1].trim().toUpperCase(Locale.ROOT))
+          : ShapefileIndex.Engine.ALA);
       }
+    }
 
-      // 2: Load PostGIS layers
-      Class<AbstractPostGISLayer>[] availablePostGISLayers = new Class[]{
-        PGCentroidsLayer.class,
-        PGContinentLayer.class,
-        PGGadmLayer.class,
-        PGIhoLayer.class,
-        PGIucnLayer.class,
-        PGPoliticalLayer.class,
-        PGWgsrpdLayer.class
-      };
+    for (Class class_ : availableShapefileLayers) {
+      String name = class_.getSimpleName();
 
-      for (Class class_ : availablePostGISLayers) {
+      if (engines.isEmpty() || engines.containsKey(name)) {
+        ShapefileIndex.Engine engine = engines.getOrDefault(name, ShapefileIndex.Engine.ALA);
         try {
-          Constructor<AbstractPostGISLayer> c = class_.getDeclaredConstructor(LocationMapper.class);
-          AbstractPostGISLayer layer = c.newInstance(locationMapper);
+          Constructor<AbstractShapefileLayer> c = class_.getDeclaredConstructor(String.class, ShapefileIndex.Engine.class);
+          AbstractShapefileLayer layer = c.newInstance(root, engine);
+          LOG.info("Loaded {} with the {} engine", name, engine);
           layers.put(layer.name(), layer);
         } catch (Exception e) {
-          throw new RuntimeException("Error loading layer "+class_.getName(), e);
+          throw new RuntimeException("Error loading layer "+name+" from "+root, e);
         }
+      } else {
+        LOG.info("Not loading {}, because it is not enabled in the configuration.", name);
+      }
+    }
+
+    // 2: Load PostGIS layers
+    Class<AbstractPostGISLayer>[] availablePostGISLayers = new Class[]{
+      PGCentroidsLayer.class,
+      PGContinentLayer.class,
+      PGGadmLayer.class,
+      PGIhoLayer.class,
+      PGIucnLayer.class,
+      PGPoliticalLayer.class,
+      PGWgsrpdLayer.class
+    };
+
+    for (Class class_ : availablePostGISLayers) {
+      try {
+        Constructor<AbstractPostGISLayer> c = class_.getDeclaredConstructor(LocationMapper.class);
+        AbstractPostGISLayer layer = c.newInstance(locationMapper);
+        layer.setJavaDistances(postGISJavaDistances);
+        layers.put(layer.name(), layer);
+      } catch (Exception e) {
+        throw new RuntimeException("Error loading layer "+class_.getName(), e);
+      }
+    }
+
+    // 3: Load JTS layers
+    Class<AbstractJTSLayer>[] availableJTSLayers = new Class[]{
+      org.gbif.geocode.ws.layers.jts.CentroidsLayer.class
+    };
+
+    for (Class class_ : availableJTSLayers) {
+      try {
+        Constructor<AbstractJTSLayer> c = class_.getDeclaredConstructor(LocationMapper.class);
+        AbstractJTSLayer layer = c.newInstance(locationMapper);
+        layers.put(layer.name(), layer);
+      } catch (Exception e) {
+        throw new RuntimeException("Error loading layer "+class_.getName(), e);
       }
+    }
 
-      // 3: Load JTS layers
-      Class<AbstractJTSLayer>[] availableJTSLayers = new Class[]{
-        org.gbif.geocode.ws.layers.jts.CentroidsLayer.class
-      };
+    // 4: Load enabled JTS polygon layers, which are only loaded when named, as they hold the polygons in memory
+    Class<AbstractJTSPolygonLayer>[] availableJTSPolygonLayers = new Class[]{
+      org.gbif.geocode.ws.layers.jts.IucnLayer.class
+    };
 
-      for (Class class_ : availableJTSLayers) {
+    for (Class class_ : availableJTSPolygonLayers) {
+      String name = class_.getSimpleName();
+
+      if (engines.containsKey(name)) {
         try {
-          Constructor<AbstractJTSLayer> c = class_.getDeclaredConstructor(LocationMapper.class);
-          AbstractJTSLayer layer = c.newInstance(locationMapper);
+          Constructor<AbstractJTSPolygonLayer> c = class_.getDeclaredConstructor(LocationMapper.class);
+          AbstractJTSPolygonLayer layer = c.newInstance(locationMapper);
           layers.put(layer.name(), layer);
         } catch (Exception e) {
           throw new RuntimeException("Error loading layer "+class_.getName(), e);
         }
+      } else {
+        LOG.info("Not loading {}, because it is not enabled in the configuration.", name);
       }
+    }
+
+    if (layers.isEmpty()) {
+      throw new RuntimeException("No layers loaded!");
+    }
+
+    // Add the colours the layers learned when last run with this version of the data.
+    for (Map.Entry<String, AbstractBitmapCachedLayer> entry : layers.entrySet()) {
+      LearnedColourKeys.load(entry.getValue(), entry.getKey(), version);
+    }
+
+    LOG.info("Available layers are {}", layers.keySet());
 
-      if (layers.isEmpty()) {
-        throw new RuntimeException("No layers loaded!");
+    for (String d : configuredDefaultLayers) {
+      if (layers.containsKey(d)) {
+        defaultLayers.add(d);
+      } else {
+        throw new RuntimeException("Default layer "+d+" is configured, but the layer doesn't exist");
       }
+    }
+    LOG.info("Default layers are {}", defaultLayers);
 
-      LOG.info("Available layers are {}", layers.keySet());
+    return new Generation(Collections.unmodifiableMap(layers), Collections.unmodifiableList(defaultLayers), version);
+  }
 
-      for (String d : defaultLayers) {
-        if (layers.containsKey(d)) {
-          this.defaultLayers.add(d);
-        } else {
-          throw new RuntimeException("Default layer "+d+" is configured, but the layer doesn't exist");
+  /**
+   * The version of the layer data, from the version file in the shapefile root, or the time the layers were loaded if
+   * there's no version file.
+   */
+  private String readVersion() {
+    Path file = root == null ? null : Paths.get(root, VERSION_FILE);
+    try {
+      if (file != null && Files.isReadable(file)) {
+        String version = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+        if (!version.isEmpty()) {
+          return version;
         }
       }
-      LOG.info("Default layers are {}", this.defaultLayers);
+    } catch (IOException e) {
+      LOG.warn("Unable to read layer data version from {}", file, e);
+    }
+    return Instant.now().truncatedTo(ChronoUnit.SECONDS).toString();
+  }
+
+  /**
+   * Load a new generation of layers, and swap it in once it is complete.  Requests in progress finish with the
+   * previous generation, which is then garbage collected, so until then both generations are in memory.
+   * <br/>
+   * If loading fails, the current generation is kept.
+   *
+   * @return the version of the layer data now in use
+   */
+  public synchronized String reload() {
+    LOG.info("Reloading layers, replacing version {}", generation.version);
+    Generation next = load();
+    generation = next;
+    LOG.info("Layers reloaded, now version {}", next.version);
+    for (Runnable listener : reloadListeners) {
+      try {
+        listener.run();
+      } catch (RuntimeException e) {
+        LOG.warn("Reload listener failed", e);
+      }
+    }
+    return next.version;
+  }
+
+  /**
+   * Run something after each reload, once the new generation is current.
+   */
+  public void addReloadListener(Runnable listener) {
+    reloadListeners.add(listener);
+  }
+
+  private void reloadIfChanged() {
+    try {
+      Path file = Paths.get(root, VERSION_FILE);
+      if (Files.isReadable(file)
+        && !new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim().equals(generation.version)) {
+        reload();
+      }
+    } catch (Exception e) {
+      // Keep checking; the data may still be being copied.
+      LOG.error("Unable to reload layers", e);
     }
   }
 
@@ -140,12 +474,37 @@ public class GeocodeServiceImpl implements GeocodeService {
   @Override
   public List<Location> get(
     Double lat, Double lng, Double uncertaintyDegrees, Double uncertaintyMeters) {
-    return get(lat, lng, uncertaintyDegrees, uncertaintyMeters, defaultLayers);
+    Generation generation = this.generation;
+    return query(generation, lat, lng, uncertaintyDegrees, uncertaintyMeters, generation.defaultLayers);
   }
 
   /** Simple get candidates by point. */
   @Override
   public List<Location> get(
+    Double lat,
+    Double lng,
+    Double uncertaintyDegrees,
+    Double uncertaintyMeters,
+    List<String> useLayers) {
+    return query(generation, lat, lng, uncertaintyDegrees, uncertaintyMeters, useLayers);
+  }
+
+  /**
+   * Get candidates for a batch of points.
+   * <br/>
+   * Identical points are only looked up once.  Each layer checks its bitmap cache for every point in turn, then all
+   * the misses for all the layers are queried together, concurrently if there is an executor.
+   */
+  @Override
+  public List<List<Location>> get(List<Query> queries) {
+    return query(generation, queries);
+  }
+
+  /**
+   * Get candidates by point from the layers of one generation.
+   */
+  private List<Location> query(
+    Generation generation,
     Double lat,
     Double lng,
     Double uncertaintyDegrees,
@@ -153,10 +512,169 @@ public class GeocodeServiceImpl implements GeocodeService {
     List<String> useLayers) {
     List<Location> locations = new ArrayList<>();
 
-    if (useLayers.isEmpty()) {
-      useLayers = defaultLayers;
+    if (useLayers == null || useLayers.isEmpty()) {
+      useLayers = generation.defaultLayers;
+    }
+
+    double uncertainty = normaliseUncertainty(lat, uncertaintyDegrees, uncertaintyMeters);
+
+    // For each layer, check the bitmap cache, keeping the layers which miss.
+    List<Callable<List<Location>>> misses = new ArrayList<>();
+    for (Map.Entry<String,AbstractBitmapCachedLayer> entry : generation.layers.entrySet()) {
+      if (useLayers.contains(entry.getKey())) {
+        AbstractBitmapCachedLayer layer = entry.getValue();
+        List<Location> found = layer.queryCache(lat, lng, uncertainty);
+        if (found != null) {
+          locations.addAll(found);
+        } else {
+          misses.add(() -> layer.queryUncached(lat, lng, uncertainty));
+        }
+      }
+    }
+
+    // Then query the shapefile, database etc for the misses.
+    for (List<Location> found : invokeAll(layerQueryExecutor, misses)) {
+      locations.addAll(found);
+    }
+
+    Collections.sort(locations, Location.DISTANCE_COMPARATOR);
+    return locations;
+  }
+
+  /**
+   * Get candidates for a batch of points from the layers of one generation.
+   */
+  private List<List<Location>> query(Generation generation, List<Query> queries) {
+    // The distinct points, as latitude, longitude and normalised uncertainty.
+    Map<List<Double>, Integer> pointIndex = new HashMap<>();
+    List<List<Double>> points = new ArrayList<>();
+    int[] queryPoint = new int[queries.size()];
+    List<List<String>> queryLayers = new ArrayList<>(queries.size());
+
+    // For each layer, which points it's needed for.
+    Map<String, boolean[]> wanted = new HashMap<>();
+
+    for (int i = 0; i < queries.size(); i++) {
+      Query q = queries.get(i);
+      double uncertainty = normaliseUncertainty(q.getLat(), q.getUncertaintyDegrees(), q.getUncertaintyMeters());
+      List<Double> point = Arrays.asList(q.getLat(), q.getLng(), uncertainty);
+      Integer p = pointIndex.get(point);
+      if (p == null) {
+        p = points.size();
+        pointIndex.put(point, p);
+        points.add(point);
+      }
+      queryPoint[i] = p;
+      queryLayers.add(q.getLayer() == null || q.getLayer().isEmpty() ? generation.defaultLayers : q.getLayer());
+    }
+
+    for (int i = 0; i < queries.size(); i++) {
+      for (String l : queryLayers.get(i)) {
+        if (generation.layers.containsKey(l)) {
+          wanted.computeIfAbsent(l, k -> new boolean[points.size()])[queryPoint[i]] = true;
+        }
+      }
+    }
+
+    // Check the bitmap caches, keeping the misses.
+    Map<String, List<List<Location>>> found = new HashMap<>();
+    List<Callable<List<Location>>> misses = new ArrayList<>();
+    List<List<List<Location>>> missTargets = new ArrayList<>();
+    List<Integer> missPoints = new ArrayList<>();
+    for (Map.Entry<String, boolean[]> entry : wanted.entrySet()) {
+      AbstractBitmapCachedLayer layer = generation.layers.get(entry.getKey());
+      List<List<Location>> layerFound = new ArrayList<>(Collections.nCopies(points.size(), null));
+      found.put(entry.getKey(), layerFound);
+
+      List<Integer> layerMisses = new ArrayList<>();
+      for (int p = 0; p < points.size(); p++) {
+        if (entry.getValue()[p]) {
+          List<Location> cached = layer.queryCache(points.get(p).get(0), points.get(p).get(1), points.get(p).get(2));
+          if (cached != null) {
+            layerFound.set(p, cached);
+          } else {
+            layerMisses.add(p);
+          }
+        }
+      }
+
+      // Query the misses along a Hilbert curve, so neighbouring points use the same parts of the layer in turn.
+      for (int p : hilbertOrder(points, layerMisses)) {
+        double lat = points.get(p).get(0), lng = points.get(p).get(1), uncertainty = points.get(p).get(2);
+        misses.add(() -> layer.queryUncached(lat, lng, uncertainty));
+        missTargets.add(layerFound);
+        missPoints.add(p);
+      }
+    }
+
+    // Query the misses.
+    List<List<Location>> uncached = invokeAll(layerQueryExecutor, misses);
+    for (int m = 0; m < uncached.size(); m++) {
+      missTargets.get(m).set(missPoints.get(m), uncached.get(m));
+    }
+
+    // Assemble the results in the order of the queries.
+    List<List<Location>> results = new ArrayList<>(queries.size());
+    for (int i = 0; i < queries.size(); i++) {
+      List<Location> locations = new ArrayList<>();
+      for (String l : queryLayers.get(i)) {
+        List<List<Location>> layerFound = found.get(l);
+        if (layerFound != null) {
+          locations.addAll(layerFound.get(queryPoint[i]));
+        }
+      }
+      Collections.sort(locations, Location.DISTANCE_COMPARATOR);
+      results.add(locations);
+    }
+    return results;
+  }
+
+  /**
+   * Order some of the points of a batch along a Hilbert curve, if there are enough to be worth sorting.
+   */
+  private int[] hilbertOrder(List<List<Double>> points, List<Integer> indices) {
+    int[] order = indices.stream().mapToInt(Integer::intValue).toArray();
+    if (!sortBatches || order.length < HilbertCurve.SORT_THRESHOLD) {
+      return order;
+    }
+    double[] lat = new double[order.length];
+    double[] lng = new double[order.length];
+    for (int i = 0; i < order.length; i++) {
+      lat[i] = points.get(order[i]).get(0);
+      lng[i] = points.get(order[i]).get(1);
+    }
+    int[] sorted = HilbertCurve.order(lat, lng);
+    for (int i = 0; i < sorted.length; i++) {
+      sorted[i] = order[sorted[i]];
+    }
+    return sorted;
+  }
+
+  /**
+   * Whether the PostGIS layers calculate distances in metres from the nearest point PostGIS finds, with an ellipsoidal
+   * formula, rather than having PostGIS calculate them on the geography, which is much slower.
+   */
+  @Value("${spring.postgis.javaDistances:false}")
+  public void setPostGISJavaDistances(boolean javaDistances) {
+    this.postGISJavaDistances = javaDistances;
+    for (AbstractBitmapCachedLayer layer : generation.layers.values()) {
+      if (layer instanceof AbstractPostGISLayer) {
+        ((AbstractPostGISLayer) layer).setJavaDistances(javaDistances);
+      }
     }
+  }
+
+  /**
+   * Whether to sort the misses of large batches along a Hilbert curve; only turned off for comparison in benchmarks.
+   */
+  void setSortBatches(boolean sortBatches) {
+    this.sortBatches = sortBatches;
+  }
 
+  /**
+   * Convert the uncertainty to degrees, and limit it to the range supported.
+   */
+  private double normaliseUncertainty(Double lat, Double uncertaintyDegrees, Double uncertaintyMeters) {
     // Convert uncertainty in metres to degrees, approximating the Earth as a sphere.
     if (uncertaintyMeters != null) {
       uncertaintyDegrees = uncertaintyMeters / (111_319.491 * Math.cos(Math.toRadians(lat)));
@@ -183,17 +701,100 @@ public class GeocodeServiceImpl implements GeocodeService {
 
     // Increase to the default distance if needed, to account for inaccuracies in the layer data.
     // TODO: per layer
-    uncertaintyDegrees = Math.max(uncertaintyDegrees, MINIMUM_UNCERTAINTY_DEGREES);
+    return Math.max(uncertaintyDegrees, MINIMUM_UNCERTAINTY_DEGREES);
+  }
 
-    // For each layer, check the bitmap cache, then query the shapefile if needed.
-    for (Map.Entry<String,AbstractBitmapCachedLayer> entry : layers.entrySet()) {
-      if (useLayers.contains(entry.getKey())) {
-        locations.addAll(entry.getValue().query(lat, lng, uncertaintyDegrees));
+  /**
+   * Run queries which missed the bitmap caches.  With an executor, all but the first are submitted to it and the
+   * first is run on this thread, so the time taken is that of the slowest query rather than the sum of them.
+   * If any query fails the others are cancelled, and its exception is thrown.
+   * @return the results, in the order of the queries.
+   */
+  static List<List<Location>> invokeAll(ExecutorService layerQueryExecutor, List<Callable<List<Location>>> misses) {
+    List<List<Location>> results = new ArrayList<>(misses.size());
+
+    try {
+      if (layerQueryExecutor == null || misses.size() < 2) {
+        for (Callable<List<Location>> miss : misses) {
+          results.add(miss.call());
+        }
+        return results;
+      }
+
+      List<Future<List<Location>>> futures = new ArrayList<>();
+      try {
+        for (Callable<List<Location>> miss : misses.subList(1, misses.size())) {
+          futures.add(layerQueryExecutor.submit(miss));
+        }
+
+        results.add(misses.get(0).call());
+
+        for (Future<List<Location>> future : futures) {
+          results.add(future.get());
+        }
+        return results;
+      } finally {
+        for (Future<List<Location>> future : futures) {
+          future.cancel(true);
+        }
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while querying layers", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException("Error querying layers", e.getCause());
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException("Error querying layers", e);
     }
+  }
 
-    Collections.sort(locations, Location.DISTANCE_COMPARATOR);
-    return locations;
+  @PreDestroy
+  public void shutdown() {
+    if (reloadChecker != null) {
+      reloadChecker.shutdownNow();
+    }
+    if (layerQueryExecutor != null) {
+      layerQueryExecutor.shutdownNow();
+    }
+    saveLearnedColours(generation);
+  }
+
+  /**
+   * Save the colours the bitmap caches have learned, for the next start with the same version of the data.
+   */
+  private void saveLearnedColours(Generation generation) {
+    for (Map.Entry<String, AbstractBitmapCachedLayer> entry : generation.layers.entrySet()) {
+      LearnedColourKeys.save(entry.getValue(), entry.getKey(), generation.version);
+    }
+    if (generation.cache != null) {
+      LearnedColourKeys.save(generation.cache, COMBINED_CACHE_NAME, generation.version);
+    }
+  }
+
+  /**
+   * The current generation of the layers, which should be used throughout a request.
+   */
+  public Generation current() {
+    return generation;
+  }
+
+  /**
+   * The current layers, by name.
+   */
+  public Map<String, AbstractBitmapCachedLayer> getLayers() {
+    return generation.layers;
+  }
+
+  /**
+   * The version of the current layer data.
+   */
+  public String getVersion() {
+    return generation.version;
   }
 
   @Override
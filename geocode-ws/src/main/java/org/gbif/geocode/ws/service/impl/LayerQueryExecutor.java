@@ -0,0 +1,119 @@
+package org.gbif.geocode.ws.service.impl;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the bounded executor used to query layers concurrently.
+ * <br/>
+ * Where the JVM has virtual threads (Java 21+) each query gets one, with a semaphore limiting how many run at once.
+ * Otherwise a fixed pool of daemon threads is used, which runs a query on the calling thread when it is saturated.
+ * The limit matters either way, since the layers share a limited pool of database connections.
+ */
+class LayerQueryExecutor {
+  private static final Logger LOG = LoggerFactory.getLogger(LayerQueryExecutor.class);
+
+  static ExecutorService create(int threads) {
+    ExecutorService virtualThreads = virtualThreadExecutor();
+    if (virtualThreads != null) {
+      LOG.info("Querying layers concurrently using virtual threads, at most {} at once", threads);
+      return new SemaphoreExecutor(virtualThreads, threads);
+    }
+
+    LOG.info("Querying layers concurrently using {} threads", threads);
+    return threadPool(threads);
+  }
+
+  /**
+   * A fixed pool of daemon threads with a short queue, which runs tasks on the calling thread when both are full.
+   */
+  static ExecutorService threadPool(int threads) {
+    AtomicInteger count = new AtomicInteger();
+    ThreadFactory threadFactory = r -> {
+      Thread t = new Thread(r, "layer-query-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
+    return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<>(threads * 4), threadFactory, new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  /**
+   * Executors.newVirtualThreadPerTaskExecutor(), found by reflection as we compile for Java 11.
+   */
+  private static ExecutorService virtualThreadExecutor() {
+    try {
+      Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) m.invoke(null);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Limits the number of tasks running at once on an unbounded executor.
+   */
+  static class SemaphoreExecutor extends AbstractExecutorService {
+    private final ExecutorService delegate;
+    private final Semaphore permits;
+
+    SemaphoreExecutor(ExecutorService delegate, int threads) {
+      this.delegate = delegate;
+      this.permits = new Semaphore(threads);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+      delegate.execute(() -> {
+        try {
+          permits.acquire();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        try {
+          command.run();
+        } finally {
+          permits.release();
+        }
+      });
+    }
+
+    @Override
+    public void shutdown() {
+      delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+      return delegate.awaitTermination(timeout, unit);
+    }
+  }
+}
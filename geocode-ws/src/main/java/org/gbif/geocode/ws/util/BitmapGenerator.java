@@ -1,11 +1,21 @@
 package org.gbif.geocode.ws.util;
 
+import org.gbif.geocode.api.cache.AbstractBitmapCachedLayer;
+import org.gbif.geocode.api.cache.BorderDistanceRaster;
+import org.gbif.geocode.api.cache.ColourKeyFile;
+import org.gbif.geocode.api.cache.GeocodeBitmapCache;
+import org.gbif.geocode.api.cache.PaletteRaster;
+import org.gbif.geocode.api.cache.PaletteRasterFile;
 import org.gbif.geocode.ws.model.SvgShape;
+import org.gbif.geocode.ws.persistence.mapper.LocationMapper;
 import org.gbif.geocode.ws.persistence.mapper.TileMapper;
+import org.gbif.geocode.ws.resource.GeocodeResource;
+import org.gbif.geocode.ws.service.impl.GeocodeServiceImpl;
 
 import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.io.FileInputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
@@ -29,6 +39,7 @@ import org.apache.batik.transcoder.TranscoderInput;
 import org.apache.batik.transcoder.TranscoderOutput;
 import org.apache.batik.transcoder.image.PNGTranscoder;
 import org.mybatis.spring.annotation.MapperScan;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.Banner.Mode;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
@@ -89,11 +100,24 @@ public class BitmapGenerator implements CommandLineRunner {
   private static final String SVG_FOOTER = "</svg>\n";
 
   private final TileMapper tileMapper;
+  private final LocationMapper locationMapper;
+  private final String shapefilesRoot;
+  private final List<String> enabledShapefileLayers;
+  private final List<String> defaultLayers;
   private final ConfigurableApplicationContext context;
 
 
-  public BitmapGenerator(TileMapper tileMapper, ConfigurableApplicationContext context) {
+  public BitmapGenerator(TileMapper tileMapper,
+                         LocationMapper locationMapper,
+                         @Value("${spring.shapefiles.root}") String shapefilesRoot,
+                         @Value("${spring.shapefiles.enabled}") List<String> enabledShapefileLayers,
+                         @Value("${spring.defaultLayers}") List<String> defaultLayers,
+                         ConfigurableApplicationContext context) {
     this.tileMapper = tileMapper;
+    this.locationMapper = locationMapper;
+    this.shapefilesRoot = shapefilesRoot;
+    this.enabledShapefileLayers = enabledShapefileLayers;
+    this.defaultLayers = defaultLayers;
     this.context = context;
   }
 
@@ -125,6 +149,12 @@ public class BitmapGenerator implements CommandLineRunner {
         "wgsrpd",
         "centroids");
 
+    generateAllBorderDistances(targetDirectory);
+
+    generateAllRasters(targetDirectory);
+
+    generateAllColourKeys(targetDirectory);
+
     System.exit(SpringApplication.exit(context));
   }
 
@@ -344,6 +374,127 @@ public class BitmapGenerator implements CommandLineRunner {
     System.out.println("Combined bitmap with "+usedColours.size()+" colours completed in "+sw.elapsed(TimeUnit.SECONDS)+"s");
   }
 
+  /**
+   * Generates the border distance image for each layer bitmap, and for the combined bitmap, so the bitmap caches
+   * can answer queries whose uncertainty lies within a single colour.
+   */
+  public void generateAllBorderDistances(Path targetDirectory) throws Exception {
+    File[] pngFiles = targetDirectory.resolve("layers").toFile().listFiles(
+        (dir, name) -> name.endsWith(".png") && !name.endsWith("-distance.png"));
+    if (pngFiles != null) {
+      for (File pngFile : pngFiles) {
+        generateBorderDistance(pngFile.toPath());
+      }
+    }
+
+    generateBorderDistance(targetDirectory.resolve("resource/cache-bitmap.png"));
+  }
+
+  /** Generates the border distance image for a single bitmap, e.g. political.png → political-distance.png. */
+  public void generateBorderDistance(Path pngFile) throws Exception {
+    String fileName = pngFile.getFileName().toString();
+    Path distanceFile = pngFile.resolveSibling(fileName.replaceAll("\\.png$", "-distance.png"));
+    if (distanceFile.toFile().exists()) {
+      System.err.println(
+          "Won't overwrite " + distanceFile + ", remove it first if you want to regenerate it (slow).");
+      return;
+    }
+
+    System.out.println("Generating border distance image for " + fileName);
+    Stopwatch sw = Stopwatch.createStarted();
+
+    PaletteRaster raster = PaletteRaster.fromImage(ImageIO.read(pngFile.toFile()));
+    BorderDistanceRaster distance = BorderDistanceRaster.compute(raster);
+    ImageIO.write(distance.toImage(), "PNG", distanceFile.toFile());
+
+    System.out.println(
+        "Border distance image for " + fileName + " completed in " + sw.elapsed(TimeUnit.SECONDS) + "s");
+  }
+
+  /**
+   * Generates the memory-mapped raster file for each layer bitmap, and for the combined bitmap.  Copying these to
+   * the directory set by the geocode.bitmaps.root system property saves decoding the bitmaps on the first startup.
+   */
+  public void generateAllRasters(Path targetDirectory) throws Exception {
+    File[] pngFiles = targetDirectory.resolve("layers").toFile().listFiles(
+        (dir, name) -> name.endsWith(".png") && !name.endsWith("-distance.png"));
+    if (pngFiles != null) {
+      for (File pngFile : pngFiles) {
+        generateRaster(pngFile.toPath());
+      }
+    }
+
+    generateRaster(targetDirectory.resolve("resource/cache-bitmap.png"));
+  }
+
+  /** Generates the raster file for a single bitmap, e.g. political.png → political.raster. */
+  public void generateRaster(Path pngFile) throws Exception {
+    String fileName = pngFile.getFileName().toString();
+    Path rasterFile = pngFile.resolveSibling(fileName.replaceAll("\\.png$", ".raster"));
+    if (rasterFile.toFile().exists()) {
+      System.err.println("Won't overwrite " + rasterFile + ", remove it first if you want to regenerate it.");
+      return;
+    }
+
+    System.out.println("Generating raster file for " + fileName);
+    Stopwatch sw = Stopwatch.createStarted();
+
+    byte[] png = Files.readAllBytes(pngFile);
+    PaletteRaster raster = PaletteRaster.fromImage(ImageIO.read(pngFile.toFile()));
+    PaletteRasterFile.write(raster, PaletteRasterFile.checksum(png), rasterFile);
+
+    System.out.println(
+        "Raster file for " + fileName + " with " + raster.getPaletteSize() + " colours completed in "
+            + sw.elapsed(TimeUnit.SECONDS) + "s");
+  }
+
+  /**
+   * Generates the colour key for each layer's bitmap, and for the combined bitmap, so the bitmap caches start warm
+   * rather than querying the datasource once for every colour.
+   *
+   * <p>The layers read their bitmaps from the classpath, so if the bitmaps have just been regenerated this must be
+   * run again after rebuilding.  (A colour key generated from a different bitmap is ignored at startup.)
+   */
+  public void generateAllColourKeys(Path targetDirectory) throws Exception {
+    GeocodeServiceImpl geocodeService =
+        new GeocodeServiceImpl(locationMapper, shapefilesRoot, enabledShapefileLayers, defaultLayers);
+
+    for (AbstractBitmapCachedLayer layer : geocodeService.getLayers().values()) {
+      generateColourKey(layer, targetDirectory.resolve("layers/" + layer.name() + ".colours.gz"));
+    }
+
+    generateColourKey(
+        new GeocodeBitmapCache(
+            geocodeService, GeocodeResource.class.getResourceAsStream("cache-bitmap.png")),
+        targetDirectory.resolve("resource/cache-bitmap.colours.gz"));
+  }
+
+  /** Generates the colour key for a single layer. */
+  public void generateColourKey(AbstractBitmapCachedLayer layer, Path colourKeyFile) throws Exception {
+    if (colourKeyFile.toFile().exists()) {
+      System.err.println(
+          "Won't overwrite " + colourKeyFile + ", remove it first if you want to regenerate it.");
+      return;
+    }
+
+    System.out.println("Generating colour key for " + layer.name());
+    Stopwatch sw = Stopwatch.createStarted();
+
+    ColourKeyFile colourKey = layer.generateColourKey();
+    if (colourKey.getColourKey().isEmpty()) {
+      System.out.println("→ No colours in the bitmap for " + layer.name() + ", not writing a colour key");
+      return;
+    }
+
+    try (OutputStream out = new FileOutputStream(colourKeyFile.toFile())) {
+      colourKey.write(out);
+    }
+
+    System.out.println(
+        "Colour key for " + layer.name() + " with " + colourKey.getColourKey().size() + " colours completed in "
+            + sw.elapsed(TimeUnit.SECONDS) + "s");
+  }
+
   /**
    * The circumference of a parallel (line of longitude at a particular latitude) in kilometres.
    *
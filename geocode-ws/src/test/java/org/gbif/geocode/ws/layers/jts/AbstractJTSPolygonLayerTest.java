@@ -0,0 +1,147 @@
+package org.gbif.geocode.ws.layers.jts;
+
+import org.gbif.geocode.api.model.Location;
+import org.gbif.geocode.ws.layers.Bitmap;
+import org.gbif.geocode.ws.persistence.mapper.LocationMapper;
+
+import java.util.List;
+
+import org.apache.ibatis.executor.result.DefaultResultContext;
+import org.apache.ibatis.session.ResultHandler;
+import org.junit.jupiter.api.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Polygons read from a mocked layer_features query are answered as query_layers would answer.
+ */
+public class AbstractJTSPolygonLayerTest {
+  private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+  /**
+   * A rectangular polygon giving one or more Locations with the same id, one for each country code.
+   */
+  private static PolygonFeature feature(double minLng, double minLat, double maxLng, double maxLat, String type,
+                                        String id, String... isoCountryCode2Digits) {
+    PolygonFeature feature = new PolygonFeature();
+    feature.geometry = GEOMETRY_FACTORY.createPolygon(GEOMETRY_FACTORY.createLinearRing(new Coordinate[]{
+      new Coordinate(minLng, minLat), new Coordinate(minLng, maxLat), new Coordinate(maxLng, maxLat),
+      new Coordinate(maxLng, minLat), new Coordinate(minLng, minLat)}), null);
+    feature.source = "Test";
+    int n = isoCountryCode2Digits.length == 0 ? 1 : isoCountryCode2Digits.length;
+    feature.types = new String[n];
+    feature.ids = new String[n];
+    feature.titles = new String[n];
+    feature.isoCountryCode2Digits = new String[n];
+    for (int i = 0; i < n; i++) {
+      feature.types[i] = type;
+      feature.ids[i] = id;
+      feature.titles[i] = "Title " + id;
+      feature.isoCountryCode2Digits[i] = isoCountryCode2Digits.length == 0 ? null : isoCountryCode2Digits[i];
+    }
+    return feature;
+  }
+
+  private static AbstractJTSPolygonLayer layer() {
+    PolygonFeature[] features = {
+      feature(0, 0, 10, 10, "Test", "A"),
+      // B is two pieces, as ST_Subdivide makes them.
+      feature(20, 0, 21, 1, "Test", "B"),
+      feature(22, 0, 23, 1, "Test", "B"),
+      feature(10.5, 4, 11.5, 6, "Test", "C"),
+      // A polygon with two claims.
+      feature(30, 0, 31, 1, "Political", "P", "AA", "BB")
+    };
+
+    LocationMapper mapper = mock(LocationMapper.class);
+    doAnswer(invocation -> {
+      ResultHandler<PolygonFeature> handler = invocation.getArgument(1);
+      DefaultResultContext<PolygonFeature> context = new DefaultResultContext<>();
+      for (PolygonFeature feature : features) {
+        context.nextResultObject(feature);
+        handler.handleResult(context);
+      }
+      return null;
+    }).when(mapper).fetchPolygonFeatures(eq("Test"), any());
+
+    return new AbstractJTSPolygonLayer(mapper, "Test", Bitmap.raster("black.png"), null, null, 10) {
+      @Override
+      public String name() {
+        return "Test";
+      }
+
+      @Override
+      public String source() {
+        return "Test";
+      }
+    };
+  }
+
+  @Test
+  public void testInsideAndOutside() {
+    AbstractJTSPolygonLayer layer = layer();
+
+    List<Location> inside = layer.queryDatasource(5, 5, 0.1);
+    assertEquals(1, inside.size());
+    assertEquals("A", inside.get(0).getId());
+    assertEquals(0d, inside.get(0).getDistance());
+    assertEquals(0d, inside.get(0).getDistanceMeters());
+
+    // Outside, within the uncertainty.
+    List<Location> near = layer.queryDatasource(5, 10.05, 0.1);
+    assertEquals(1, near.size());
+    assertEquals("A", near.get(0).getId());
+    assertEquals(0.05, near.get(0).getDistance(), 1e-9);
+    // About 5.5km at 5°N.
+    assertEquals(5_500, near.get(0).getDistanceMeters(), 100);
+
+    // Outside, beyond the uncertainty.
+    assertTrue(layer.queryDatasource(5, 10.2, 0.1).isEmpty());
+  }
+
+  /**
+   * A Location with several pieces within the uncertainty is given once, at its nearest.
+   */
+  @Test
+  public void testLocationOverSeveralPieces() {
+    List<Location> found = layer().queryDatasource(0.5, 21.8, 1.0);
+    assertEquals(1, found.size());
+    assertEquals("B", found.get(0).getId());
+    assertEquals(0.2, found.get(0).getDistance(), 1e-9);
+  }
+
+  /**
+   * Each claim of a Political polygon is a Location, in the order of the claims.
+   */
+  @Test
+  public void testPoliticalClaims() {
+    List<Location> found = layer().queryDatasource(0.5, 30.5, 0.1);
+    assertEquals(2, found.size());
+    for (Location l : found) {
+      assertEquals("P", l.getId());
+      assertEquals("Political", l.getType());
+      assertEquals("Title P", l.getTitle());
+      assertEquals(0d, l.getDistance());
+    }
+    assertEquals("AA", found.get(0).getIsoCountryCode2Digit());
+    assertEquals("BB", found.get(1).getIsoCountryCode2Digit());
+  }
+
+  @Test
+  public void testNearestFirst() {
+    List<Location> found = layer().queryDatasource(5, 10.3, 1.0);
+    assertEquals(2, found.size());
+    assertEquals("C", found.get(0).getId());
+    assertEquals(0.2, found.get(0).getDistance(), 1e-9);
+    assertEquals("A", found.get(1).getId());
+    assertEquals(0.3, found.get(1).getDistance(), 1e-9);
+  }
+}
@@ -0,0 +1,129 @@
+package org.gbif.geocode.ws.layers.jts;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.geotools.referencing.GeodeticCalculator;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+import com.google.common.base.Stopwatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class GeodesicTest {
+
+  /**
+   * Vincenty's own example, Flinders Peak to Buninyong.
+   */
+  @Test
+  public void testKnownDistance() {
+    double distance = Geodesic.distance(
+      -(37 + 57 / 60d + 3.72030 / 3600), 144 + 25 / 60d + 29.52440 / 3600,
+      -(37 + 39 / 60d + 10.15610 / 3600), 143 + 55 / 60d + 35.38390 / 3600);
+    assertEquals(54_972.271, distance, Geodesic.TOLERANCE_METERS);
+
+    assertEquals(0d, Geodesic.distance(10, 20, 10, 20));
+    assertEquals(Geodesic.distance(0, 179.9, 0, -179.9), Geodesic.distance(0, -0.1, 0, 0.1), 1e-6);
+  }
+
+  /**
+   * The distances must match GeoTools', and the spherical distances must be within the documented error.
+   */
+  @Test
+  public void testMatchesGeodeticCalculator() {
+    GeodeticCalculator calculator = new GeodeticCalculator(DefaultGeographicCRS.WGS84);
+    Random random = new Random(1);
+
+    for (int i = 0; i < 100_000; i++) {
+      double lat1 = random.nextDouble() * 180 - 90;
+      double lon1 = random.nextDouble() * 360 - 180;
+      double lat2 = Math.max(-90, Math.min(90, lat1 + random.nextGaussian() * 5));
+      double lon2 = Math.IEEEremainder(lon1 + random.nextGaussian() * 5, 360);
+
+      calculator.setStartingGeographicPoint(lon1, lat1);
+      calculator.setDestinationGeographicPoint(lon2, lat2);
+      double expected = calculator.getOrthodromicDistance();
+
+      double distance = Geodesic.distance(lat1, lon1, lat2, lon2);
+      assertEquals(expected, distance, Geodesic.TOLERANCE_METERS);
+
+      double spherical = Geodesic.haversine(lat1, lon1, lat2, lon2);
+      assertTrue(Math.abs(spherical - distance) <= distance * Geodesic.SPHERICAL_ERROR);
+    }
+  }
+
+  /**
+   * The chord for a spherical distance must be the distance between the points' unit vectors, everywhere including
+   * the poles and across the antimeridian.
+   */
+  @Test
+  public void testChord() {
+    Random random = new Random(1);
+    double[] v = new double[6];
+
+    for (int i = 0; i < 100_000; i++) {
+      double lat1 = i % 10 == 0 ? 90 : random.nextDouble() * 180 - 90;
+      double lon1 = i % 10 == 1 ? 179.99 : random.nextDouble() * 360 - 180;
+      double lat2 = Math.max(-90, Math.min(90, lat1 + random.nextGaussian()));
+      double lon2 = Math.IEEEremainder(lon1 + random.nextGaussian(), 360);
+
+      Geodesic.unitVector(lat1, lon1, v, 0);
+      Geodesic.unitVector(lat2, lon2, v, 3);
+      double dx = v[0] - v[3], dy = v[1] - v[4], dz = v[2] - v[5];
+      assertEquals(Math.sqrt(dx * dx + dy * dy + dz * dz), Geodesic.chord(Geodesic.haversine(lat1, lon1, lat2, lon2)),
+        1e-9);
+    }
+  }
+
+  /**
+   * Compare the speed with GeoTools' calculator, for distances like those between a query and nearby centroids.
+   */
+  @Test
+  @Disabled
+  public void speedTest() {
+    int n = 1_000_000;
+    Random random = new Random(1);
+    double[] lat = new double[n + 1];
+    double[] lon = new double[n + 1];
+    for (int i = 0; i <= n; i++) {
+      lat[i] = random.nextDouble() * 160 - 80;
+      lon[i] = random.nextDouble() * 360 - 180;
+    }
+
+    GeodeticCalculator calculator = new GeodeticCalculator(DefaultGeographicCRS.WGS84);
+    for (int round = 0; round < 5; round++) {
+      double sum = 0;
+      Stopwatch geoTools = Stopwatch.createStarted();
+      for (int i = 0; i < n; i++) {
+        calculator.setStartingGeographicPoint(lon[i], lat[i]);
+        calculator.setDestinationGeographicPoint(lon[i] + 0.03, lat[i] + 0.02);
+        sum += calculator.getOrthodromicDistance();
+      }
+      geoTools.stop();
+
+      Stopwatch vincenty = Stopwatch.createStarted();
+      for (int i = 0; i < n; i++) {
+        sum -= Geodesic.distance(lat[i], lon[i], lat[i] + 0.02, lon[i] + 0.03);
+      }
+      vincenty.stop();
+
+      // Mostly rejected by the spherical distance, as most candidates are.
+      Stopwatch filtered = Stopwatch.createStarted();
+      int within = 0;
+      for (int i = 0; i < n; i++) {
+        if (Geodesic.haversine(lat[i], lon[i], lat[i + 1], lon[i + 1]) <= 5_050 * (1 + Geodesic.SPHERICAL_ERROR)) {
+          within++;
+        }
+      }
+      filtered.stop();
+
+      System.out.println("GeodeticCalculator " + geoTools.elapsed(TimeUnit.MILLISECONDS) + "ms, "
+        + "Vincenty " + vincenty.elapsed(TimeUnit.MILLISECONDS) + "ms, "
+        + "haversine " + filtered.elapsed(TimeUnit.MILLISECONDS) + "ms for " + n + " distances; "
+        + "difference " + sum + "m, " + within + " within");
+    }
+  }
+}
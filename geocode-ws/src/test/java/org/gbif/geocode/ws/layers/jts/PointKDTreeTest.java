@@ -0,0 +1,134 @@
+package org.gbif.geocode.ws.layers.jts;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+import com.google.common.base.Stopwatch;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class PointKDTreeTest {
+
+  /**
+   * The tree must find exactly the points a linear scan finds, including duplicate points.
+   */
+  @Test
+  public void testSearch() {
+    Random random = new Random(1);
+
+    for (int dimensions : new int[]{2, 3}) {
+      for (int n : new int[]{0, 1, 2, 17, 5000}) {
+        double[] coordinates = new double[n * dimensions];
+        for (int i = 0; i < coordinates.length; i++) {
+          // Rounded, so some points share coordinates.
+          coordinates[i] = Math.round(random.nextDouble() * 200 - 100);
+        }
+        PointKDTree tree = new PointKDTree(dimensions, coordinates);
+        assertEquals(n, tree.size());
+
+        for (int q = 0; q < 1000; q++) {
+          double[] min = new double[dimensions];
+          double[] max = new double[dimensions];
+          for (int c = 0; c < dimensions; c++) {
+            min[c] = Math.round(random.nextDouble() * 200 - 100);
+            max[c] = min[c] + Math.round(random.nextDouble() * 40);
+          }
+
+          Set<Integer> expected = new TreeSet<>();
+          for (int i = 0; i < n; i++) {
+            boolean inside = true;
+            for (int c = 0; c < dimensions; c++) {
+              double v = coordinates[i * dimensions + c];
+              inside &= v >= min[c] && v <= max[c];
+            }
+            if (inside) {
+              expected.add(i);
+            }
+          }
+
+          Set<Integer> found = new TreeSet<>();
+          tree.search(min, max, found::add);
+          assertEquals(expected, found);
+        }
+      }
+    }
+  }
+
+  /**
+   * Compare the heap used and the query rate with the STRtree of prepared JTS points the Centroids layer used to use.
+   */
+  @Test
+  @Disabled
+  public void speedTest() {
+    int n = 10_000;
+    int count = 1_000_000;
+    double radius = 1.5 * 0.05;
+
+    Random random = new Random(1);
+    double[] coordinates = new double[2 * n];
+    for (int i = 0; i < coordinates.length; i += 2) {
+      coordinates[i] = random.nextDouble() * 360 - 180;
+      coordinates[i + 1] = random.nextDouble() * 180 - 90;
+    }
+
+    Runtime.getRuntime().gc();
+    long heap = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    GeometryFactory geometryFactory = new GeometryFactory();
+    STRtree strTree = new STRtree();
+    for (int i = 0; i < n; i++) {
+      Point p = geometryFactory.createPoint(new Coordinate(coordinates[2 * i], coordinates[2 * i + 1]));
+      p.setUserData(i);
+      strTree.insert(p.getEnvelopeInternal(), PreparedGeometryFactory.prepare(p));
+    }
+    strTree.build();
+    Runtime.getRuntime().gc();
+    System.out.println("STRtree: " + (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory() - heap)
+      / 1024 + "KB heap");
+
+    Runtime.getRuntime().gc();
+    heap = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    PointKDTree kdTree = new PointKDTree(2, coordinates);
+    Runtime.getRuntime().gc();
+    System.out.println("KD-tree: " + (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory() - heap)
+      / 1024 + "KB heap");
+
+    for (int round = 0; round < 5; round++) {
+      random = new Random(42);
+      long found = 0;
+      Stopwatch sw = Stopwatch.createStarted();
+      for (int i = 0; i < count; i++) {
+        Point query = geometryFactory.createPoint(
+          new Coordinate(random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90));
+        List<PreparedGeometry> candidates = strTree.query(query.buffer(radius).getEnvelopeInternal());
+        found += candidates.size();
+      }
+      sw.stop();
+      System.out.println("STRtree: " + count + " queries in " + sw.elapsed(TimeUnit.MILLISECONDS) + "ms; "
+        + count * 1000d / sw.elapsed(TimeUnit.MILLISECONDS) + " per second, " + found + " found");
+
+      random = new Random(42);
+      long[] kdFound = new long[1];
+      sw.reset().start();
+      for (int i = 0; i < count; i++) {
+        double x = random.nextDouble() * 360 - 180;
+        double y = random.nextDouble() * 180 - 90;
+        kdTree.search(new double[]{x - radius, y - radius}, new double[]{x + radius, y + radius}, p -> kdFound[0]++);
+      }
+      sw.stop();
+      System.out.println("KD-tree: " + count + " queries in " + sw.elapsed(TimeUnit.MILLISECONDS) + "ms; "
+        + count * 1000d / sw.elapsed(TimeUnit.MILLISECONDS) + " per second, " + kdFound[0] + " found");
+    }
+  }
+}
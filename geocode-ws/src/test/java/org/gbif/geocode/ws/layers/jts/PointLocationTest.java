@@ -0,0 +1,60 @@
+package org.gbif.geocode.ws.layers.jts;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PointLocationTest {
+
+  /**
+   * Well-known binary for a geometry with two coordinates.
+   */
+  private static byte[] wkb(ByteOrder order, int type, double x, double y) {
+    return ByteBuffer.allocate(21).order(order)
+      .put((byte) (order == ByteOrder.BIG_ENDIAN ? 0 : 1)).putInt(type).putDouble(x).putDouble(y)
+      .array();
+  }
+
+  @Test
+  public void testLittleEndian() {
+    PointLocation location = new PointLocation();
+    location.setGeom(wkb(ByteOrder.LITTLE_ENDIAN, 1, -40.5, 75.25));
+    assertEquals(75.25, location.latitude);
+    assertEquals(-40.5, location.longitude);
+  }
+
+  @Test
+  public void testBigEndian() {
+    PointLocation location = new PointLocation();
+    location.setGeom(wkb(ByteOrder.BIG_ENDIAN, 1, 12.125, -33.5));
+    assertEquals(-33.5, location.latitude);
+    assertEquals(12.125, location.longitude);
+  }
+
+  /**
+   * Anything but a point is refused, naming the location.
+   */
+  @Test
+  public void testNotAPoint() {
+    PointLocation location = new PointLocation();
+    location.id = "Centroid 1";
+
+    // A line string, with the length of a point.
+    IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+      () -> location.setGeom(wkb(ByteOrder.LITTLE_ENDIAN, 2, 1, 2)));
+    assertTrue(e.getMessage().contains("Centroid 1"));
+
+    // Not a byte order.
+    byte[] wkb = wkb(ByteOrder.LITTLE_ENDIAN, 1, 1, 2);
+    wkb[0] = 2;
+    assertThrows(IllegalArgumentException.class, () -> location.setGeom(wkb));
+
+    // A point with a third dimension.
+    assertThrows(IllegalArgumentException.class, () -> location.setGeom(new byte[29]));
+  }
+}
@@ -0,0 +1,51 @@
+package org.gbif.geocode.ws.layers.shapefile;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class PackedRTreeTest {
+
+  /**
+   * The tree must find exactly the boxes a linear scan finds.
+   */
+  @Test
+  public void testSearch() {
+    Random random = new Random(1);
+
+    for (int n : new int[]{0, 1, 16, 17, 5000}) {
+      int[] items = new int[n];
+      double[] minX = new double[n], minY = new double[n], maxX = new double[n], maxY = new double[n];
+      for (int i = 0; i < n; i++) {
+        items[i] = 1000 + i;
+        minX[i] = random.nextDouble() * 350 - 180;
+        minY[i] = random.nextDouble() * 170 - 90;
+        maxX[i] = minX[i] + random.nextDouble() * 10;
+        maxY[i] = minY[i] + random.nextDouble() * 10;
+      }
+      PackedRTree tree = new PackedRTree(items, minX, minY, maxX, maxY);
+      assertEquals(n, tree.size());
+
+      for (int q = 0; q < 1000; q++) {
+        double x = random.nextDouble() * 360 - 180;
+        double y = random.nextDouble() * 180 - 90;
+        double d = random.nextDouble() * 2;
+
+        Set<Integer> expected = new TreeSet<>();
+        for (int i = 0; i < n; i++) {
+          if (!(x + d < minX[i] || y + d < minY[i] || x - d > maxX[i] || y - d > maxY[i])) {
+            expected.add(items[i]);
+          }
+        }
+
+        Set<Integer> found = new TreeSet<>();
+        tree.search(x - d, y - d, x + d, y + d, found::add);
+        assertEquals(expected, found);
+      }
+    }
+  }
+}
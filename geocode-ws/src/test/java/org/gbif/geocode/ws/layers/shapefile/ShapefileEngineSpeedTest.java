@@ -0,0 +1,124 @@
+package org.gbif.geocode.ws.layers.shapefile;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+import com.google.common.base.Stopwatch;
+
+/**
+ * Compare the speed and results of the shapefile engines, on shapefiles exported by database/export-shapefiles.sh.
+ */
+public class ShapefileEngineSpeedTest {
+  static final String ROOT = "../database/layers/";
+
+  static final String[][] LAYERS = {
+    {"continents_subdivided", "id"},
+    {"iho_subdivided", "id"},
+    {"political_subdivided", "id"},
+    {"wgsrpd_subdivided", "id"},
+    {"gadm_subdivided", "gid_3"}
+  };
+
+  Stopwatch sw = Stopwatch.createUnstarted();
+
+  @Test
+  @Disabled
+  public void compareEngines() {
+    int count = 1_000_000;
+
+    for (String[] layer : LAYERS) {
+      String path = ROOT + layer[0];
+      String[] columns = {layer[1]};
+
+      Map<ShapefileIndex.Engine, ShapefileIndex> engines = new EnumMap<>(ShapefileIndex.Engine.class);
+      for (ShapefileIndex.Engine engine : ShapefileIndex.Engine.values()) {
+        Runtime.getRuntime().gc();
+        long heap = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+        sw.reset().start();
+        engines.put(engine, ShapefileIndex.open(engine, path, columns));
+        Runtime.getRuntime().gc();
+        System.out.println(layer[0] + " " + engine + ": loaded in " + sw.elapsed(TimeUnit.MILLISECONDS) + "ms, using "
+          + (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory() - heap) / 1024 / 1024 + "MB heap");
+      }
+      ShapefileIndex ala = engines.get(ShapefileIndex.Engine.ALA);
+
+      for (double uncertainty : new double[]{0.05, 1.0}) {
+        for (Map.Entry<ShapefileIndex.Engine, ShapefileIndex> engine : engines.entrySet()) {
+          ShapefileHits hits = new ShapefileHits();
+          Random random = new Random(42);
+          long found = 0;
+
+          sw.reset().start();
+          for (int i = 0; i < count; i++) {
+            engine.getValue().intersect(random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90, uncertainty, hits);
+            found += hits.size();
+          }
+          sw.stop();
+
+          System.out.println(layer[0] + " " + engine.getKey() + " ±" + uncertainty + "°: " + count + " queries in "
+            + sw.elapsed(TimeUnit.MILLISECONDS) + "ms; " + count * 1000d / sw.elapsed(TimeUnit.MILLISECONDS)
+            + " per second, " + found + " features found");
+        }
+
+        // The engines should find the same features as SimpleShapeFile, at the same distances.
+        for (Map.Entry<ShapefileIndex.Engine, ShapefileIndex> engine : engines.entrySet()) {
+          Assertions.assertArrayEquals(ala.column(layer[1]), engine.getValue().column(layer[1]));
+
+          Random random = new Random(42);
+          ShapefileHits alaHits = new ShapefileHits();
+          ShapefileHits hits = new ShapefileHits();
+          for (int i = 0; i < 10_000; i++) {
+            double longitude = random.nextDouble() * 360 - 180;
+            double latitude = random.nextDouble() * 180 - 90;
+            ala.intersect(longitude, latitude, uncertainty, alaHits);
+            engine.getValue().intersect(longitude, latitude, uncertainty, hits);
+            Assertions.assertEquals(sorted(alaHits), sorted(hits), engine.getKey() + " at " + latitude + "," + longitude);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Merging the Locations of hundreds of subdivided polygons, as for a GADM query with a large uncertainty.
+   */
+  @Test
+  @Disabled
+  public void speedTestGadmMerge() {
+    GadmLayer gadm = new GadmLayer(ROOT, ShapefileIndex.Engine.STRTREE);
+
+    // Central Europe, with the largest uncertainty GADM allows at this latitude.
+    double latitude = 50.0, longitude = 10.0;
+    double uncertainty = gadm.adjustUncertainty(10.0, latitude);
+    ShapefileHits hits = new ShapefileHits();
+    gadm.shapefile.intersect(longitude, latitude, uncertainty, hits);
+    System.out.println(hits.size() + " polygons found, merged into "
+      + gadm.convertResultToLocation(hits, latitude).size() + " Locations");
+
+    int count = 10_000;
+    for (int a = 0; a < 5; a++) {
+      sw.reset().start();
+      for (int i = 0; i < count; i++) {
+        gadm.convertResultToLocation(hits, latitude);
+      }
+      sw.stop();
+      System.out.println("Merge: " + count + " in " + sw.elapsed(TimeUnit.MILLISECONDS) + "ms; "
+        + sw.elapsed(TimeUnit.MICROSECONDS) / count + "µs each");
+    }
+  }
+
+  private static String sorted(ShapefileHits hits) {
+    Map<Integer, String> sorted = new TreeMap<>();
+    for (int i = 0; i < hits.size(); i++) {
+      sorted.put(hits.feature(i), String.format("%.6f", hits.distance(i)));
+    }
+    return sorted.toString();
+  }
+}
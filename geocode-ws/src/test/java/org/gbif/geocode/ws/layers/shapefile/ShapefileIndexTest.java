@@ -0,0 +1,127 @@
+package org.gbif.geocode.ws.layers.shapefile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The shapefile engines on a small shapefile, written by fixture.py, with a polygon with a hole, a multipolygon and
+ * a polygon with a degenerate ring.
+ */
+public class ShapefileIndexTest {
+  static final String[] COLUMNS = {"id"};
+
+  @TempDir
+  Path directory;
+
+  /**
+   * Copy the fixture shapefile to a directory, as the engines read files rather than resources.
+   *
+   * @return the path of the shapefile without the .shp extension
+   */
+  static String fixture(Path directory) throws IOException {
+    for (String extension : new String[]{".shp", ".shx", ".dbf"}) {
+      try (InputStream in = ShapefileIndexTest.class.getResourceAsStream("fixture" + extension)) {
+        Files.copy(in, directory.resolve("fixture" + extension));
+      }
+    }
+    return directory.resolve("fixture").toString();
+  }
+
+  /**
+   * The features found and their distances, by feature id.
+   */
+  static String hits(ShapefileIndex index, double longitude, double latitude, double distance) {
+    ShapefileHits hits = new ShapefileHits();
+    index.intersect(longitude, latitude, distance, hits);
+    Map<String, String> sorted = new TreeMap<>();
+    for (int i = 0; i < hits.size(); i++) {
+      sorted.put(index.column("id")[hits.feature(i)], String.format("%.6f", hits.distance(i)));
+    }
+    return sorted.toString();
+  }
+
+  @Test
+  public void testMapped() throws IOException {
+    ShapefileIndex index = ShapefileIndex.open(ShapefileIndex.Engine.MAPPED, fixture(directory), COLUMNS);
+    assertArrayEquals(new String[]{"HOLE", "MULTI", "DEGEN"}, index.column("ID"));
+
+    // Within the polygon, in its hole, and near the hole's edge.
+    assertEquals("{HOLE=0.000000}", hits(index, 1, 1, 0));
+    assertEquals("{}", hits(index, 5, 5, 0.5));
+    assertEquals("{HOLE=0.500000}", hits(index, 5, 3.5, 1));
+
+    // Within either part of the multipolygon, and between them.
+    assertEquals("{MULTI=0.000000}", hits(index, 21, 1, 0));
+    assertEquals("{MULTI=0.000000}", hits(index, 25, 1, 0));
+    assertEquals("{MULTI=1.000000}", hits(index, 23, 1, 1.5));
+
+    // The degenerate ring doesn't make a hole.
+    assertEquals("{DEGEN=0.000000}", hits(index, 31.2, 1.5, 0));
+    assertEquals("{DEGEN=0.000000}", hits(index, 31.5, 1.5, 0));
+    assertEquals("{DEGEN=0.500000}", hits(index, 34.5, 2, 1));
+  }
+
+  /**
+   * The STRtree and memory-mapped engines find the same features as SimpleShapeFile, at the same distances.
+   */
+  @Test
+  public void testEnginesAgree() throws IOException {
+    String path = fixture(directory);
+    ShapefileIndex ala = ShapefileIndex.open(ShapefileIndex.Engine.ALA, path, COLUMNS);
+
+    for (ShapefileIndex.Engine engine : new ShapefileIndex.Engine[]{ShapefileIndex.Engine.STRTREE,
+      ShapefileIndex.Engine.MAPPED}) {
+      ShapefileIndex index = ShapefileIndex.open(engine, path, COLUMNS);
+      assertArrayEquals(ala.column("id"), index.column("id"));
+
+      Random random = new Random(42);
+      for (int i = 0; i < 10_000; i++) {
+        double longitude = random.nextDouble() * 40 - 3;
+        double latitude = random.nextDouble() * 16 - 3;
+        double distance = random.nextInt(3) * 0.5;
+        assertEquals(hits(ala, longitude, latitude, distance), hits(index, longitude, latitude, distance),
+          engine + " at " + latitude + "," + longitude + " ±" + distance);
+      }
+    }
+  }
+
+  /**
+   * Cells of the interior grid which aren't mixed are entirely inside or outside their polygon.
+   */
+  @Test
+  public void testInteriorGrid() throws IOException {
+    ShapefileReader reader = new ShapefileReader(fixture(directory));
+    InteriorGrid grid = new InteriorGrid(reader);
+
+    Random random = new Random(42);
+    int[] states = new int[3];
+    for (int f = 0; f < reader.size(); f++) {
+      double width = reader.maxX(f) - reader.minX(f);
+      double height = reader.maxY(f) - reader.minY(f);
+      for (int i = 0; i < 10_000; i++) {
+        double x = reader.minX(f) + random.nextDouble() * width;
+        double y = reader.minY(f) + random.nextDouble() * height;
+        int state = grid.state(f, x, y);
+        states[state]++;
+        if (state != InteriorGrid.MIXED) {
+          assertEquals(state == InteriorGrid.INSIDE, reader.contains(f, x, y), "Feature " + f + " at " + x + "," + y);
+        }
+      }
+    }
+    // The hole and the gap in the multipolygon are outside.
+    assertTrue(states[InteriorGrid.INSIDE] > 0);
+    assertTrue(states[InteriorGrid.OUTSIDE] > 0);
+  }
+}
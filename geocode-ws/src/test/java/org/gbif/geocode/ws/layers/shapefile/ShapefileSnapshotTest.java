@@ -0,0 +1,118 @@
+package org.gbif.geocode.ws.layers.shapefile;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.gbif.geocode.ws.layers.shapefile.ShapefileIndexTest.COLUMNS;
+import static org.gbif.geocode.ws.layers.shapefile.ShapefileIndexTest.fixture;
+import static org.gbif.geocode.ws.layers.shapefile.ShapefileIndexTest.hits;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class ShapefileSnapshotTest {
+
+  @TempDir
+  Path directory;
+
+  /**
+   * The answers of an index at random points around the fixture.
+   */
+  private static List<String> answers(ShapefileIndex index) {
+    List<String> answers = new ArrayList<>();
+    Random random = new Random(42);
+    for (int i = 0; i < 1_000; i++) {
+      answers.add(hits(index, random.nextDouble() * 40 - 3, random.nextDouble() * 16 - 3, random.nextInt(3) * 0.5));
+    }
+    return answers;
+  }
+
+  /**
+   * An index loaded from its snapshot gives the same answers as the index it was written from.
+   */
+  @Test
+  public void testRoundTrip() throws IOException {
+    String path = fixture(directory);
+    assertNull(ShapefileSnapshot.open(path, COLUMNS));
+
+    MappedShapefileIndex built = new MappedShapefileIndex(path, COLUMNS);
+    built.writeSnapshot();
+    assertNotNull(ShapefileSnapshot.open(path, COLUMNS));
+    // A snapshot lacking a column isn't used.
+    assertNull(ShapefileSnapshot.open(path, new String[]{"id", "name"}));
+
+    MappedShapefileIndex loaded = new MappedShapefileIndex(path, COLUMNS);
+    assertArrayEquals(built.column("id"), loaded.column("id"));
+    assertEquals(answers(built), answers(loaded));
+  }
+
+  /**
+   * A snapshot is ignored once the shapefile or the data version is changed, but not if the shapefile is only copied.
+   */
+  @Test
+  public void testModifiedShapefile() throws IOException {
+    String path = fixture(directory);
+    Path version = directory.resolve("version.txt");
+    Files.write(version, "1".getBytes(StandardCharsets.UTF_8));
+    List<String> answers = answers(new MappedShapefileIndex(path, COLUMNS));
+    new MappedShapefileIndex(path, COLUMNS).writeSnapshot();
+    assertNotNull(ShapefileSnapshot.open(path, COLUMNS));
+
+    // Copied, without keeping the modification times.
+    Path shp = Paths.get(path + ".shp");
+    Files.setLastModifiedTime(shp, FileTime.fromMillis(Files.getLastModifiedTime(shp).toMillis() + 60_000));
+    assertNotNull(ShapefileSnapshot.open(path, COLUMNS));
+
+    // A new data version.
+    Files.write(version, "2".getBytes(StandardCharsets.UTF_8));
+    assertNull(ShapefileSnapshot.open(path, COLUMNS));
+    assertEquals(answers, answers(new MappedShapefileIndex(path, COLUMNS)));
+    Files.write(version, "1".getBytes(StandardCharsets.UTF_8));
+    assertNotNull(ShapefileSnapshot.open(path, COLUMNS));
+
+    // A changed bounding box in the header, with the same sizes and .shx.
+    try (RandomAccessFile file = new RandomAccessFile(shp.toFile(), "rw")) {
+      // Little-endian maxX, in the header.
+      file.seek(52);
+      file.writeLong(Long.reverseBytes(Double.doubleToLongBits(40d)));
+    }
+    assertNull(ShapefileSnapshot.open(path, COLUMNS));
+  }
+
+  /**
+   * A snapshot which is partly copied, or isn't a snapshot, is ignored and the index built.
+   */
+  @Test
+  public void testIncompleteSnapshot() throws IOException {
+    String path = fixture(directory);
+    List<String> answers = answers(new MappedShapefileIndex(path, COLUMNS));
+    new MappedShapefileIndex(path, COLUMNS).writeSnapshot();
+    Path snapshot = ShapefileSnapshot.path(path);
+    byte[] complete = Files.readAllBytes(snapshot);
+
+    for (int length : new int[]{0, 4, 40, complete.length / 2, complete.length - 1}) {
+      Files.write(snapshot, Arrays.copyOf(complete, length));
+      assertNull(ShapefileSnapshot.open(path, COLUMNS), "Truncated to " + length);
+      assertEquals(answers, answers(new MappedShapefileIndex(path, COLUMNS)));
+    }
+
+    byte[] wrongMagic = complete.clone();
+    wrongMagic[0] = 'X';
+    Files.write(snapshot, wrongMagic);
+    assertNull(ShapefileSnapshot.open(path, COLUMNS));
+    assertEquals(answers, answers(new MappedShapefileIndex(path, COLUMNS)));
+  }
+}
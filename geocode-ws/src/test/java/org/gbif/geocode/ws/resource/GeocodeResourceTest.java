@@ -1,11 +1,14 @@
 package org.gbif.geocode.ws.resource;
 
 import org.gbif.geocode.api.model.Location;
+import org.gbif.geocode.api.model.Query;
 import org.gbif.geocode.api.service.GeocodeService;
 import org.gbif.geocode.ws.resource.exception.OffWorldException;
+import org.gbif.geocode.ws.resource.exception.TooManyQueriesException;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 import org.junit.jupiter.api.Test;
@@ -13,8 +16,12 @@ import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
 public class GeocodeResourceTest {
@@ -37,6 +44,21 @@ public class GeocodeResourceTest {
     assertThrows(OffWorldException.class, () -> geocodeService.get(95.0d, 0.0d, null, null));
   }
 
+  @Test
+  public void testOffWorldBatch() {
+    GeocodeService geocodeService = new GeocodeResource(null, null);
+    assertThrows(OffWorldException.class, () -> geocodeService.get(Arrays.asList(
+      new Query(10.0d, 53.0d, null, null, null),
+      new Query(95.0d, 0.0d, null, null, null))));
+  }
+
+  @Test
+  public void testTooLargeBatch() {
+    GeocodeService geocodeService = new GeocodeResource(null, null);
+    List<Query> queries = Collections.nCopies(10_001, new Query(10.0d, 53.0d, null, null, null));
+    assertThrows(TooManyQueriesException.class, () -> geocodeService.get(queries));
+  }
+
   @Test
   public void testGoodRequest() {
     GeocodeService geocoder = mock(GeocodeService.class);
@@ -61,4 +83,39 @@ public class GeocodeResourceTest {
     assertEquals(1, locations.size());
     assertTrue(locations.contains(locationTest2));
   }
+
+  /**
+   * The resource always queries with its own default layers, so those results must teach the bitmap cache its
+   * colours.  Greenland is a single colour on the cache bitmap.
+   */
+  @Test
+  public void testDefaultLayersLearnColour() {
+    GeocodeService geocoder = mock(GeocodeService.class);
+    GeocodeService geocodeService = new GeocodeResource(geocoder, null);
+
+    Location greenland = new Location("test", "Political", "source", "Greenland", "GL", 0d, 0d);
+    when(geocoder.get(any(), any(), any(), any(), anyList())).thenReturn(Arrays.asList(greenland));
+
+    assertEquals(Arrays.asList(greenland), geocodeService.get(75.0d, -40.0d, null, null, null));
+    assertEquals(Arrays.asList(greenland), geocodeService.get(75.01d, -40.01d, null, null, null));
+    assertEquals(Arrays.asList(Arrays.asList(greenland)),
+      geocodeService.get(Arrays.asList(new Query(75.02d, -40.02d, null, null, null))));
+    verify(geocoder, times(1)).get(any(), any(), any(), any(), anyList());
+    verifyNoMoreInteractions(geocoder);
+  }
+
+  @Test
+  public void testDefaultLayersLearnColourBatch() {
+    GeocodeService geocoder = mock(GeocodeService.class);
+    GeocodeService geocodeService = new GeocodeResource(geocoder, null);
+
+    Location greenland = new Location("test", "Political", "source", "Greenland", "GL", 0d, 0d);
+    when(geocoder.get(anyList())).thenReturn(Arrays.asList(Arrays.asList(greenland)));
+
+    assertEquals(Arrays.asList(Arrays.asList(greenland)),
+      geocodeService.get(Arrays.asList(new Query(75.0d, -40.0d, null, null, null))));
+    assertEquals(Arrays.asList(greenland), geocodeService.get(75.01d, -40.01d, null, null, null));
+    verify(geocoder, times(1)).get(anyList());
+    verifyNoMoreInteractions(geocoder);
+  }
 }
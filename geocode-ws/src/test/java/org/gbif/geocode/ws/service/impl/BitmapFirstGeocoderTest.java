@@ -2,15 +2,19 @@ package org.gbif.geocode.ws.service.impl;
 
 import org.gbif.geocode.api.cache.GeocodeBitmapCache;
 import org.gbif.geocode.api.model.Location;
+import org.gbif.geocode.api.model.Query;
 import org.gbif.geocode.ws.layers.Bitmap;
+import org.gbif.geocode.ws.resource.GeocodeResource;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -50,6 +54,44 @@ public class BitmapFirstGeocoderTest {
     assertTrue(locations2.contains(locationTest2));
   }
 
+  /**
+   * A batch is answered from the bitmap where possible, and the remaining queries are sent to the database as one
+   * batch, with the results in the order of the queries.
+   */
+  @Test
+  public void testBatchRequest() {
+    GeocodeServiceImpl dbGeocoder = mock(GeocodeServiceImpl.class);
+
+    GeocodeBitmapCache geocoder =
+        new GeocodeBitmapCache(
+            dbGeocoder,
+            this.getClass().getResourceAsStream("/org/gbif/geocode/ws/resource/cache-bitmap.png"));
+
+    Location greenland = new Location("test", "political", "source", "Greenland", "GD", 0d, 0d);
+    Location denmark = new Location("test", "political", "source", "Denmark", "DK", 0d, 0d);
+
+    when(dbGeocoder.get(75.0, -40.0, null, null)).thenReturn(Arrays.asList(greenland));
+    geocoder.get(75.0, -40.0, null, null);
+
+    // Denmark is on a border, so isn't cached.
+    Query border = new Query(55.102d, 14.685d, null, null, null);
+    when(dbGeocoder.get(Collections.singletonList(border)))
+      .thenReturn(Collections.singletonList(Arrays.asList(denmark)));
+
+    List<List<Location>> results = geocoder.get(Arrays.asList(
+      new Query(75.1, -40.1, null, null, null),
+      border,
+      new Query(75.2, -40.2, null, null, null)));
+
+    verify(dbGeocoder, times(1)).get(Collections.singletonList(border));
+    verify(dbGeocoder, never()).get(75.1, -40.1, null, null);
+
+    assertEquals(3, results.size());
+    assertEquals(Arrays.asList(greenland), results.get(0));
+    assertEquals(Arrays.asList(denmark), results.get(1));
+    assertEquals(Arrays.asList(greenland), results.get(2));
+  }
+
   /** Test that borders are read from the database every time. */
   @Test
   public void testBorderRequest() {
@@ -136,4 +178,49 @@ public class BitmapFirstGeocoderTest {
 
     assertEquals(0, locations.size());
   }
+
+  /** Test that requests for layers in the combined bitmap are answered from the cache. */
+  @Test
+  public void testLayerSubsetRequest() {
+    GeocodeServiceImpl dbGeocoder = mock(GeocodeServiceImpl.class);
+
+    GeocodeBitmapCache geocoder =
+        new GeocodeBitmapCache(
+            dbGeocoder,
+            Bitmap.raster(GeocodeResource.class, "cache-bitmap.png"),
+            null,
+            null,
+            Arrays.asList("Political", "Continent", "Centroids", "IHO", "GADM", "WGSRPD"));
+
+    Location political = new Location("test", "Political", "source", "Greenland", "GL", 0d, 0d);
+    Location gadm0 = new Location("GRL", "GADM0", "source", "Greenland", "GL", 0d, 0d);
+    Location gadm1 = new Location("GRL.1_1", "GADM1", "source", "Kommuneqarfik Sermersooq", "GL", 0d, 0d);
+    Location pgPolitical = new Location("test", "PG_Political", "source", "Greenland", "GL", 0d, 0d);
+
+    when(dbGeocoder.get(75.0, -40.0, null, null)).thenReturn(Arrays.asList(political, gadm0, gadm1));
+    List<String> pgPoliticalLayer = Collections.singletonList("PG_Political");
+    when(dbGeocoder.get(75.1, -40.1, null, null, pgPoliticalLayer)).thenReturn(Arrays.asList(pgPolitical));
+
+    // Learn the colour.
+    geocoder.get(75.0, -40.0, null, null);
+
+    List<String> politicalLayer = Arrays.asList("Political");
+    List<Location> locations = geocoder.get(75.1, -40.1, null, null, politicalLayer);
+    verify(dbGeocoder, never()).get(75.1, -40.1, null, null, politicalLayer);
+    assertEquals(Arrays.asList(political), locations);
+
+    // GADM is queried as a single layer, giving all levels.
+    List<String> gadmLayers = Arrays.asList("GADM1", "GADM");
+    locations = geocoder.get(75.1, -40.1, null, null, gadmLayers);
+    verify(dbGeocoder, never()).get(75.1, -40.1, null, null, gadmLayers);
+    assertEquals(Arrays.asList(gadm0, gadm1), locations);
+
+    // Layers outside the bitmap are queried from the service, and merged.
+    locations = geocoder.get(75.1, -40.1, null, null, Arrays.asList("Political", "PG_Political"));
+    verify(dbGeocoder, times(1)).get(75.1, -40.1, null, null, pgPoliticalLayer);
+    assertEquals(2, locations.size());
+    assertTrue(locations.contains(political));
+    assertTrue(locations.contains(pgPolitical));
+    assertFalse(locations.contains(gadm0));
+  }
 }
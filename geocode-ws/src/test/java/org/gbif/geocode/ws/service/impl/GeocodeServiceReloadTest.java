@@ -0,0 +1,180 @@
+package org.gbif.geocode.ws.service.impl;
+
+import org.gbif.geocode.api.model.Location;
+import org.gbif.geocode.api.model.Query;
+import org.gbif.geocode.ws.advice.DatasetVersionAdvice;
+import org.gbif.geocode.ws.persistence.mapper.LocationMapper;
+import org.gbif.geocode.ws.resource.GeocodeResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.http.server.ServletServerHttpResponse;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Reloading the layers against a changed data root changes the results and the version reported together.
+ */
+public class GeocodeServiceReloadTest {
+
+  @TempDir
+  Path root;
+
+  // The version of the "database" the mock mapper answers from.
+  private final AtomicReference<String> data = new AtomicReference<>();
+
+  private GeocodeServiceImpl service;
+  private GeocodeResource resource;
+  private DatasetVersionAdvice advice;
+
+  @Test
+  public void testReload() throws IOException {
+    LocationMapper mapper = mock(LocationMapper.class);
+    when(mapper.queryLayer(anyDouble(), anyDouble(), anyDouble(), eq("Political")))
+      .thenAnswer(i -> political(data.get()));
+
+    setVersion("1");
+    // Only the PostGIS and point layers, without shapefiles.
+    service = new GeocodeServiceImpl(mapper, root.toString(), Collections.singletonList("None"),
+      Collections.singletonList("PG_Political"));
+    resource = new GeocodeResource(service, null);
+    advice = new DatasetVersionAdvice(service);
+
+    assertEquals("1 Greenland 1", reverse(75.0, -40.0));
+    // The second query is answered by the layer's bitmap cache.
+    assertEquals("1 Greenland 1", reverse(75.01, -40.01));
+    verify(mapper, times(1)).queryLayer(anyDouble(), anyDouble(), anyDouble(), eq("Political"));
+
+    setVersion("2");
+    service.reload();
+    assertEquals("2", service.getVersion());
+    // The new generation has new bitmap caches, which learn the new data.
+    assertEquals("2 Greenland 2", reverse(75.0, -40.0));
+    assertEquals("2 Greenland 2", batch(75.01, -40.01));
+    verify(mapper, times(2)).queryLayer(anyDouble(), anyDouble(), anyDouble(), eq("Political"));
+  }
+
+  /**
+   * A request is answered by the layers current when it started, and reports their version, even if they are
+   * reloaded while it runs.
+   */
+  @Test
+  public void testReloadDuringRequest() throws IOException {
+    LocationMapper mapper = mock(LocationMapper.class);
+    when(mapper.queryLayer(anyDouble(), anyDouble(), anyDouble(), eq("Political"))).thenAnswer(i -> {
+      List<Location> found = political(data.get());
+      if (data.get().equals("1")) {
+        setVersion("2");
+        service.reload();
+      }
+      return found;
+    });
+
+    setVersion("1");
+    service = new GeocodeServiceImpl(mapper, root.toString(), Collections.singletonList("None"),
+      Collections.singletonList("PG_Political"));
+    resource = new GeocodeResource(service, null);
+    advice = new DatasetVersionAdvice(service);
+
+    assertEquals("1 Greenland 1", reverse(75.0, -40.0));
+    assertEquals("2", service.getVersion());
+    assertEquals("2 Greenland 2", reverse(75.0, -40.0));
+  }
+
+  /**
+   * The bitmap endpoint serves the combined bitmap the current layers use, which a reload can take from the root.
+   */
+  @Test
+  public void testBitmap() throws IOException {
+    setVersion("1");
+    service = new GeocodeServiceImpl(mock(LocationMapper.class), root.toString(), Collections.singletonList("None"),
+      GeocodeServiceImpl.COMBINED_CACHE_LAYERS);
+    resource = new GeocodeResource(service, null);
+
+    byte[] builtIn;
+    try (InputStream in = GeocodeResource.class.getResourceAsStream(GeocodeServiceImpl.COMBINED_CACHE_BITMAP)) {
+      builtIn = in.readAllBytes();
+    }
+    ResponseEntity<Resource> first = resource.bitmap(new ServletWebRequest(new MockHttpServletRequest()));
+    assertArrayEquals(builtIn, ((ByteArrayResource) first.getBody()).getByteArray());
+
+    // Not served until the layers are reloaded with it.
+    byte[] replaced;
+    try (InputStream in = GeocodeResource.class.getResourceAsStream("black.png")) {
+      replaced = in.readAllBytes();
+    }
+    Files.write(root.resolve(GeocodeServiceImpl.COMBINED_CACHE_BITMAP), replaced);
+    assertArrayEquals(builtIn, resource.bitmap());
+
+    setVersion("2");
+    service.reload();
+    ResponseEntity<Resource> second = resource.bitmap(new ServletWebRequest(new MockHttpServletRequest()));
+    assertArrayEquals(replaced, ((ByteArrayResource) second.getBody()).getByteArray());
+    assertNotEquals(first.getHeaders().getETag(), second.getHeaders().getETag());
+  }
+
+  private void setVersion(String version) throws IOException {
+    Files.write(root.resolve(GeocodeServiceImpl.VERSION_FILE), version.getBytes(StandardCharsets.UTF_8));
+    data.set(version);
+  }
+
+  private static List<Location> political(String version) {
+    return Collections.singletonList(
+      new Location("http://marineregions.org/mrgid/8685", "Political", "source", "Greenland " + version, "GL", 0d, 0d));
+  }
+
+  /**
+   * Query through the resource, as a web request.
+   * @return the version header and the title of the location found.
+   */
+  private String reverse(double lat, double lng) {
+    return request(r -> r.get(lat, lng, null, null, Collections.singletonList("PG_Political")));
+  }
+
+  private String batch(double lat, double lng) {
+    return request(r -> r.get(Collections.singletonList(
+      new Query(lat, lng, null, null, Collections.singletonList("PG_Political")))).get(0));
+  }
+
+  private String request(Function<GeocodeResource, List<Location>> query) {
+    MockHttpServletRequest request = new MockHttpServletRequest();
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request, response));
+    try {
+      List<Location> locations = query.apply(resource);
+      ServletServerHttpResponse serverResponse = new ServletServerHttpResponse(response);
+      advice.beforeBodyWrite(locations, null, null, null, new ServletServerHttpRequest(request), serverResponse);
+      assertEquals(1, locations.size());
+      return serverResponse.getHeaders().getFirst(DatasetVersionAdvice.HEADER) + " " + locations.get(0).getTitle();
+    } finally {
+      RequestContextHolder.resetRequestAttributes();
+    }
+  }
+}
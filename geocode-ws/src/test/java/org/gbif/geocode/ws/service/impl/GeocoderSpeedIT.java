@@ -1,5 +1,6 @@
 package org.gbif.geocode.ws.service.impl;
 
+import org.gbif.geocode.api.model.Query;
 import org.gbif.geocode.api.service.GeocodeService;
 
 import java.util.ArrayList;
@@ -27,6 +28,7 @@ import com.google.common.base.Stopwatch;
 @Disabled
 public class GeocoderSpeedIT {
   final GeocodeService geocoder;
+  final GeocodeServiceImpl geocoderService;
 
   // Set to "" to test shapefiles, "PG_" to test PostGIS
   final String p = "";
@@ -37,6 +39,7 @@ public class GeocoderSpeedIT {
   @Autowired
   public GeocoderSpeedIT(GeocodeServiceImpl geocoderService) {
     this.geocoder = geocoderService;
+    this.geocoderService = geocoderService;
   }
 
   @Test
@@ -156,4 +159,65 @@ public class GeocoderSpeedIT {
     System.out.println("PG all layers: " + count + " queries in " + sf.elapsed(TimeUnit.SECONDS) + " seconds; "
       + ((double)count) / sf.elapsed(TimeUnit.SECONDS) + " per second");
   }
+
+  @Test
+  @Disabled
+  public void speedTestPostGISDistances() {
+    // Compare with the PostGIS speeds without geography distance calculation in speedTestRandomQueries.
+    int count = 100_000;
+    List<String> testLayers = Arrays.asList("PG_Political", "PG_GADM", "PG_Continent", "PG_IHO", "PG_WGSRPD");
+
+    for (String l : testLayers) {
+      for (boolean javaDistances : new boolean[]{false, true, false, true}) {
+        geocoderService.setPostGISJavaDistances(javaDistances);
+        layers.clear();
+        layers.add(l);
+        sf.reset();
+        sf.start();
+        for (int i = 0; i < count; i++) {
+          double latitude = Math.random() * 180 - 90;
+          double longitude = Math.random() * 360 - 180;
+          geocoder.get(latitude, longitude, 0.05, null, layers).size();
+        }
+        sf.stop();
+        System.out.println(l + (javaDistances ? " (Java distances)" : " (geography distances)") + ": " + count
+          + " queries in " + sf.elapsed(TimeUnit.MILLISECONDS) + "ms; "
+          + ((double) count) / sf.elapsed(TimeUnit.MILLISECONDS) * 1000 + " per second");
+      }
+    }
+    geocoderService.setPostGISJavaDistances(false);
+  }
+
+  @Test
+  @Disabled
+  public void speedTestBatchOrdering() {
+    int batches = 100;
+    int batchSize = 10_000;
+
+    // Batches of random points, as from a dataset in record order, evaluated as they are and along a Hilbert curve.
+    List<List<Query>> queries = new ArrayList<>();
+    for (int b = 0; b < batches; b++) {
+      List<Query> batch = new ArrayList<>();
+      for (int i = 0; i < batchSize; i++) {
+        double latitude = Math.random() * 180 - 90;
+        double longitude = Math.random() * 360 - 180;
+        batch.add(new Query(latitude, longitude, 0.05, null, null));
+      }
+      queries.add(batch);
+    }
+
+    for (boolean sorted : new boolean[]{false, true, false, true}) {
+      geocoderService.setSortBatches(sorted);
+      sf.reset();
+      sf.start();
+      for (List<Query> batch : queries) {
+        geocoder.get(batch).size();
+      }
+      sf.stop();
+      System.out.println((sorted ? "Sorted" : "Unsorted") + " batches: " + batches * batchSize + " queries in "
+        + sf.elapsed(TimeUnit.MILLISECONDS) + "ms; "
+        + ((double) batches * batchSize) / sf.elapsed(TimeUnit.MILLISECONDS) * 1000 + " per second");
+    }
+    geocoderService.setSortBatches(true);
+  }
 }
@@ -0,0 +1,196 @@
+package org.gbif.geocode.ws.service.impl;
+
+import org.gbif.geocode.api.model.Location;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Querying layers concurrently, with stub layers which wait for each other.
+ */
+public class LayerQueryExecutorTest {
+
+  private static List<Location> found(String id) {
+    return Collections.singletonList(new Location(id, "Test", "Test", id, id, 0d, 0d));
+  }
+
+  /**
+   * A stub layer query, which waits for a latch before answering and counts down another after.
+   */
+  private static Callable<List<Location>> layer(String id, CountDownLatch await, CountDownLatch done) {
+    return () -> {
+      if (await != null) {
+        assertTrue(await.await(10, TimeUnit.SECONDS));
+      }
+      if (done != null) {
+        done.countDown();
+      }
+      return found(id);
+    };
+  }
+
+  /**
+   * The results are in the order of the layers, even though the last layer answers first.
+   */
+  @Test
+  public void testResultOrder() {
+    ExecutorService executor = LayerQueryExecutor.threadPool(3);
+    try {
+      CountDownLatch second = new CountDownLatch(1);
+      CountDownLatch first = new CountDownLatch(1);
+      List<Callable<List<Location>>> misses = Arrays.asList(
+        layer("A", first, null),
+        layer("B", second, first),
+        layer("C", null, second));
+
+      List<List<Location>> results = GeocodeServiceImpl.invokeAll(executor, misses);
+      assertEquals(3, results.size());
+      assertEquals("A", results.get(0).get(0).getId());
+      assertEquals("B", results.get(1).get(0).getId());
+      assertEquals("C", results.get(2).get(0).getId());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * A layer which fails fails the query, and the layers still running are cancelled.
+   */
+  @Test
+  public void testExceptionCancelsOthers() throws InterruptedException {
+    ExecutorService executor = LayerQueryExecutor.threadPool(2);
+    try {
+      CountDownLatch failed = new CountDownLatch(1);
+      CountDownLatch started = new CountDownLatch(1);
+      CountDownLatch interrupted = new CountDownLatch(1);
+      List<Callable<List<Location>>> misses = Arrays.asList(
+        () -> {
+          assertTrue(started.await(10, TimeUnit.SECONDS));
+          return layer("A", failed, null).call();
+        },
+        () -> {
+          failed.countDown();
+          throw new IllegalStateException("Layer B failed");
+        },
+        () -> {
+          started.countDown();
+          try {
+            new CountDownLatch(1).await();
+          } catch (InterruptedException e) {
+            interrupted.countDown();
+          }
+          return found("C");
+        });
+
+      IllegalStateException e = assertThrows(IllegalStateException.class,
+        () -> GeocodeServiceImpl.invokeAll(executor, misses));
+      assertEquals("Layer B failed", e.getMessage());
+      assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Without an executor, the layers are queried in turn on the calling thread.
+   */
+  @Test
+  public void testNoExecutor() {
+    List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+    Callable<List<Location>> layer = () -> {
+      threads.add(Thread.currentThread());
+      return found("A");
+    };
+
+    assertEquals(2, GeocodeServiceImpl.invokeAll(null, Arrays.asList(layer, layer)).size());
+    assertEquals(Arrays.asList(Thread.currentThread(), Thread.currentThread()), threads);
+  }
+
+  /**
+   * When the pool's threads and queue are full, a task is run on the calling thread.
+   */
+  @Test
+  public void testCallerRunsWhenSaturated() throws Exception {
+    ExecutorService executor = LayerQueryExecutor.threadPool(1);
+    CountDownLatch release = new CountDownLatch(1);
+    try {
+      // One running and four queued.
+      List<Future<?>> blocked = new ArrayList<>();
+      for (int i = 0; i < 5; i++) {
+        blocked.add(executor.submit(() -> {
+          release.await();
+          return null;
+        }));
+      }
+
+      AtomicReference<Thread> ranOn = new AtomicReference<>();
+      Future<?> extra = executor.submit(() -> ranOn.set(Thread.currentThread()));
+      assertTrue(extra.isDone());
+      assertSame(Thread.currentThread(), ranOn.get());
+
+      release.countDown();
+      for (Future<?> f : blocked) {
+        f.get(10, TimeUnit.SECONDS);
+      }
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * The semaphore limits how many tasks run at once on an unbounded executor, as used for virtual threads.
+   */
+  @Test
+  public void testSemaphoreBoundsConcurrency() throws Exception {
+    ExecutorService executor = new LayerQueryExecutor.SemaphoreExecutor(Executors.newCachedThreadPool(), 2);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < 6; i++) {
+        futures.add(executor.submit(() -> {
+          maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+          release.await();
+          running.decrementAndGet();
+          return null;
+        }));
+      }
+
+      long deadline = System.currentTimeMillis() + 10_000;
+      while (running.get() < 2 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      // Give any others the chance to start, if they could.
+      Thread.sleep(200);
+      assertEquals(2, running.get());
+
+      release.countDown();
+      for (Future<?> f : futures) {
+        f.get(10, TimeUnit.SECONDS);
+      }
+      assertEquals(2, maxRunning.get());
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+    }
+  }
+}
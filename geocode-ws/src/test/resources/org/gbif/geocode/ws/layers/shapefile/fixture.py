@@ -0,0 +1,89 @@
+#!/usr/bin/env python3
+#
+# Writes fixture.shp, fixture.shx and fixture.dbf, a small polygon shapefile for the shapefile engine tests:
+#
+#   0 HOLE   a square from 0,0 to 10,10 with a hole from 3,3 to 7,7
+#   1 MULTI  two squares, from 20,0 to 22,2 and from 24,0 to 26,2
+#   2 DEGEN  a square from 30,0 to 34,4, with a degenerate ring of three points inside it
+#
+# Shells are clockwise and holes anticlockwise, as in the ESRI Shapefile Technical Description.
+
+import os
+import struct
+
+POLYGON = 5
+
+FEATURES = [
+    ("HOLE", [
+        [(0, 0), (0, 10), (10, 10), (10, 0), (0, 0)],
+        [(3, 3), (7, 3), (7, 7), (3, 7), (3, 3)],
+    ]),
+    ("MULTI", [
+        [(20, 0), (20, 2), (22, 2), (22, 0), (20, 0)],
+        [(24, 0), (24, 2), (26, 2), (26, 0), (24, 0)],
+    ]),
+    ("DEGEN", [
+        [(30, 0), (30, 4), (34, 4), (34, 0), (30, 0)],
+        [(31, 1), (32, 2), (31, 1)],
+    ]),
+]
+
+
+def bbox(rings):
+    points = [p for ring in rings for p in ring]
+    return (min(x for x, y in points), min(y for x, y in points),
+            max(x for x, y in points), max(y for x, y in points))
+
+
+def header(length_bytes, box):
+    return (struct.pack(">7i", 9994, 0, 0, 0, 0, 0, length_bytes // 2)
+            + struct.pack("<2i", 1000, POLYGON)
+            + struct.pack("<8d", *box, 0, 0, 0, 0))
+
+
+def record(rings):
+    points = [p for ring in rings for p in ring]
+    parts = []
+    start = 0
+    for ring in rings:
+        parts.append(start)
+        start += len(ring)
+    content = struct.pack("<i4d2i", POLYGON, *bbox(rings), len(rings), len(points))
+    content += struct.pack("<%di" % len(parts), *parts)
+    for x, y in points:
+        content += struct.pack("<2d", x, y)
+    return content
+
+
+def main():
+    directory = os.path.dirname(os.path.abspath(__file__))
+    box = bbox([ring for _, rings in FEATURES for ring in rings])
+
+    records = b""
+    index = b""
+    offset = 100
+    for number, (_, rings) in enumerate(FEATURES, 1):
+        content = record(rings)
+        index += struct.pack(">2i", offset // 2, len(content) // 2)
+        records += struct.pack(">2i", number, len(content) // 2) + content
+        offset += 8 + len(content)
+
+    with open(os.path.join(directory, "fixture.shp"), "wb") as shp:
+        shp.write(header(100 + len(records), box) + records)
+    with open(os.path.join(directory, "fixture.shx"), "wb") as shx:
+        shx.write(header(100 + len(index), box) + index)
+
+    # dBASE III, with one character column.
+    width = 10
+    dbf = struct.pack("<4BIHH20x", 3, 124, 1, 1, len(FEATURES), 32 + 32 + 1, 1 + width)
+    dbf += struct.pack("<11sc4xBB14x", b"id", b"C", width, 0)
+    dbf += b"\x0d"
+    for id, _ in FEATURES:
+        dbf += b" " + id.encode("utf-8").ljust(width)
+    dbf += b"\x1a"
+    with open(os.path.join(directory, "fixture.dbf"), "wb") as f:
+        f.write(dbf)
+
+
+if __name__ == "__main__":
+    main()